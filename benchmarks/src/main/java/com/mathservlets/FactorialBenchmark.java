@@ -0,0 +1,66 @@
+package com.mathservlets;
+
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Uncached factorial engine and decimal conversion, compared with the plain
+ * BigInteger loop and BigInteger.toString they replace.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FactorialBenchmark {
+    
+    @Param({"100", "5000", "50000"})
+    public int n;
+    
+    private FactorialEngine engine;
+    private BigInteger value;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        engine = new FactorialEngine();
+        value = engine.factorial(n);
+    }
+    
+    @Benchmark
+    public BigInteger engine() {
+        return engine.factorial(n);
+    }
+    
+    @Benchmark
+    public BigInteger naiveLoop() {
+        BigInteger result = BigInteger.ONE;
+        for (int i = 2; i <= n; i++) {
+            result = result.multiply(BigInteger.valueOf(i));
+        }
+        return result;
+    }
+    
+    @Benchmark
+    public String decimalRenderer() {
+        return DecimalRenderer.toDecimalString(value);
+    }
+    
+    @Benchmark
+    public String bigIntegerToString() {
+        return value.toString();
+    }
+}
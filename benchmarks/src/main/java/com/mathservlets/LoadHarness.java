@@ -0,0 +1,331 @@
+package com.mathservlets;
+
+import java.io.PrintStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.catalina.startup.Tomcat;
+
+/**
+ * Open-loop load harness.
+ * Starts the built war in an embedded Tomcat on localhost (or targets a running server)
+ * and sends requests at a fixed arrival rate regardless of how fast responses come back,
+ * as real users do. Latency is measured from the time each request was scheduled to be
+ * sent, not from when the client managed to send it, which corrects for coordinated
+ * omission: a stalled server shows up as high latency for every request it delayed.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar com.mathservlets.LoadHarness --rate 200 --duration 30
+ * java -cp target/benchmarks.jar com.mathservlets.LoadHarness --log ../target/tomcat/logs/access_log.2026-10-16.txt
+ * </pre>
+ */
+public final class LoadHarness {
+    
+    private static final String CONTEXT_PATH = "/dynamic-servlets";
+    
+    private LoadHarness() {
+    }
+    
+    public static void main(String[] args) throws Exception {
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(Options.USAGE);
+            System.exit(2);
+            return;
+        }
+        
+        Workload workload = options.logs.isEmpty()
+                ? Workload.synthesize(options.distinctRequests, options.maxNumber, options.seed)
+                : Workload.replay(options.logs, options.maxNumber, options.seed);
+        
+        Tomcat tomcat = null;
+        String baseUrl = options.url;
+        if (baseUrl == null) {
+            tomcat = startTomcat(options.war);
+            baseUrl = "http://localhost:" + tomcat.getConnector().getLocalPort() + CONTEXT_PATH;
+        }
+        URI target = URI.create(baseUrl + "/MathOperationsServlet");
+        
+        ExecutorService clientThreads = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "load-client");
+            thread.setDaemon(true);
+            return thread;
+        });
+        HttpClient client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(10))
+                .executor(clientThreads)
+                .build();
+        
+        try {
+            System.out.printf(Locale.ROOT, "Target        %s%n", target);
+            System.out.printf(Locale.ROOT, "Workload      %s, %d distinct requests%n",
+                    options.logs.isEmpty() ? "synthesized" : "replayed from " + options.logs.size() + " access log(s)",
+                    workload.size());
+            if (options.warmupSeconds > 0) {
+                System.out.printf(Locale.ROOT, "Warming up    %d s%n", options.warmupSeconds);
+                run(client, target, workload, options, options.warmupSeconds);
+            }
+            Run run = run(client, target, workload, options, options.durationSeconds);
+            run.report(System.out);
+        } finally {
+            clientThreads.shutdownNow();
+            if (tomcat != null) {
+                tomcat.stop();
+                tomcat.destroy();
+            }
+        }
+    }
+    
+    /**
+     * Deploys the war in an embedded Tomcat on a free local port
+     */
+    private static Tomcat startTomcat(Path war) throws Exception {
+        if (!Files.isRegularFile(war)) {
+            throw new IllegalArgumentException("War not found: " + war.toAbsolutePath()
+                    + " (run mvn package in the project root first)");
+        }
+        Path baseDir = Files.createTempDirectory("load-harness");
+        Files.createDirectories(baseDir.resolve("webapps"));
+        Tomcat tomcat = new Tomcat();
+        tomcat.setBaseDir(baseDir.toString());
+        tomcat.setHostname("localhost");
+        tomcat.setPort(0);
+        tomcat.getConnector();
+        // The harness only calls servlets, so skip the JSP and default servlet setup
+        tomcat.setAddDefaultWebXmlToWebapp(false);
+        tomcat.addWebapp(CONTEXT_PATH, war.toAbsolutePath().toString());
+        tomcat.start();
+        return tomcat;
+    }
+    
+    /**
+     * Sends requests open-loop at the configured rate for the given duration
+     */
+    private static Run run(HttpClient client, URI target, Workload workload, Options options, int seconds)
+            throws InterruptedException {
+        int total = (int) Math.min(Integer.MAX_VALUE, Math.round(options.rate * seconds));
+        long periodNanos = Math.round(1e9 / options.rate);
+        Run run = new Run(total, options.rate, options.timeout);
+        
+        long start = System.nanoTime();
+        for (int i = 0; i < total; i++) {
+            long intended = start + i * periodNanos;
+            long remaining;
+            while ((remaining = intended - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(remaining);
+            }
+            
+            long sent = System.nanoTime();
+            int index = i;
+            run.send(index, intended, sent);
+            client.sendAsync(request(target, workload.get(i), options.timeout), HttpResponse.BodyHandlers.discarding())
+                    .whenComplete((response, error) -> run.complete(index, error == null ? response.statusCode() : -1));
+        }
+        
+        if (!run.await(options.timeout.plusSeconds(10))) {
+            System.out.println("Some requests never completed; their latency is counted from the report");
+        }
+        run.elapsedNanos = System.nanoTime() - start;
+        return run;
+    }
+    
+    private static HttpRequest request(URI target, Workload.Request request, Duration timeout) {
+        if (request.post) {
+            return HttpRequest.newBuilder(target)
+                    .timeout(timeout)
+                    .header("Content-Type", "application/x-www-form-urlencoded")
+                    .POST(HttpRequest.BodyPublishers.ofString(request.query))
+                    .build();
+        }
+        return HttpRequest.newBuilder(URI.create(target + "?" + request.query))
+                .timeout(timeout)
+                .GET()
+                .build();
+    }
+    
+    /**
+     * Outcome of one run. Callbacks may still arrive after the wait for them gives up,
+     * so the slots are written and read under the run's lock, and the report works from
+     * a snapshot. Requests that failed or timed out, and those that never completed,
+     * stay in the percentiles: leaving them out would hide exactly the slowest requests.
+     */
+    private static final class Run {
+        private final double rate;
+        private final long timeoutNanos;
+        private final long[] intendedTimes;
+        private final long[] sentTimes;
+        private final long[] latencies;
+        private final long[] serviceTimes;
+        private final int[] statuses;
+        private final CountDownLatch pending;
+        private long elapsedNanos;
+        
+        Run(int total, double rate, Duration timeout) {
+            this.rate = rate;
+            this.timeoutNanos = timeout.toNanos();
+            this.intendedTimes = new long[total];
+            this.sentTimes = new long[total];
+            this.latencies = new long[total];
+            this.serviceTimes = new long[total];
+            this.statuses = new int[total];
+            this.pending = new CountDownLatch(total);
+        }
+        
+        synchronized void send(int index, long intended, long sent) {
+            intendedTimes[index] = intended;
+            sentTimes[index] = sent;
+        }
+        
+        synchronized void complete(int index, int status) {
+            long now = System.nanoTime();
+            latencies[index] = now - intendedTimes[index];
+            serviceTimes[index] = now - sentTimes[index];
+            statuses[index] = status;
+            pending.countDown();
+        }
+        
+        boolean await(Duration timeout) throws InterruptedException {
+            return pending.await(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        }
+        
+        void report(PrintStream out) {
+            int[] statuses;
+            long[] latencies;
+            long[] serviceTimes;
+            long now;
+            synchronized (this) {
+                statuses = this.statuses.clone();
+                latencies = this.latencies.clone();
+                serviceTimes = this.serviceTimes.clone();
+                now = System.nanoTime();
+                // A request still outstanding has taken at least the timeout, and at least as long as it has run
+                for (int i = 0; i < statuses.length; i++) {
+                    if (statuses[i] == 0) {
+                        latencies[i] = Math.max(timeoutNanos, now - intendedTimes[i]);
+                        serviceTimes[i] = Math.max(timeoutNanos, now - sentTimes[i]);
+                    }
+                }
+            }
+            
+            int ok = 0;
+            int busy = 0;
+            int other = 0;
+            int failed = 0;
+            int incomplete = 0;
+            for (int status : statuses) {
+                if (status >= 200 && status < 400) {
+                    ok++;
+                } else if (status == 503) {
+                    busy++;
+                } else if (status > 0) {
+                    other++;
+                } else if (status < 0) {
+                    failed++;
+                } else {
+                    incomplete++;
+                }
+            }
+            
+            out.printf(Locale.ROOT, "Arrival rate  %.1f req/s, %d requests%n", rate, statuses.length);
+            out.printf(Locale.ROOT, "Responses     %d ok, %d busy (503), %d other, %d failed or timed out,"
+                    + " %d never completed%n", ok, busy, other, failed, incomplete);
+            out.printf(Locale.ROOT, "Throughput    %.1f req/s%n", (ok + busy + other) / (elapsedNanos / 1e9));
+            printPercentiles(out, "Latency (ms, from scheduled send, corrected for coordinated omission)", latencies);
+            printPercentiles(out, "Service time (ms, from actual send)", serviceTimes);
+        }
+        
+        private static void printPercentiles(PrintStream out, String title, long[] values) {
+            out.println(title);
+            if (values.length == 0) {
+                out.println("  no requests");
+                return;
+            }
+            long[] sorted = values.clone();
+            Arrays.sort(sorted);
+            out.printf(Locale.ROOT, "  p50 %10.2f   p90 %10.2f   p99 %10.2f   p99.9 %10.2f   max %10.2f%n",
+                    percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99),
+                    percentile(sorted, 99.9), sorted[sorted.length - 1] / 1e6);
+        }
+        
+        /**
+         * Nearest-rank percentile in milliseconds
+         */
+        private static double percentile(long[] sorted, double percentile) {
+            int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+            return sorted[Math.max(0, rank - 1)] / 1e6;
+        }
+    }
+    
+    /**
+     * Command line options
+     */
+    private static final class Options {
+        static final String USAGE = "Options: --rate <req/s> --duration <s> --warmup <s> --log <access log>[,<access log>...]"
+                + " --war <path> --url <base url> --max-number <n> --distinct <n> --seed <n> --timeout <s>";
+        
+        double rate = 100;
+        int durationSeconds = 30;
+        int warmupSeconds = 10;
+        List<Path> logs = new ArrayList<>();
+        Path war = Paths.get("..", "target", "dynamic-servlets.war");
+        String url;
+        int maxNumber = 2000;
+        int distinctRequests = 1000;
+        long seed = 42;
+        Duration timeout = Duration.ofSeconds(60);
+        
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i += 2) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + args[i]);
+                }
+                String value = args[i + 1];
+                try {
+                    switch (args[i]) {
+                        case "--rate": options.rate = Double.parseDouble(value); break;
+                        case "--duration": options.durationSeconds = Integer.parseInt(value); break;
+                        case "--warmup": options.warmupSeconds = Integer.parseInt(value); break;
+                        case "--log":
+                            for (String log : value.split(",")) {
+                                options.logs.add(Paths.get(log));
+                            }
+                            break;
+                        case "--war": options.war = Paths.get(value); break;
+                        case "--url": options.url = value.endsWith("/") ? value.substring(0, value.length() - 1) : value; break;
+                        case "--max-number": options.maxNumber = Integer.parseInt(value); break;
+                        case "--distinct": options.distinctRequests = Integer.parseInt(value); break;
+                        case "--seed": options.seed = Long.parseLong(value); break;
+                        case "--timeout": options.timeout = Duration.ofSeconds(Long.parseLong(value)); break;
+                        default: throw new IllegalArgumentException("Unknown option " + args[i]);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid value for " + args[i] + ": " + value);
+                }
+            }
+            if (options.rate <= 0 || options.durationSeconds <= 0 || options.maxNumber <= 0 || options.distinctRequests <= 0) {
+                throw new IllegalArgumentException("Rate, duration, max number and distinct requests must be positive");
+            }
+            return options;
+        }
+    }
+}
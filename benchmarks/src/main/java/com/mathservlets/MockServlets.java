@@ -0,0 +1,91 @@
+package com.mathservlets;
+
+import java.io.OutputStream;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Map;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Minimal stand-ins for the container objects a servlet needs, so servlets can be
+ * driven outside Tomcat. Built from dynamic proxies; only the methods the servlets
+ * call return anything useful.
+ */
+final class MockServlets {
+    
+    private MockServlets() {
+    }
+    
+    /**
+     * Creates a servlet configuration backed by a fresh context
+     * @param initParameters servlet init parameters
+     * @return ServletConfig instance
+     */
+    static ServletConfig config(Map<String, String> initParameters) {
+        Map<String, Object> attributes = new java.util.concurrent.ConcurrentHashMap<>();
+        ServletContext context = (ServletContext) Proxy.newProxyInstance(MockServlets.class.getClassLoader(),
+                new Class<?>[] {ServletContext.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getAttribute": return attributes.get(args[0]);
+                        case "setAttribute": attributes.put((String) args[0], args[1]); return null;
+                        case "removeAttribute": attributes.remove(args[0]); return null;
+                        case "getContextPath": return "";
+                        default: return null;
+                    }
+                });
+        return (ServletConfig) Proxy.newProxyInstance(MockServlets.class.getClassLoader(),
+                new Class<?>[] {ServletConfig.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getInitParameter": return initParameters.get(args[0]);
+                        case "getInitParameterNames": return Collections.enumeration(initParameters.keySet());
+                        case "getServletContext": return context;
+                        case "getServletName": return "benchmark";
+                        default: return null;
+                    }
+                });
+    }
+    
+    /**
+     * Creates a response whose body goes to the given stream and whose headers are dropped
+     * @param body stream receiving the response body
+     * @return HttpServletResponse instance
+     */
+    static HttpServletResponse response(OutputStream body) {
+        ServletOutputStream stream = new ServletOutputStream() {
+            @Override
+            public void write(int b) throws java.io.IOException {
+                body.write(b);
+            }
+            
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws java.io.IOException {
+                body.write(bytes, offset, length);
+            }
+            
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+            
+            @Override
+            public void setWriteListener(WriteListener listener) {
+            }
+        };
+        return (HttpServletResponse) Proxy.newProxyInstance(MockServlets.class.getClassLoader(),
+                new Class<?>[] {HttpServletResponse.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getOutputStream": return stream;
+                        case "isCommitted": return false;
+                        case "getCharacterEncoding": return "UTF-8";
+                        case "getStatus": return HttpServletResponse.SC_OK;
+                        case "containsHeader": return false;
+                        default: return null;
+                    }
+                });
+    }
+}
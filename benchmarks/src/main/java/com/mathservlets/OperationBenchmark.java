@@ -0,0 +1,64 @@
+package com.mathservlets;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of every operation in the factory over a range of input sizes.
+ * evaluate measures the work done before a result is returned; evaluateAndWrite
+ * also writes the result text, which is where lazy results such as the
+ * Fibonacci series and the prime list do most of their work.
+ * Operations come from one factory per trial, so factorial is measured with a warm
+ * checkpoint cache, as it runs in production; FactorialBenchmark covers the uncached engine.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OperationBenchmark {
+    
+    @Param({"factorial", "palindrome", "palindromeCount", "nthPalindrome", "nextPalindrome", "fibonacci", "prime", "primeCount", "primeRange", "cubeRoot"})
+    public String operation;
+    
+    /** Larger inputs can be passed with -p number=...; the Fibonacci series grows quadratically */
+    @Param({"10", "1000", "10000"})
+    public int number;
+    
+    private MathOperation mathOperation;
+    private Writer sink;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        mathOperation = new OperationFactory().getOperation(operation);
+        sink = Writer.nullWriter();
+    }
+    
+    @Benchmark
+    public OperationResult evaluate() {
+        return mathOperation.evaluate(number);
+    }
+    
+    @Benchmark
+    public void evaluateAndWrite(Blackhole blackhole) throws IOException {
+        OperationResult result = mathOperation.evaluate(number);
+        result.writeTo(sink);
+        blackhole.consume(result);
+    }
+}
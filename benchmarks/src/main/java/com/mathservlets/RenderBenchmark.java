@@ -0,0 +1,87 @@
+package com.mathservlets;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of turning results into a page, without the cost of computing them.
+ * formatResult runs one result through the HTML formatter; sendSuccessResponse
+ * writes the whole results page for every operation to a mock response whose
+ * body is discarded.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RenderBenchmark {
+    
+    @Param({"10", "1000", "10000"})
+    public int number;
+    
+    private MathOperationsServlet servlet;
+    private HttpServletResponse response;
+    private Map<String, OperationResult> results;
+    private String factorialText;
+    private PageWriter page;
+    
+    @Setup(Level.Trial)
+    public void setUp() throws ServletException {
+        servlet = new MathOperationsServlet();
+        servlet.init(MockServlets.config(Map.of()));
+        response = MockServlets.response(OutputStream.nullOutputStream());
+        
+        OperationFactory factory = new OperationFactory();
+        results = new OperationRunner(factory).run(number, new HashSet<>(factory.getAvailableOperations()));
+        factorialText = factory.getOperation("factorial").execute(number);
+        page = new PageWriter(OutputStream.nullOutputStream());
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        servlet.destroy();
+    }
+    
+    @Benchmark
+    public void formatResult() throws IOException {
+        HtmlResultWriter formatter = new HtmlResultWriter(page);
+        formatter.write(factorialText);
+        formatter.finish();
+        page.flush();
+    }
+    
+    @Benchmark
+    public void sendSuccessResponse() throws IOException {
+        servlet.sendSuccessResponse(response, number, results, null);
+    }
+    
+    /**
+     * Baseline for the formatter: the same text encoded without HTML formatting
+     */
+    @Benchmark
+    public void encodeOnly() throws IOException {
+        page.write(factorialText);
+        page.flush();
+    }
+}
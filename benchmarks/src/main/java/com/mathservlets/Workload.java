@@ -0,0 +1,120 @@
+package com.mathservlets;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Sequence of calculation requests for the load harness, either replayed from
+ * Tomcat access logs or synthesized from a seeded random mix.
+ */
+final class Workload {
+    
+    /** Request line of a Tomcat access log entry, e.g. "POST /app/MathOperationsServlet HTTP/1.1" */
+    private static final Pattern REQUEST_LINE = Pattern.compile("\"(GET|POST) ([^ \"]*MathOperationsServlet[^ \"]*) HTTP/[0-9.]+\"");
+    
+    private static final String[] OPERATIONS = {
+        "factorial", "palindrome", "fibonacci", "prime", "primeCount", "primeRange", "cubeRoot"
+    };
+    
+    private final List<Request> requests;
+    
+    private Workload(List<Request> requests) {
+        if (requests.isEmpty()) {
+            throw new IllegalArgumentException("Workload has no requests");
+        }
+        this.requests = requests;
+    }
+    
+    /**
+     * Reads the calculation requests recorded in access logs. Access logs do not keep
+     * POST bodies, so POST entries get a synthesized body from the seeded mix.
+     * @param logs access log files
+     * @param maxNumber largest number used for synthesized bodies
+     * @param seed random seed for synthesized bodies
+     * @return Workload instance
+     * @throws IOException if a log cannot be read
+     */
+    static Workload replay(List<Path> logs, int maxNumber, long seed) throws IOException {
+        Random random = new Random(seed);
+        List<Request> requests = new ArrayList<>();
+        for (Path log : logs) {
+            try (Stream<String> lines = Files.lines(log, StandardCharsets.UTF_8)) {
+                lines.forEach(line -> {
+                    Matcher matcher = REQUEST_LINE.matcher(line);
+                    if (!matcher.find()) {
+                        return;
+                    }
+                    String target = matcher.group(2);
+                    int query = target.indexOf('?');
+                    if (matcher.group(1).equals("GET") && query >= 0) {
+                        requests.add(new Request(false, target.substring(query + 1)));
+                    } else {
+                        requests.add(new Request(true, randomQuery(random, maxNumber)));
+                    }
+                });
+            }
+        }
+        return new Workload(requests);
+    }
+    
+    /**
+     * Synthesizes POST requests with a random number and a random non-empty set of operations
+     * @param count number of distinct requests
+     * @param maxNumber largest number used
+     * @param seed random seed
+     * @return Workload instance
+     */
+    static Workload synthesize(int count, int maxNumber, long seed) {
+        Random random = new Random(seed);
+        List<Request> requests = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            requests.add(new Request(true, randomQuery(random, maxNumber)));
+        }
+        return new Workload(requests);
+    }
+    
+    private static String randomQuery(Random random, int maxNumber) {
+        StringBuilder query = new StringBuilder("number=").append(1 + random.nextInt(maxNumber));
+        int selection = 1 + random.nextInt((1 << OPERATIONS.length) - 1);
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            if ((selection & (1 << i)) != 0) {
+                query.append("&operations=").append(OPERATIONS[i]);
+            }
+        }
+        return query.toString();
+    }
+    
+    /**
+     * Gets the request to send at a given position, cycling through the workload
+     * @param index position in the run
+     * @return the request
+     */
+    Request get(long index) {
+        return requests.get((int) (index % requests.size()));
+    }
+    
+    int size() {
+        return requests.size();
+    }
+    
+    /**
+     * A single request: form parameters sent either as a POST body or a GET query string
+     */
+    static final class Request {
+        final boolean post;
+        final String query;
+        
+        Request(boolean post, String query) {
+            this.post = post;
+            this.query = query;
+        }
+    }
+}
@@ -0,0 +1,399 @@
+package com.mathservlets;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Cost-based admission control.
+ * Requests are admitted while the total estimated cost in flight fits a budget;
+ * otherwise they wait in a short FIFO queue and are turned away when the queue is
+ * full (429) or the wait runs out (503). The budget adapts to how the node copes:
+ * it grows a step each time a request finishes within a multiple of its estimate,
+ * and shrinks by a quarter, at most once per interval, when requests run slower.
+ * A request costlier than the whole budget is still admitted when nothing else is
+ * running, so it can never be starved indefinitely.
+ * <p>
+ * Requests handled asynchronously wait without a thread: they queue with a future
+ * that is completed by whichever release makes room for them.
+ */
+public class AdmissionController {
+    
+    /** Name of the servlet context attribute holding the shared controller */
+    public static final String CONTEXT_ATTRIBUTE = AdmissionController.class.getName();
+    
+    /** Default largest cost of a single operation, about ten seconds of single-core work */
+    public static final long DEFAULT_MAX_OPERATION_COST = 10_000_000L;
+    
+    /** Default budget per processor, about two seconds of work in flight */
+    public static final long DEFAULT_BUDGET_PER_PROCESSOR = 2_000_000L;
+    
+    public static final int DEFAULT_MAX_QUEUED = 32;
+    public static final long DEFAULT_MAX_WAIT_MILLIS = 2000L;
+    
+    /** A request is slow if it takes longer than this multiple of its estimate */
+    static final int SLOWDOWN_LIMIT = 4;
+    
+    /** Fixed overhead allowed on top of the estimate before a request counts as slow */
+    static final long LATENCY_FLOOR_MICROS = 20_000L;
+    
+    /** HttpServletResponse has no constant for 429 Too Many Requests */
+    static final int SC_TOO_MANY_REQUESTS = 429;
+    
+    private static final long DECREASE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int RETRY_AFTER_SECONDS = 2;
+    
+    private final long maxOperationCost;
+    private final long minBudget;
+    private final long maxBudget;
+    private final long increaseStep;
+    private final int maxQueued;
+    private final long maxWaitNanos;
+    private final long maxWaitMillis;
+    
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Deque<Permit> waiting = new ArrayDeque<>();
+    private long budget;
+    private long inFlight;
+    private long lastDecrease;
+    
+    /**
+     * Creates an admission controller
+     * @param budget initial total cost allowed in flight; it adapts between a tenth and four times this
+     * @param maxOperationCost largest cost of a single operation that will be calculated at all
+     * @param maxQueued number of requests allowed to wait for budget
+     * @param maxWaitMillis how long a request may wait for budget
+     */
+    public AdmissionController(long budget, long maxOperationCost, int maxQueued, long maxWaitMillis) {
+        if (budget <= 0 || maxOperationCost <= 0) {
+            throw new IllegalArgumentException("Admission budget and operation cost limit must be positive");
+        }
+        if (maxQueued < 0 || maxWaitMillis < 0) {
+            throw new IllegalArgumentException("Admission queue and wait must not be negative");
+        }
+        this.budget = budget;
+        this.minBudget = Math.max(1, budget / 10);
+        this.maxBudget = budget > Long.MAX_VALUE / 4 ? Long.MAX_VALUE : budget * 4;
+        this.increaseStep = Math.max(1, budget / 50);
+        this.maxOperationCost = maxOperationCost;
+        this.maxQueued = maxQueued;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        this.maxWaitMillis = maxWaitMillis;
+        this.lastDecrease = System.nanoTime() - DECREASE_INTERVAL_NANOS;
+    }
+    
+    /**
+     * Gets the controller shared by all servlets of a web application, creating it from
+     * the context parameters admissionBudget, maxOperationCost, admissionQueue and
+     * admissionWaitMillis on first use
+     * @param context the servlet context
+     * @return AdmissionController instance
+     * @throws IllegalArgumentException if a context parameter is invalid
+     */
+    public static AdmissionController forContext(ServletContext context) {
+        synchronized (context) {
+            AdmissionController controller = (AdmissionController) context.getAttribute(CONTEXT_ATTRIBUTE);
+            if (controller == null) {
+                long budget = InitParameters.longValue(context::getInitParameter, "admissionBudget",
+                        DEFAULT_BUDGET_PER_PROCESSOR * Runtime.getRuntime().availableProcessors());
+                long maxOperationCost = InitParameters.longValue(context::getInitParameter, "maxOperationCost",
+                        DEFAULT_MAX_OPERATION_COST);
+                int maxQueued = InitParameters.intValue(context::getInitParameter, "admissionQueue", DEFAULT_MAX_QUEUED);
+                long maxWaitMillis = InitParameters.longValue(context::getInitParameter, "admissionWaitMillis",
+                        DEFAULT_MAX_WAIT_MILLIS);
+                controller = new AdmissionController(budget, maxOperationCost, maxQueued, maxWaitMillis);
+                context.setAttribute(CONTEXT_ATTRIBUTE, controller);
+            }
+            return controller;
+        }
+    }
+    
+    /**
+     * Admits a request, waiting in the queue if the budget is used up
+     * @param cost estimated cost of the request
+     * @return permit that must be released when the request is finished
+     * @throws AdmissionException if the queue is full or the wait runs out
+     */
+    public Permit acquire(long cost) throws AdmissionException {
+        Permit permit = new Permit(cost);
+        List<Permit> admitted = null;
+        lock.lock();
+        try {
+            if (waiting.isEmpty() && fits(cost)) {
+                admit(permit);
+                return permit;
+            }
+            if (waiting.size() >= maxQueued) {
+                throw queueFull();
+            }
+            
+            waiting.addLast(permit);
+            try {
+                long remaining = maxWaitNanos;
+                while (waiting.peekFirst() != permit || !fits(cost)) {
+                    if (remaining <= 0) {
+                        throw busy();
+                    }
+                    remaining = changed.awaitNanos(remaining);
+                }
+                admit(permit);
+                return permit;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AdmissionException(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                        "The calculation was interrupted, please try again", RETRY_AFTER_SECONDS);
+            } finally {
+                // Whether admitted or not, leave the queue and let the next request check its turn
+                waiting.remove(permit);
+                changed.signalAll();
+                admitted = admitWaiting();
+            }
+        } finally {
+            lock.unlock();
+            complete(admitted);
+        }
+    }
+    
+    /**
+     * Admits a request only if there is budget for it now, never waiting
+     * @param cost estimated cost of the request
+     * @return permit that must be released when the request is finished
+     * @throws AdmissionException if the budget is used up or requests are already waiting
+     */
+    public Permit tryAcquire(long cost) throws AdmissionException {
+        Permit permit = new Permit(cost);
+        lock.lock();
+        try {
+            if (waiting.isEmpty() && fits(cost)) {
+                admit(permit);
+                return permit;
+            }
+        } finally {
+            lock.unlock();
+        }
+        throw busy();
+    }
+    
+    /**
+     * Admits a request without holding a thread while it waits. The future completes
+     * with the permit once the request's turn comes and its cost fits, or fails with an
+     * AdmissionException when the queue is full or the wait runs out. Cancelling the
+     * future withdraws the request; a permit granted after that is released again.
+     * @param cost estimated cost of the request
+     * @return future of the permit, which must be released when the request is finished
+     */
+    public CompletableFuture<Permit> acquireAsync(long cost) {
+        Permit permit = new Permit(cost);
+        CompletableFuture<Permit> admission = new CompletableFuture<>();
+        lock.lock();
+        try {
+            if (waiting.isEmpty() && fits(cost)) {
+                admit(permit);
+                admission.complete(permit);
+                return admission;
+            }
+            if (waiting.size() >= maxQueued) {
+                admission.completeExceptionally(queueFull());
+                return admission;
+            }
+            permit.admission = admission;
+            waiting.addLast(permit);
+        } finally {
+            lock.unlock();
+        }
+        admission.whenComplete((granted, failure) -> {
+            if (admission.isCancelled()) {
+                withdraw(permit);
+            }
+        });
+        CompletableFuture.delayedExecutor(maxWaitMillis, TimeUnit.MILLISECONDS).execute(() -> withdraw(permit));
+        return admission;
+    }
+    
+    /**
+     * Takes a request that was cancelled or whose wait has run out out of the queue
+     */
+    private void withdraw(Permit permit) {
+        List<Permit> admitted;
+        lock.lock();
+        try {
+            if (!waiting.remove(permit)) {
+                return;
+            }
+            changed.signalAll();
+            admitted = admitWaiting();
+        } finally {
+            lock.unlock();
+        }
+        permit.admission.completeExceptionally(busy());
+        complete(admitted);
+    }
+    
+    /**
+     * Admits the asynchronous requests at the head of the queue while their cost fits.
+     * A blocking request at the head admits itself when it is signalled. Must be called
+     * holding the lock; the returned permits are handed over with {@link #complete(List)}
+     * once it has been released.
+     */
+    private List<Permit> admitWaiting() {
+        List<Permit> admitted = null;
+        Iterator<Permit> queue = waiting.iterator();
+        while (queue.hasNext()) {
+            Permit next = queue.next();
+            if (next.admission == null) {
+                break;
+            }
+            if (next.admission.isDone()) {
+                // Withdrawn while it waited
+                queue.remove();
+                continue;
+            }
+            if (!fits(next.cost)) {
+                break;
+            }
+            queue.remove();
+            admit(next);
+            if (admitted == null) {
+                admitted = new ArrayList<>();
+            }
+            admitted.add(next);
+        }
+        if (admitted != null) {
+            changed.signalAll();
+        }
+        return admitted;
+    }
+    
+    /**
+     * Hands permits to the requests that were waiting for them, outside the lock since
+     * completing a future runs the request's next step
+     */
+    private static void complete(List<Permit> admitted) {
+        if (admitted == null) {
+            return;
+        }
+        for (Permit permit : admitted) {
+            if (!permit.admission.complete(permit)) {
+                permit.release();
+            }
+        }
+    }
+    
+    private static AdmissionException queueFull() {
+        return new AdmissionException(SC_TOO_MANY_REQUESTS, "Too many calculations are waiting, please try again shortly",
+                RETRY_AFTER_SECONDS);
+    }
+    
+    private static AdmissionException busy() {
+        return new AdmissionException(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                "The calculation engine is busy, please try again shortly", RETRY_AFTER_SECONDS);
+    }
+    
+    private boolean fits(long cost) {
+        return inFlight == 0 || cost <= budget - inFlight;
+    }
+    
+    private void admit(Permit permit) {
+        inFlight += permit.cost;
+        permit.admittedAt = System.nanoTime();
+    }
+    
+    /**
+     * Returns a permit's cost to the budget and adapts the budget to its latency
+     */
+    private void release(Permit permit) {
+        long now = System.nanoTime();
+        long latencyMicros = (now - permit.admittedAt) / 1000;
+        List<Permit> admitted;
+        lock.lock();
+        try {
+            inFlight -= permit.cost;
+            long allowedMicros = permit.cost > (Long.MAX_VALUE - LATENCY_FLOOR_MICROS) / SLOWDOWN_LIMIT
+                    ? Long.MAX_VALUE : permit.cost * SLOWDOWN_LIMIT + LATENCY_FLOOR_MICROS;
+            if (latencyMicros <= allowedMicros) {
+                budget = Math.min(maxBudget, budget + increaseStep);
+            } else if (now - lastDecrease >= DECREASE_INTERVAL_NANOS) {
+                budget = Math.max(minBudget, budget - budget / 4);
+                lastDecrease = now;
+            }
+            changed.signalAll();
+            admitted = admitWaiting();
+        } finally {
+            lock.unlock();
+        }
+        complete(admitted);
+    }
+    
+    /**
+     * Gets the largest cost of a single operation that will be calculated
+     * @return cost limit
+     */
+    public long getMaxOperationCost() {
+        return maxOperationCost;
+    }
+    
+    public long getBudget() {
+        lock.lock();
+        try {
+            return budget;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public long getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public int getQueued() {
+        lock.lock();
+        try {
+            return waiting.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Admission of one request. Releasing it more than once has no further effect.
+     */
+    public class Permit {
+        private final long cost;
+        private final AtomicBoolean released = new AtomicBoolean();
+        private long admittedAt;
+        private CompletableFuture<Permit> admission;
+        
+        Permit(long cost) {
+            this.cost = Math.max(0, cost);
+        }
+        
+        public long getCost() {
+            return cost;
+        }
+        
+        /**
+         * Returns the request's cost to the budget
+         */
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                AdmissionController.this.release(this);
+            }
+        }
+    }
+}
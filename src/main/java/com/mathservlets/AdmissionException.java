@@ -0,0 +1,32 @@
+package com.mathservlets;
+
+/**
+ * Thrown when a request cannot be admitted for calculation.
+ * Carries the HTTP status and Retry-After delay the client should receive.
+ */
+public class AdmissionException extends Exception {
+    private static final long serialVersionUID = 1L;
+    
+    private final int status;
+    private final int retryAfterSeconds;
+    
+    /**
+     * Creates an admission failure
+     * @param status HTTP status to answer with
+     * @param message message for the client
+     * @param retryAfterSeconds suggested delay before retrying
+     */
+    public AdmissionException(int status, String message, int retryAfterSeconds) {
+        super(message);
+        this.status = status;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+    
+    public int getStatus() {
+        return status;
+    }
+    
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
@@ -0,0 +1,250 @@
+package com.mathservlets;
+
+import java.io.IOException;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Machine-facing endpoint for mathematical operations.
+ * Accepts the same parameters as the HTML form and answers with JSON, or with
+ * newline-delimited JSON (one line per operation, flushed as each is written)
+ * when the client asks for it. Results are streamed through a JsonWriter, so
+ * large numbers are never built as one String.
+ */
+public class ApiServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+    
+    static final String JSON = "application/json";
+    static final String NDJSON = "application/x-ndjson";
+    
+    private static final int RESPONSE_BUFFER_SIZE = 8192;
+    private static final int DEFAULT_TIMEOUT_MILLIS = 30000;
+    
+    private transient OperationFactory operationFactory;
+    private transient OperationRunner operationRunner;
+    private transient OperationMetrics operationMetrics;
+    private transient AdmissionController admissionController;
+    private int timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    
+    @Override
+    public void init() throws ServletException {
+        // The factory and its prime sieve are built once per application, normally by WarmUpListener
+        try {
+            operationFactory = OperationFactory.forContext(getServletContext());
+        } catch (IllegalArgumentException e) {
+            throw new ServletException("Invalid sieve configuration: " + e.getMessage(), e);
+        }
+        operationMetrics = OperationMetrics.forContext(getServletContext(), operationFactory.getAvailableOperations());
+        try {
+            admissionController = AdmissionController.forContext(getServletContext());
+        } catch (IllegalArgumentException e) {
+            throw new ServletException("Invalid admission configuration: " + e.getMessage(), e);
+        }
+        try {
+            operationRunner = new OperationRunner(operationFactory,
+                    InitParameters.intValue(this::getInitParameter, "fanOutParallelism", 0), operationMetrics,
+                    admissionController.getMaxOperationCost());
+            timeoutMillis = InitParameters.intValue(this::getInitParameter, "timeoutMillis", DEFAULT_TIMEOUT_MILLIS);
+        } catch (IllegalArgumentException e) {
+            throw new ServletException("Invalid compute configuration: " + e.getMessage(), e);
+        }
+    }
+    
+    @Override
+    public void destroy() {
+        operationRunner.shutdown();
+    }
+    
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        compute(request, response);
+    }
+    
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        compute(request, response);
+    }
+    
+    private void compute(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String mediaType = negotiate(request.getHeader("Accept"));
+        if (mediaType == null) {
+            response.setStatus(HttpServletResponse.SC_NOT_ACCEPTABLE);
+            response.setContentType(JSON + ";charset=UTF-8");
+            writeError(response, "Supported media types are " + JSON + " and " + NDJSON, false);
+            return;
+        }
+        response.setContentType(mediaType + ";charset=UTF-8");
+        boolean ndjson = NDJSON.equals(mediaType);
+        
+        ValidationResult validation = ValidationResult.validate(request.getParameter("number"),
+                request.getParameterValues("operations"), request.getParameter("precision"));
+        if (!validation.isValid()) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            writeError(response, validation.getErrorMessage(), ndjson);
+            return;
+        }
+        
+        int number = validation.getNumber();
+        AdmissionController.Permit permit;
+        try {
+            // Computed on the container thread, so a request is shed at once rather than waiting for budget
+            permit = admissionController.tryAcquire(operationRunner.estimateCost(number, validation.getOperations(),
+                    validation.getPrecision()));
+        } catch (AdmissionException e) {
+            operationMetrics.recordShed();
+            response.setStatus(e.getStatus());
+            response.setHeader("Retry-After", String.valueOf(e.getRetryAfterSeconds()));
+            writeError(response, e.getMessage(), ndjson);
+            return;
+        }
+        try {
+            CancellationToken token = CancellationToken.withTimeout(timeoutMillis);
+            Map<String, OperationResult> results = operationRunner.run(number, validation.getOperations(),
+                    validation.getPrecision(), token);
+            if (token.isCancelled()) {
+                operationMetrics.recordTimeout();
+                response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                writeError(response, "Calculation timed out, please try a smaller number", ndjson);
+                return;
+            }
+            try {
+                writeResults(response, number, results, ndjson);
+            } catch (IOException e) {
+                // The client has gone away; stop results that are still being generated
+                token.cancel("client disconnected");
+                throw e;
+            }
+        } finally {
+            permit.release();
+        }
+    }
+    
+    /**
+     * Streams the results as one JSON document or as one NDJSON line per operation
+     */
+    private void writeResults(HttpServletResponse response, int number, Map<String, OperationResult> results,
+            boolean ndjson) throws IOException {
+        response.setBufferSize(RESPONSE_BUFFER_SIZE);
+        PageWriter page = new PageWriter(response.getOutputStream());
+        JsonWriter json = new JsonWriter(page);
+        if (ndjson) {
+            for (Map.Entry<String, OperationResult> entry : results.entrySet()) {
+                long start = System.nanoTime();
+                json.beginObject().name("number").value(number);
+                writeResult(json, entry.getKey(), entry.getValue());
+                json.endObject().endLine();
+                long rendered = System.nanoTime();
+                json.flush();
+                operationMetrics.record(entry.getKey(), number, OperationMetrics.Phase.RENDER, rendered - start);
+                operationMetrics.record(entry.getKey(), number, OperationMetrics.Phase.WRITE,
+                        System.nanoTime() - rendered);
+            }
+        } else {
+            json.beginObject().name("number").value(number).name("results").beginArray();
+            for (Map.Entry<String, OperationResult> entry : results.entrySet()) {
+                long start = System.nanoTime();
+                json.beginObject();
+                writeResult(json, entry.getKey(), entry.getValue());
+                json.endObject();
+                operationMetrics.record(entry.getKey(), number, OperationMetrics.Phase.RENDER,
+                        System.nanoTime() - start);
+            }
+            json.endArray().endObject();
+        }
+        json.flush();
+    }
+    
+    /**
+     * Writes the members describing one operation result. The error flag comes
+     * last so a result that fails while streaming can still be reported.
+     */
+    private void writeResult(JsonWriter json, String operationType, OperationResult result) throws IOException {
+        writeResult(json, operationFactory, operationType, result);
+    }
+    
+    /**
+     * Writes the members describing one operation result
+     * @param json writer positioned inside an object
+     * @param operationFactory factory naming the known operations
+     * @param operationType the operation type
+     * @param result the result to stream
+     * @throws IOException if the output fails
+     */
+    static void writeResult(JsonWriter json, OperationFactory operationFactory, String operationType,
+            OperationResult result) throws IOException {
+        json.name("operation").value(operationType);
+        if (operationFactory.getAvailableOperations().contains(operationType)) {
+            json.name("name").value(operationFactory.getOperation(operationType).getOperationName());
+        }
+        
+        boolean[] failed = {result.isError()};
+        json.name("result").value(out -> {
+            try {
+                result.writeTo(out);
+            } catch (RuntimeException e) {
+                failed[0] = true;
+                out.append(" Error: ").append(String.valueOf(e.getMessage()));
+            }
+        });
+        json.name("error").value(failed[0]);
+    }
+    
+    private void writeError(HttpServletResponse response, String message, boolean ndjson) throws IOException {
+        PageWriter page = new PageWriter(response.getOutputStream());
+        JsonWriter json = new JsonWriter(page);
+        json.beginObject().name("error").value(message).endObject();
+        if (ndjson) {
+            json.endLine();
+        }
+        json.flush();
+    }
+    
+    /**
+     * Picks the response media type from an Accept header, honouring the client's
+     * order of preference
+     * @param accept the Accept header, or null
+     * @return JSON or NDJSON, or null if the client accepts neither
+     */
+    static String negotiate(String accept) {
+        if (accept == null || accept.trim().isEmpty()) {
+            return JSON;
+        }
+        for (String range : accept.split(",")) {
+            String[] parts = range.split(";");
+            String type = parts[0].trim();
+            if (isRejected(parts)) {
+                continue;
+            }
+            if (type.equalsIgnoreCase(NDJSON) || type.equalsIgnoreCase("application/ndjson")) {
+                return NDJSON;
+            }
+            if (type.equalsIgnoreCase(JSON) || type.equalsIgnoreCase("application/*") || type.equals("*/*")) {
+                return JSON;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Whether a media range carries a quality of zero, which excludes it
+     */
+    static boolean isRejected(String[] parts) {
+        for (int i = 1; i < parts.length; i++) {
+            String parameter = parts[i].trim();
+            if (parameter.startsWith("q=")) {
+                try {
+                    return Double.parseDouble(parameter.substring(2)) <= 0;
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+}
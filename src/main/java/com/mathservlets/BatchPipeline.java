@@ -0,0 +1,237 @@
+package com.mathservlets;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs the items of one batch through a bounded, ordered, parallel pipeline.
+ * Items are read, admitted and started on the compute pool while the results of
+ * earlier items are written in input order. At most a window of items is in flight;
+ * when it is full the reader waits for the oldest item, so a slow client or a busy
+ * pool holds back reading the batch instead of growing a backlog in memory.
+ * An item keeps its admission permit until its results have been written, since
+ * large results are generated while they are written.
+ */
+public class BatchPipeline {
+    
+    private final OperationRunner runner;
+    private final ComputeExecutor executor;
+    private final AdmissionController admissionController;
+    private final int window;
+    private final long itemTimeoutMillis;
+    private final Deque<Pending> inFlight;
+    private long written;
+    private long failed;
+    
+    /**
+     * Receives the results of a batch in input order
+     */
+    public interface ResultSink {
+        
+        /**
+         * Writes the results of one item
+         * @param item the item
+         * @param results results keyed by operation type, or null if the item is invalid
+         * @throws IOException if the output fails
+         */
+        void write(BatchReader.Item item, Map<String, OperationResult> results) throws IOException;
+        
+        /**
+         * Sends what has been written so far to the client
+         * @throws IOException if the output fails
+         */
+        void flush() throws IOException;
+    }
+    
+    /**
+     * Creates the pipeline of one batch
+     * @param runner runner evaluating the operations of an item, normally sequential
+     * @param executor pool running items side by side, or null to run them on the calling thread
+     * @param admissionController controller admitting each item by its cost, or null
+     * @param window most items in flight at once
+     * @param itemTimeoutMillis deadline of each item in milliseconds
+     */
+    public BatchPipeline(OperationRunner runner, ComputeExecutor executor, AdmissionController admissionController,
+            int window, long itemTimeoutMillis) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("Batch window must be positive");
+        }
+        this.runner = runner;
+        this.executor = executor;
+        this.admissionController = admissionController;
+        this.window = window;
+        this.itemTimeoutMillis = itemTimeoutMillis;
+        this.inFlight = new ArrayDeque<>(window);
+    }
+    
+    /**
+     * Runs every item of the batch and writes the results in input order
+     * @param reader source of the items
+     * @param sink destination of the results
+     * @throws IOException if reading the batch or writing the results fails
+     * @throws AdmissionException if an item cannot be admitted even with nothing of
+     *         this batch in flight; the results of the items before it have been written
+     */
+    public void run(BatchReader reader, ResultSink sink) throws IOException, AdmissionException {
+        try {
+            BatchReader.Item item;
+            while (true) {
+                writeCompleted(sink);
+                // Results already written should not wait on a client that sends the batch slowly
+                if (!reader.ready()) {
+                    sink.flush();
+                }
+                item = reader.next();
+                if (item == null) {
+                    break;
+                }
+                if (inFlight.size() >= window) {
+                    writeOldest(sink);
+                }
+                start(item, sink);
+            }
+            while (!inFlight.isEmpty()) {
+                writeOldest(sink);
+            }
+            sink.flush();
+        } finally {
+            // Only left over when the batch stops early; nobody will read these results
+            for (Pending pending : inFlight) {
+                pending.token.cancel("batch stopped");
+                pending.release();
+            }
+        }
+    }
+    
+    /**
+     * Admits an item and starts it on the pool. When the budget or the pool is
+     * exhausted the oldest items of this batch are finished first to make room;
+     * only with nothing of this batch in flight does the item wait for budget.
+     */
+    private void start(BatchReader.Item item, ResultSink sink) throws IOException, AdmissionException {
+        if (!item.isValid()) {
+            inFlight.addLast(new Pending(item, CancellationToken.NONE, CompletableFuture.completedFuture(null)));
+            return;
+        }
+        ValidationResult validation = item.getValidation();
+        AdmissionController.Permit permit = null;
+        while (admissionController != null) {
+            long cost = runner.estimateCost(validation.getNumber(), validation.getOperations(),
+                    validation.getPrecision());
+            try {
+                permit = inFlight.isEmpty() ? admissionController.acquire(cost) : admissionController.tryAcquire(cost);
+                break;
+            } catch (AdmissionException e) {
+                if (inFlight.isEmpty()) {
+                    throw e;
+                }
+                writeOldest(sink);
+            }
+        }
+        
+        CancellationToken token = CancellationToken.withTimeout(itemTimeoutMillis);
+        CompletableFuture<Map<String, OperationResult>> future = new CompletableFuture<>();
+        Runnable task = () -> {
+            try {
+                future.complete(runner.run(validation.getNumber(), validation.getOperations(),
+                        validation.getPrecision(), token));
+            } catch (RuntimeException | Error e) {
+                future.completeExceptionally(e);
+            }
+        };
+        Pending pending = new Pending(item, token, future);
+        pending.permit = permit;
+        inFlight.addLast(pending);
+        
+        while (true) {
+            if (executor == null) {
+                task.run();
+                return;
+            }
+            try {
+                executor.execute(task);
+                return;
+            } catch (RejectedExecutionException e) {
+                // The pool is shared with other batches; with nothing of ours ahead, run it here
+                if (inFlight.size() == 1) {
+                    task.run();
+                    return;
+                }
+                writeOldest(sink);
+            }
+        }
+    }
+    
+    private void writeCompleted(ResultSink sink) throws IOException {
+        while (!inFlight.isEmpty() && inFlight.peekFirst().future.isDone()) {
+            writeOldest(sink);
+        }
+    }
+    
+    /**
+     * Waits for the oldest item in flight, writes its results and releases its admission
+     */
+    private void writeOldest(ResultSink sink) throws IOException {
+        Pending oldest = inFlight.peekFirst();
+        if (!oldest.future.isDone()) {
+            sink.flush();
+        }
+        Map<String, OperationResult> results = oldest.future.join();
+        inFlight.removeFirst();
+        try {
+            sink.write(oldest.item, results);
+        } finally {
+            oldest.release();
+        }
+        written++;
+        if (!oldest.item.isValid()) {
+            failed++;
+        }
+    }
+    
+    /**
+     * Gets the number of items whose results have been written
+     * @return item count
+     */
+    public long getWritten() {
+        return written;
+    }
+    
+    /**
+     * Gets the number of items written as invalid
+     * @return item count
+     */
+    public long getFailed() {
+        return failed;
+    }
+    
+    public int getWindow() {
+        return window;
+    }
+    
+    /**
+     * An item that has been started, with the token that stops it and its admission
+     */
+    private static class Pending {
+        private final BatchReader.Item item;
+        private final CancellationToken token;
+        private final CompletableFuture<Map<String, OperationResult>> future;
+        private AdmissionController.Permit permit;
+        
+        Pending(BatchReader.Item item, CancellationToken token, CompletableFuture<Map<String, OperationResult>> future) {
+            this.item = item;
+            this.token = token;
+            this.future = future;
+        }
+        
+        void release() {
+            if (permit != null) {
+                permit.release();
+            }
+        }
+    }
+}
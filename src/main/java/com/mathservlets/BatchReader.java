@@ -0,0 +1,367 @@
+package com.mathservlets;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the items of a batch request one at a time, so a batch of any size is
+ * never held in memory. Each item is a line of CSV or of newline-delimited JSON:
+ * <pre>
+ * number,operation,operation...
+ * {"number": 12, "operations": ["prime", "factorial"], "precision": 20}
+ * </pre>
+ * CSV rows without operations, and JSON items without operations or precision, use
+ * the defaults of the request. A CSV header row starting with "number" and blank
+ * lines are skipped. Items that cannot be parsed or fail validation are returned
+ * as invalid items, so one bad line does not stop the batch.
+ */
+public class BatchReader {
+    
+    /** Longest line accepted; longer lines are skipped and reported as invalid */
+    static final int MAX_LINE_LENGTH = 4096;
+    
+    /**
+     * Format of the batch body
+     */
+    public enum Format {
+        CSV, NDJSON
+    }
+    
+    private final Reader in;
+    private final Format format;
+    private final String[] defaultOperations;
+    private final String defaultPrecision;
+    private final StringBuilder line = new StringBuilder();
+    private long lineNumber;
+    private boolean firstLine = true;
+    private boolean endOfInput;
+    
+    /**
+     * Creates a batch reader
+     * @param in the body of the request, ideally buffered
+     * @param format format of the body
+     * @param defaultOperations operations for items that name none, or null
+     * @param defaultPrecision precision for items that give none, or null
+     */
+    public BatchReader(Reader in, Format format, String[] defaultOperations, String defaultPrecision) {
+        this.in = in;
+        this.format = format;
+        this.defaultOperations = defaultOperations;
+        this.defaultPrecision = defaultPrecision;
+    }
+    
+    /**
+     * Reads the next item
+     * @return the item, or null at the end of the batch
+     * @throws IOException if the body cannot be read
+     */
+    public Item next() throws IOException {
+        while (!endOfInput) {
+            boolean complete = readLine();
+            if (endOfInput && line.length() == 0) {
+                return null;
+            }
+            lineNumber++;
+            if (!complete) {
+                return Item.invalid(lineNumber, "Line is longer than " + MAX_LINE_LENGTH + " characters");
+            }
+            String text = line.toString().trim();
+            boolean header = firstLine;
+            firstLine = false;
+            if (text.isEmpty() || header && format == Format.CSV && isHeader(text)) {
+                continue;
+            }
+            return format == Format.CSV ? parseCsv(text) : parseJson(text);
+        }
+        return null;
+    }
+    
+    /**
+     * Checks whether the next item can be read without waiting for the client
+     * @return true if input is buffered
+     * @throws IOException if the body cannot be read
+     */
+    public boolean ready() throws IOException {
+        return !endOfInput && in.ready();
+    }
+    
+    /**
+     * Gets the number of lines read so far, including skipped ones
+     * @return line count
+     */
+    public long getLineNumber() {
+        return lineNumber;
+    }
+    
+    /**
+     * Reads one line into the buffer, dropping a carriage return and a byte order mark
+     * @return false if the line was too long and has been cut short
+     */
+    private boolean readLine() throws IOException {
+        line.setLength(0);
+        boolean complete = true;
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c == -1) {
+                endOfInput = true;
+                break;
+            }
+            if (line.length() < MAX_LINE_LENGTH) {
+                line.append((char) c);
+            } else {
+                complete = false;
+            }
+        }
+        if (line.length() > 0 && line.charAt(line.length() - 1) == '\r') {
+            line.setLength(line.length() - 1);
+        }
+        if (firstLine && line.length() > 0 && line.charAt(0) == '\uFEFF') {
+            line.deleteCharAt(0);
+        }
+        return complete;
+    }
+    
+    private static boolean isHeader(String text) {
+        return text.regionMatches(true, 0, "number", 0, 6) || text.regionMatches(true, 0, "\"number\"", 0, 8);
+    }
+    
+    private Item parseCsv(String text) {
+        String[] fields = text.split(",", -1);
+        String number = unquote(fields[0]);
+        List<String> operations = new ArrayList<>(fields.length - 1);
+        for (int i = 1; i < fields.length; i++) {
+            String operation = unquote(fields[i]);
+            if (!operation.isEmpty()) {
+                operations.add(operation);
+            }
+        }
+        return item(number, operations.isEmpty() ? defaultOperations : operations.toArray(new String[0]),
+                defaultPrecision);
+    }
+    
+    private static String unquote(String field) {
+        String value = field.trim();
+        if (value.length() >= 2 && value.charAt(0) == '"' && value.charAt(value.length() - 1) == '"') {
+            value = value.substring(1, value.length() - 1).replace("\"\"", "\"").trim();
+        }
+        return value;
+    }
+    
+    private Item parseJson(String text) {
+        Map<String, Object> members;
+        try {
+            members = new ObjectParser(text).parse();
+        } catch (IllegalArgumentException e) {
+            return Item.invalid(lineNumber, "Invalid JSON: " + e.getMessage());
+        }
+        
+        Object number = members.get("number");
+        if (number instanceof List) {
+            return Item.invalid(lineNumber, "Invalid number format");
+        }
+        Object operations = members.get("operations");
+        String[] operationTypes;
+        if (operations == null) {
+            operationTypes = defaultOperations;
+        } else if (operations instanceof List) {
+            List<?> list = (List<?>) operations;
+            operationTypes = new String[list.size()];
+            for (int i = 0; i < operationTypes.length; i++) {
+                operationTypes[i] = String.valueOf(list.get(i));
+            }
+        } else {
+            operationTypes = new String[] {operations.toString()};
+        }
+        Object precision = members.containsKey("precision") ? members.get("precision") : defaultPrecision;
+        if (precision instanceof List) {
+            return Item.invalid(lineNumber, "Invalid precision format");
+        }
+        return item(number == null ? null : number.toString(), operationTypes,
+                precision == null ? null : precision.toString());
+    }
+    
+    private Item item(String number, String[] operations, String precision) {
+        return new Item(lineNumber, number, ValidationResult.validate(number, operations, precision));
+    }
+    
+    /**
+     * One item of a batch: a number with the operations to run on it
+     */
+    public static final class Item {
+        private final long line;
+        private final String numberText;
+        private final ValidationResult validation;
+        
+        Item(long line, String numberText, ValidationResult validation) {
+            this.line = line;
+            this.numberText = numberText;
+            this.validation = validation;
+        }
+        
+        static Item invalid(long line, String message) {
+            return new Item(line, null, ValidationResult.error(message));
+        }
+        
+        /**
+         * Gets the line of the batch the item was read from
+         * @return line number, starting at 1
+         */
+        public long getLine() {
+            return line;
+        }
+        
+        /**
+         * Gets the number as it was written in the batch
+         * @return the number text, or null if the line could not be parsed
+         */
+        public String getNumberText() {
+            return numberText;
+        }
+        
+        public ValidationResult getValidation() {
+            return validation;
+        }
+        
+        public boolean isValid() {
+            return validation.isValid();
+        }
+    }
+    
+    /**
+     * Parser for the one flat JSON object of a batch line. Values are kept as text,
+     * or as lists of text for arrays, and validated like request parameters.
+     */
+    private static class ObjectParser {
+        private final String text;
+        private int position;
+        
+        ObjectParser(String text) {
+            this.text = text;
+        }
+        
+        Map<String, Object> parse() {
+            Map<String, Object> members = new HashMap<>();
+            expect('{');
+            if (!consume('}')) {
+                do {
+                    String name = string();
+                    expect(':');
+                    members.put(name, value(true));
+                } while (consume(','));
+                expect('}');
+            }
+            skipWhitespace();
+            if (position < text.length()) {
+                throw new IllegalArgumentException("unexpected text after the object");
+            }
+            return members;
+        }
+        
+        private Object value(boolean allowArray) {
+            skipWhitespace();
+            if (position >= text.length()) {
+                throw new IllegalArgumentException("value expected");
+            }
+            char c = text.charAt(position);
+            if (c == '"') {
+                return string();
+            }
+            if (c == '[' && allowArray) {
+                position++;
+                List<Object> values = new ArrayList<>();
+                if (!consume(']')) {
+                    do {
+                        values.add(value(false));
+                    } while (consume(','));
+                    expect(']');
+                }
+                return values;
+            }
+            int start = position;
+            while (position < text.length() && "-+.eE0123456789truefalsn".indexOf(text.charAt(position)) >= 0) {
+                position++;
+            }
+            String literal = text.substring(start, position);
+            if (literal.isEmpty()) {
+                throw new IllegalArgumentException("unexpected '" + c + "' at " + (start + 1));
+            }
+            return literal.equals("null") ? null : literal;
+        }
+        
+        private String string() {
+            expect('"');
+            StringBuilder value = new StringBuilder();
+            while (position < text.length()) {
+                char c = text.charAt(position++);
+                if (c == '"') {
+                    return value.toString();
+                }
+                if (c != '\\') {
+                    value.append(c);
+                    continue;
+                }
+                if (position >= text.length()) {
+                    break;
+                }
+                char escaped = text.charAt(position++);
+                switch (escaped) {
+                    case 'n':
+                        value.append('\n');
+                        break;
+                    case 't':
+                        value.append('\t');
+                        break;
+                    case 'r':
+                        value.append('\r');
+                        break;
+                    case 'b':
+                        value.append('\b');
+                        break;
+                    case 'f':
+                        value.append('\f');
+                        break;
+                    case 'u':
+                        if (position + 4 > text.length()) {
+                            throw new IllegalArgumentException("incomplete escape");
+                        }
+                        try {
+                            value.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+                        } catch (NumberFormatException e) {
+                            throw new IllegalArgumentException("invalid escape");
+                        }
+                        position += 4;
+                        break;
+                    default:
+                        value.append(escaped);
+                        break;
+                }
+            }
+            throw new IllegalArgumentException("unterminated string");
+        }
+        
+        private void expect(char expected) {
+            if (!consume(expected)) {
+                throw new IllegalArgumentException("'" + expected + "' expected at " + (position + 1));
+            }
+        }
+        
+        private boolean consume(char expected) {
+            skipWhitespace();
+            if (position < text.length() && text.charAt(position) == expected) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+        
+        private void skipWhitespace() {
+            while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+                position++;
+            }
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package com.mathservlets;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Batch endpoint for machine clients.
+ * Accepts a POSTed list of numbers and operations as CSV or newline-delimited JSON
+ * and streams one result line per item back in input order. The body is read and
+ * answered item by item through a {@link BatchPipeline}, so memory use does not grow
+ * with the size of the batch.
+ */
+public class BatchServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+    
+    static final String CSV = "text/csv";
+    
+    private static final int RESPONSE_BUFFER_SIZE = 8192;
+    private static final int DEFAULT_WINDOW = 32;
+    private static final int DEFAULT_QUEUE_CAPACITY = 128;
+    private static final int DEFAULT_TIMEOUT_MILLIS = 30000;
+    
+    private transient OperationFactory operationFactory;
+    private transient OperationRunner operationRunner;
+    private transient OperationMetrics operationMetrics;
+    private transient AdmissionController admissionController;
+    private transient ComputeExecutor computeExecutor;
+    private int window = DEFAULT_WINDOW;
+    private int timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    
+    @Override
+    public void init() throws ServletException {
+        // The factory and its prime sieve are built once per application, normally by WarmUpListener
+        try {
+            operationFactory = OperationFactory.forContext(getServletContext());
+        } catch (IllegalArgumentException e) {
+            throw new ServletException("Invalid sieve configuration: " + e.getMessage(), e);
+        }
+        operationMetrics = OperationMetrics.forContext(getServletContext(), operationFactory.getAvailableOperations());
+        try {
+            admissionController = AdmissionController.forContext(getServletContext());
+        } catch (IllegalArgumentException e) {
+            throw new ServletException("Invalid admission configuration: " + e.getMessage(), e);
+        }
+        // Items run side by side on the pool; the operations of one item run one after another
+        operationRunner = new OperationRunner(operationFactory, 0, operationMetrics,
+                admissionController.getMaxOperationCost());
+        
+        try {
+            window = InitParameters.intValue(this::getInitParameter, "batchWindow", DEFAULT_WINDOW);
+            if (window <= 0) {
+                throw new IllegalArgumentException("Init parameter batchWindow must be positive: " + window);
+            }
+            timeoutMillis = InitParameters.intValue(this::getInitParameter, "timeoutMillis", DEFAULT_TIMEOUT_MILLIS);
+            computeExecutor = ComputeExecutor.create(
+                    InitParameters.intValue(this::getInitParameter, "batchThreads",
+                            Runtime.getRuntime().availableProcessors()),
+                    InitParameters.intValue(this::getInitParameter, "batchQueueCapacity", DEFAULT_QUEUE_CAPACITY), false);
+        } catch (IllegalArgumentException e) {
+            throw new ServletException("Invalid batch configuration: " + e.getMessage(), e);
+        }
+    }
+    
+    @Override
+    public void destroy() {
+        if (computeExecutor != null) {
+            computeExecutor.shutdown();
+        }
+    }
+    
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        BatchReader.Format input = inputFormat(request.getContentType());
+        if (input == null) {
+            response.setStatus(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE);
+            response.setContentType(ApiServlet.JSON + ";charset=UTF-8");
+            writeError(response, "Batches must be sent as " + CSV + " or " + ApiServlet.NDJSON);
+            return;
+        }
+        BatchReader.Format output = negotiate(request.getHeader("Accept"), input);
+        if (output == null) {
+            response.setStatus(HttpServletResponse.SC_NOT_ACCEPTABLE);
+            response.setContentType(ApiServlet.JSON + ";charset=UTF-8");
+            writeError(response, "Supported media types are " + CSV + " and " + ApiServlet.NDJSON);
+            return;
+        }
+        if (request.getCharacterEncoding() == null) {
+            request.setCharacterEncoding("UTF-8");
+        }
+        
+        // Only the query string holds parameters; the body is the batch
+        BatchReader reader = new BatchReader(new BufferedReader(request.getReader()), input,
+                request.getParameterValues("operations"), request.getParameter("precision"));
+        BatchPipeline pipeline = new BatchPipeline(operationRunner, computeExecutor, admissionController, window,
+                timeoutMillis);
+        
+        response.setContentType((output == BatchReader.Format.CSV ? CSV : ApiServlet.NDJSON) + ";charset=UTF-8");
+        response.setBufferSize(RESPONSE_BUFFER_SIZE);
+        PageWriter page = new PageWriter(response.getOutputStream());
+        BatchWriter writer = output == BatchReader.Format.CSV ? new CsvWriter(page) : new NdjsonWriter(page);
+        writer.begin();
+        try {
+            pipeline.run(reader, writer);
+        } catch (AdmissionException e) {
+            operationMetrics.recordShed();
+            if (pipeline.getWritten() == 0 && !response.isCommitted()) {
+                response.setStatus(e.getStatus());
+                response.setHeader("Retry-After", String.valueOf(e.getRetryAfterSeconds()));
+            }
+            writer.end(pipeline, e.getMessage());
+            page.flush();
+            return;
+        }
+        writer.end(pipeline, null);
+        page.flush();
+    }
+    
+    /**
+     * Picks the format of the batch from the request's Content-Type
+     * @param contentType the Content-Type header, or null
+     * @return the format, or null if it is not supported
+     */
+    static BatchReader.Format inputFormat(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        String type = contentType.split(";")[0].trim();
+        if (type.equalsIgnoreCase(CSV)) {
+            return BatchReader.Format.CSV;
+        }
+        if (type.equalsIgnoreCase(ApiServlet.NDJSON) || type.equalsIgnoreCase("application/ndjson")) {
+            return BatchReader.Format.NDJSON;
+        }
+        return null;
+    }
+    
+    /**
+     * Picks the format of the results from an Accept header, answering in the format
+     * of the batch unless the client prefers the other
+     * @param accept the Accept header, or null
+     * @param input the format of the batch
+     * @return the format, or null if the client accepts neither
+     */
+    static BatchReader.Format negotiate(String accept, BatchReader.Format input) {
+        if (accept == null || accept.trim().isEmpty()) {
+            return input;
+        }
+        for (String range : accept.split(",")) {
+            String[] parts = range.split(";");
+            String type = parts[0].trim();
+            if (ApiServlet.isRejected(parts)) {
+                continue;
+            }
+            if (type.equalsIgnoreCase(CSV)) {
+                return BatchReader.Format.CSV;
+            }
+            if (type.equalsIgnoreCase(ApiServlet.NDJSON) || type.equalsIgnoreCase("application/ndjson")) {
+                return BatchReader.Format.NDJSON;
+            }
+            if (type.equals("*/*")) {
+                return input;
+            }
+        }
+        return null;
+    }
+    
+    private void writeError(HttpServletResponse response, String message) throws IOException {
+        PageWriter page = new PageWriter(response.getOutputStream());
+        JsonWriter json = new JsonWriter(page);
+        json.beginObject().name("error").value(message).endObject();
+        json.flush();
+    }
+    
+    /**
+     * Writes batch results in one of the response formats
+     */
+    private abstract static class BatchWriter implements BatchPipeline.ResultSink {
+        protected final PageWriter page;
+        
+        BatchWriter(PageWriter page) {
+            this.page = page;
+        }
+        
+        void begin() throws IOException {
+        }
+        
+        /**
+         * Writes the end of the results
+         * @param pipeline the pipeline, for its counts
+         * @param error why the batch stopped early, or null if it was completed
+         */
+        abstract void end(BatchPipeline pipeline, String error) throws IOException;
+        
+        @Override
+        public void flush() throws IOException {
+            page.flush();
+        }
+    }
+    
+    /**
+     * One JSON object per item, then a summary line
+     */
+    private class NdjsonWriter extends BatchWriter {
+        private final JsonWriter json;
+        
+        NdjsonWriter(PageWriter page) {
+            super(page);
+            this.json = new JsonWriter(page);
+        }
+        
+        @Override
+        public void write(BatchReader.Item item, Map<String, OperationResult> results) throws IOException {
+            json.beginObject().name("line").value(item.getLine());
+            if (results == null) {
+                json.name("error").value(item.getValidation().getErrorMessage());
+            } else {
+                json.name("number").value(item.getValidation().getNumber()).name("results").beginArray();
+                for (Map.Entry<String, OperationResult> entry : results.entrySet()) {
+                    json.beginObject();
+                    ApiServlet.writeResult(json, operationFactory, entry.getKey(), entry.getValue());
+                    json.endObject();
+                }
+                json.endArray();
+            }
+            json.endObject().endLine();
+        }
+        
+        @Override
+        void end(BatchPipeline pipeline, String error) throws IOException {
+            json.beginObject().name("done").value(error == null).name("items").value(pipeline.getWritten())
+                    .name("invalid").value(pipeline.getFailed());
+            if (error != null) {
+                json.name("error").value(error);
+            }
+            json.endObject().endLine();
+        }
+    }
+    
+    /**
+     * One CSV row per operation of each item; an invalid item gets a row with its error
+     */
+    private class CsvWriter extends BatchWriter {
+        private final Appendable quoted = new QuotedAppendable();
+        
+        CsvWriter(PageWriter page) {
+            super(page);
+        }
+        
+        @Override
+        void begin() throws IOException {
+            page.write("line,number,operation,result,error\r\n");
+        }
+        
+        @Override
+        public void write(BatchReader.Item item, Map<String, OperationResult> results) throws IOException {
+            if (results == null) {
+                String number = item.getNumberText();
+                page.write(item.getLine() + ",");
+                writeField(number == null ? "" : number);
+                page.write(",,");
+                writeField(item.getValidation().getErrorMessage());
+                page.write(",true\r\n");
+                return;
+            }
+            for (Map.Entry<String, OperationResult> entry : results.entrySet()) {
+                page.write(item.getLine() + "," + item.getValidation().getNumber() + ",");
+                writeField(entry.getKey());
+                page.write(",\"");
+                boolean failed = entry.getValue().isError();
+                try {
+                    entry.getValue().writeTo(quoted);
+                } catch (RuntimeException e) {
+                    failed = true;
+                    quoted.append(" Error: ").append(String.valueOf(e.getMessage()));
+                }
+                page.write("\"," + failed + "\r\n");
+            }
+        }
+        
+        @Override
+        void end(BatchPipeline pipeline, String error) throws IOException {
+            if (error != null) {
+                // A row without a line number reports why the batch stopped
+                page.write(",,,");
+                writeField(error);
+                page.write(",true\r\n");
+            }
+        }
+        
+        /**
+         * Writes a field, quoting it only if it holds a separator, quote or line break
+         */
+        private void writeField(String value) throws IOException {
+            boolean plain = true;
+            for (int i = 0; i < value.length() && plain; i++) {
+                char c = value.charAt(i);
+                plain = c != ',' && c != '"' && c != '\r' && c != '\n';
+            }
+            if (plain) {
+                page.write(value);
+                return;
+            }
+            page.write('"');
+            quoted.append(value);
+            page.write('"');
+        }
+        
+        /**
+         * Doubles the quotes in text streamed into a quoted CSV field
+         */
+        private class QuotedAppendable implements Appendable {
+            
+            @Override
+            public Appendable append(CharSequence text) throws IOException {
+                return append(text, 0, text.length());
+            }
+            
+            @Override
+            public Appendable append(CharSequence text, int start, int end) throws IOException {
+                int from = start;
+                for (int i = start; i < end; i++) {
+                    if (text.charAt(i) == '"') {
+                        page.append(text, from, i + 1);
+                        from = i;
+                    }
+                }
+                page.append(text, from, end);
+                return this;
+            }
+            
+            @Override
+            public Appendable append(char c) throws IOException {
+                if (c == '"') {
+                    page.write('"');
+                }
+                page.write(c);
+                return this;
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.mathservlets;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cooperative cancellation of one request's calculations.
+ * A token is tripped explicitly, for example when the client goes away, or by its
+ * deadline passing. Long-running loops call {@link #checkpoint()} at intervals that
+ * are cheap compared to the work between them, and stop by throwing
+ * CancellationException once the token has tripped.
+ */
+public final class CancellationToken {
+    
+    /** A token that never trips, for callers without a deadline */
+    public static final CancellationToken NONE = new CancellationToken(false, 0);
+    
+    private final boolean hasDeadline;
+    private final long deadline;
+    private volatile String reason;
+    
+    private CancellationToken(boolean hasDeadline, long deadline) {
+        this.hasDeadline = hasDeadline;
+        this.deadline = deadline;
+    }
+    
+    /**
+     * Creates a token that can only be tripped by {@link #cancel(String)}
+     * @return CancellationToken instance
+     */
+    public static CancellationToken create() {
+        return new CancellationToken(false, 0);
+    }
+    
+    /**
+     * Creates a token that also trips once the given time has passed
+     * @param timeoutMillis time from now until the deadline
+     * @return CancellationToken instance
+     */
+    public static CancellationToken withTimeout(long timeoutMillis) {
+        return new CancellationToken(true, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+    }
+    
+    /**
+     * Trips the token. The first reason given is kept; NONE cannot be tripped.
+     * @param why reason reported by checkpoints
+     */
+    public void cancel(String why) {
+        if (this != NONE && reason == null) {
+            reason = why;
+        }
+    }
+    
+    /**
+     * Checks whether the token has been tripped or its deadline has passed
+     * @return true if calculations should stop
+     */
+    public boolean isCancelled() {
+        if (reason != null) {
+            return true;
+        }
+        if (hasDeadline && System.nanoTime() - deadline >= 0) {
+            cancel("deadline exceeded");
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Stops the calling calculation if the token has tripped
+     * @throws CancellationException if the token has been tripped or its deadline has passed
+     */
+    public void checkpoint() {
+        if (isCancelled()) {
+            throw new CancellationException("Calculation cancelled: " + reason);
+        }
+    }
+    
+    /**
+     * Gets why the token tripped
+     * @return reason, or null if it has not tripped
+     */
+    public String getReason() {
+        isCancelled();
+        return reason;
+    }
+}
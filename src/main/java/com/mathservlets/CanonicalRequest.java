@@ -0,0 +1,133 @@
+package com.mathservlets;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.List;
+
+/**
+ * Canonical form of a calculation request.
+ * Every operation is a pure function of its input number and precision, so a request
+ * is fully identified by the number, the precision and the set of operations. This class gives that
+ * identity a single query string, so equal requests share one cacheable URL,
+ * and a strong entity tag derived from it.
+ */
+public class CanonicalRequest {
+    
+    /**
+     * Version of the rendered results. Bump it whenever result text or page markup
+     * changes, so clients holding old entity tags fetch the new representation.
+     */
+    static final int RESULT_VERSION = 1;
+    
+    /** Cache-Control for canonical results, which never change for a given URL */
+    public static final String CACHE_CONTROL = "public, max-age=31536000, immutable";
+    
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    
+    private final String queryString;
+    private final String entityTag;
+    
+    /**
+     * Creates the canonical form of a request
+     * @param number the input number
+     * @param operations the operation types in display order, without duplicates
+     */
+    public CanonicalRequest(int number, List<String> operations) {
+        this(number, 0, operations);
+    }
+    
+    /**
+     * Creates the canonical form of a request with a precision
+     * @param number the input number
+     * @param precision decimal places, or 0 for the default, which is left out of the query
+     * @param operations the operation types in display order, without duplicates
+     */
+    public CanonicalRequest(int number, int precision, List<String> operations) {
+        StringBuilder query = new StringBuilder("number=").append(number);
+        if (precision > 0) {
+            query.append("&precision=").append(precision);
+        }
+        for (String operation : operations) {
+            query.append("&operations=").append(encode(operation));
+        }
+        this.queryString = query.toString();
+        this.entityTag = "\"r" + RESULT_VERSION + "-" + Long.toHexString(fnv1a(queryString)) + "\"";
+    }
+    
+    /**
+     * Gets the canonical query string
+     * @return query string without the leading question mark
+     */
+    public String getQueryString() {
+        return queryString;
+    }
+    
+    /**
+     * Gets the strong entity tag of the result
+     * @return quoted entity tag
+     */
+    public String getEntityTag() {
+        return entityTag;
+    }
+    
+    /**
+     * Checks whether an If-None-Match header matches this request's entity tag.
+     * Uses the weak comparison the header calls for, so W/ prefixes added by
+     * compressing proxies still match.
+     * @param ifNoneMatch the header value, or null
+     * @return true if the client's cached copy is current
+     */
+    public boolean matches(String ifNoneMatch) {
+        return matches(ifNoneMatch, entityTag);
+    }
+    
+    /**
+     * Checks whether an If-None-Match header matches an entity tag, using weak comparison
+     * @param ifNoneMatch the header value, or null
+     * @param entityTag the quoted entity tag of the current representation
+     * @return true if the client's cached copy is current
+     */
+    static boolean matches(String ifNoneMatch, String entityTag) {
+        if (entityTag.startsWith("W/")) {
+            entityTag = entityTag.substring(2);
+        }
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            String candidate = tag.trim();
+            if (candidate.equals("*")) {
+                return true;
+            }
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals(entityTag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    /**
+     * 64-bit FNV-1a hash of the query string
+     */
+    private static long fnv1a(String text) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < text.length(); i++) {
+            hash ^= text.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+}
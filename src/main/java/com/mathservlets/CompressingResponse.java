@@ -0,0 +1,345 @@
+package com.mathservlets;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Response that gzips its body as it is written.
+ * The first bytes are held back until the body reaches the minimum size, so small
+ * responses go out as they are with a Content-Length. Once compression starts every
+ * flush is a gzip sync flush, so results that are streamed out still arrive as they
+ * are produced. A flush below the minimum size starts compression straight away for
+ * asynchronous requests, which stream, and is deferred for the others, which end soon.
+ */
+class CompressingResponse extends HttpServletResponseWrapper {
+    
+    private static final int GZIP_BUFFER_SIZE = 8192;
+    
+    private final HttpServletRequest request;
+    private final int level;
+    private final int minSize;
+    private CompressingStream stream;
+    private PrintWriter writer;
+    private long contentLength = -1;
+    private boolean errorSent;
+    
+    /**
+     * Wraps a response whose client accepts gzip
+     * @param request the request being answered
+     * @param response the response to compress
+     * @param level deflate level from 1 (fastest) to 9 (smallest)
+     * @param minSize bodies smaller than this many bytes are not compressed
+     */
+    CompressingResponse(HttpServletRequest request, HttpServletResponse response, int level, int minSize) {
+        super(response);
+        this.request = request;
+        this.level = level;
+        this.minSize = minSize;
+    }
+    
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        if (writer != null) {
+            throw new IllegalStateException("getWriter() has already been called for this response");
+        }
+        return stream();
+    }
+    
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        if (writer == null) {
+            if (stream != null) {
+                throw new IllegalStateException("getOutputStream() has already been called for this response");
+            }
+            writer = new PrintWriter(new OutputStreamWriter(stream(), getCharacterEncoding()));
+        }
+        return writer;
+    }
+    
+    private CompressingStream stream() {
+        if (stream == null) {
+            stream = new CompressingStream();
+        }
+        return stream;
+    }
+    
+    // The length of the body depends on whether it gets compressed, so it is applied later
+    
+    @Override
+    public void setContentLength(int length) {
+        contentLength = length;
+    }
+    
+    @Override
+    public void setContentLengthLong(long length) {
+        contentLength = length;
+    }
+    
+    @Override
+    public void setHeader(String name, String value) {
+        if ("Content-Length".equalsIgnoreCase(name)) {
+            contentLength = value == null ? -1 : Long.parseLong(value.trim());
+        } else {
+            super.setHeader(name, value);
+        }
+    }
+    
+    @Override
+    public void flushBuffer() throws IOException {
+        if (writer != null) {
+            writer.flush();
+        } else if (stream != null) {
+            stream.flush();
+        }
+    }
+    
+    @Override
+    public void resetBuffer() {
+        super.resetBuffer();
+        if (stream != null) {
+            stream.discard();
+        }
+    }
+    
+    @Override
+    public void reset() {
+        super.reset();
+        contentLength = -1;
+        if (stream != null) {
+            stream.discard();
+        }
+    }
+    
+    @Override
+    public void sendError(int status) throws IOException {
+        abandon();
+        super.sendError(status);
+    }
+    
+    @Override
+    public void sendError(int status, String message) throws IOException {
+        abandon();
+        super.sendError(status, message);
+    }
+    
+    @Override
+    public void sendRedirect(String location) throws IOException {
+        abandon();
+        super.sendRedirect(location);
+    }
+    
+    /**
+     * Drops the body written so far, so an error page or redirect replaces it
+     */
+    private void abandon() {
+        if (stream != null && stream.state == State.COMPRESSING && !isCommitted()) {
+            // Clears the Content-Encoding header along with the compressed bytes
+            super.reset();
+        }
+        if (stream != null) {
+            stream.discard();
+        }
+        errorSent = true;
+    }
+    
+    /**
+     * Writes out whatever is held back and ends the gzip stream. Called when the request
+     * returns from the filter chain, or when an asynchronous request is completed.
+     * @throws IOException if the output fails
+     */
+    void finish() throws IOException {
+        if (errorSent) {
+            return;
+        }
+        if (writer != null) {
+            writer.flush();
+        }
+        if (stream != null) {
+            stream.finish();
+        } else if (contentLength >= 0) {
+            super.setContentLengthLong(contentLength);
+        }
+    }
+    
+    /**
+     * Checks whether a response can be compressed now that its headers are known
+     */
+    private boolean compressible() {
+        int status = getStatus();
+        return !errorSent && status != SC_NO_CONTENT && status != SC_NOT_MODIFIED
+                && getHeader("Content-Encoding") == null
+                && CompressionFilter.isCompressible(getContentType());
+    }
+    
+    private enum State {
+        BUFFERING, IDENTITY, COMPRESSING, FINISHED
+    }
+    
+    /**
+     * Body stream that decides between identity and gzip once it knows enough
+     */
+    private class CompressingStream extends ServletOutputStream {
+        private State state = State.BUFFERING;
+        private byte[] buffer = new byte[Math.min(minSize, GZIP_BUFFER_SIZE)];
+        private int count;
+        private LeveledGzipStream gzip;
+        
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+        
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            switch (state) {
+                case BUFFERING:
+                    if (count + length <= minSize) {
+                        if (count + length > buffer.length) {
+                            buffer = Arrays.copyOf(buffer, Math.min(minSize, Math.max(count + length, buffer.length * 2)));
+                        }
+                        System.arraycopy(bytes, offset, buffer, count, length);
+                        count += length;
+                        return;
+                    }
+                    start();
+                    write(bytes, offset, length);
+                    return;
+                case IDENTITY:
+                    getResponse().getOutputStream().write(bytes, offset, length);
+                    return;
+                case COMPRESSING:
+                    gzip.write(bytes, offset, length);
+                    return;
+                default:
+                    throw new IOException("The response has already been completed");
+            }
+        }
+        
+        /**
+         * Starts compressing if the response allows it, writing out the bytes held back
+         */
+        private void start() throws IOException {
+            if (compressible()) {
+                state = State.COMPRESSING;
+                HttpServletResponse response = (HttpServletResponse) getResponse();
+                response.setHeader("Content-Encoding", "gzip");
+                // The compressed body is a different representation of the same entity
+                String entityTag = response.getHeader("ETag");
+                if (entityTag != null && !entityTag.startsWith("W/")) {
+                    response.setHeader("ETag", "W/" + entityTag);
+                }
+                gzip = new LeveledGzipStream(response.getOutputStream(), level);
+                gzip.write(buffer, 0, count);
+            } else {
+                state = State.IDENTITY;
+                if (contentLength >= 0) {
+                    getResponse().setContentLengthLong(contentLength);
+                }
+                getResponse().getOutputStream().write(buffer, 0, count);
+            }
+            buffer = null;
+            count = 0;
+        }
+        
+        @Override
+        public void flush() throws IOException {
+            switch (state) {
+                case BUFFERING:
+                    if (count > 0 && request.isAsyncStarted()) {
+                        start();
+                        flush();
+                    }
+                    return;
+                case IDENTITY:
+                    getResponse().getOutputStream().flush();
+                    return;
+                case COMPRESSING:
+                    gzip.flush();
+                    return;
+                default:
+                    return;
+            }
+        }
+        
+        @Override
+        public void close() throws IOException {
+            finish();
+        }
+        
+        /**
+         * Ends the body. What is still held back is below the minimum size and goes out
+         * uncompressed with its exact length.
+         */
+        void finish() throws IOException {
+            switch (state) {
+                case BUFFERING:
+                    state = State.IDENTITY;
+                    if (!isCommitted()) {
+                        getResponse().setContentLength(count);
+                    }
+                    getResponse().getOutputStream().write(buffer, 0, count);
+                    buffer = null;
+                    break;
+                case COMPRESSING:
+                    // Also releases the deflater
+                    gzip.close();
+                    break;
+                default:
+                    break;
+            }
+            state = State.FINISHED;
+        }
+        
+        /**
+         * Forgets the body written so far after the response buffer was reset
+         */
+        void discard() {
+            if (gzip != null) {
+                // The compressed bytes went into the reset buffer; only the deflater is left to release
+                gzip.release();
+                gzip = null;
+            }
+            state = State.BUFFERING;
+            buffer = new byte[Math.min(minSize, GZIP_BUFFER_SIZE)];
+            count = 0;
+        }
+        
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+        
+        @Override
+        public void setWriteListener(WriteListener listener) {
+            throw new IllegalStateException("Non-blocking output is not supported for compressed responses");
+        }
+    }
+    
+    /**
+     * Gzip stream with sync flushing at a chosen deflate level
+     */
+    private static class LeveledGzipStream extends GZIPOutputStream {
+        
+        LeveledGzipStream(OutputStream out, int level) throws IOException {
+            super(out, GZIP_BUFFER_SIZE, true);
+            def.setLevel(level);
+        }
+        
+        /**
+         * Frees the deflater of a stream that will never be closed
+         */
+        void release() {
+            def.end();
+        }
+    }
+}
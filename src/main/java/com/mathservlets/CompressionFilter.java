@@ -0,0 +1,280 @@
+package com.mathservlets;
+
+import java.io.IOException;
+import java.util.Locale;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Gzips responses for clients that accept it.
+ * Static resources are compressed once at startup and served from memory; dynamic
+ * responses are compressed as they stream, once they pass the minimum size.
+ * Configured through the init parameters compressionLevel and minCompressSize.
+ */
+public class CompressionFilter implements Filter {
+    
+    /** Deflate level for dynamic responses, trading a little ratio for speed */
+    public static final int DEFAULT_LEVEL = 6;
+    
+    /** Bodies below this many bytes are sent uncompressed; gzip would barely shrink them */
+    public static final int DEFAULT_MIN_SIZE = 1024;
+    
+    private PrecompressedResources staticResources;
+    private int level = DEFAULT_LEVEL;
+    private int minSize = DEFAULT_MIN_SIZE;
+    
+    @Override
+    public void init(FilterConfig config) throws ServletException {
+        try {
+            level = InitParameters.intValue(config::getInitParameter, "compressionLevel", DEFAULT_LEVEL);
+            minSize = InitParameters.intValue(config::getInitParameter, "minCompressSize", DEFAULT_MIN_SIZE);
+        } catch (IllegalArgumentException e) {
+            throw new ServletException(e.getMessage(), e);
+        }
+        if (level < 1 || level > 9) {
+            throw new ServletException("Init parameter compressionLevel must be between 1 and 9: " + level);
+        }
+        if (minSize < 0) {
+            throw new ServletException("Init parameter minCompressSize must not be negative: " + minSize);
+        }
+        
+        ServletContext context = config.getServletContext();
+        try {
+            staticResources = PrecompressedResources.load(context);
+        } catch (IOException e) {
+            throw new ServletException("Could not load the static resources", e);
+        }
+        context.log("Pre-compressed " + staticResources.size() + " static resources");
+    }
+    
+    @Override
+    public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse, FilterChain chain)
+            throws IOException, ServletException {
+        if (!(servletRequest instanceof HttpServletRequest) || !(servletResponse instanceof HttpServletResponse)) {
+            chain.doFilter(servletRequest, servletResponse);
+            return;
+        }
+        HttpServletRequest request = (HttpServletRequest) servletRequest;
+        HttpServletResponse response = (HttpServletResponse) servletResponse;
+        boolean acceptsGzip = acceptsGzip(request.getHeader("Accept-Encoding"));
+        // Caches must keep the compressed and plain representations apart
+        if (!response.getHeaders("Vary").contains("Accept-Encoding")) {
+            response.addHeader("Vary", "Accept-Encoding");
+        }
+        
+        String method = request.getMethod();
+        if ("GET".equals(method) || "HEAD".equals(method)) {
+            PrecompressedResources.Resource resource = staticResources.get(pathOf(request));
+            if (resource != null) {
+                resource.serve(request, response, acceptsGzip);
+                return;
+            }
+        }
+        if (!acceptsGzip || "HEAD".equals(method) || request.getDispatcherType() != DispatcherType.REQUEST) {
+            chain.doFilter(request, response);
+            return;
+        }
+        
+        CompressingResponse compressing = new CompressingResponse(request, response, level, minSize);
+        chain.doFilter(new CompressingRequest(request, compressing), compressing);
+        // An asynchronous response is finished when its context completes
+        if (!request.isAsyncStarted()) {
+            compressing.finish();
+        }
+    }
+    
+    @Override
+    public void destroy() {
+        staticResources = null;
+    }
+    
+    /**
+     * Gets the path of a request within the application, as used for static resources
+     */
+    private static String pathOf(HttpServletRequest request) {
+        String pathInfo = request.getPathInfo();
+        return pathInfo == null ? request.getServletPath() : request.getServletPath() + pathInfo;
+    }
+    
+    /**
+     * Checks whether an Accept-Encoding header allows gzip
+     * @param acceptEncoding the header value, or null
+     * @return true unless gzip is absent or given a quality of zero
+     */
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        Boolean wildcard = null;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim().toLowerCase(Locale.ROOT);
+            boolean accepted = quality(parts) > 0;
+            if (name.equals("gzip") || name.equals("x-gzip")) {
+                return accepted;
+            }
+            if (name.equals("*")) {
+                wildcard = accepted;
+            }
+        }
+        return wildcard != null && wildcard;
+    }
+    
+    private static double quality(String[] parameters) {
+        for (int i = 1; i < parameters.length; i++) {
+            String parameter = parameters[i].trim();
+            if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+                try {
+                    return Double.parseDouble(parameter.substring(2).trim());
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+    
+    /**
+     * Checks whether a content type is text that compresses well
+     * @param contentType the content type, possibly with parameters, or null
+     * @return true for text, JSON, JavaScript, XML and SVG
+     */
+    static boolean isCompressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        String type = contentType.toLowerCase(Locale.ROOT);
+        int parameters = type.indexOf(';');
+        if (parameters >= 0) {
+            type = type.substring(0, parameters);
+        }
+        type = type.trim();
+        return type.startsWith("text/") || type.endsWith("json") || type.endsWith("javascript")
+                || type.endsWith("xml") || type.equals("image/svg+xml");
+    }
+    
+    /**
+     * Request whose asynchronous context writes through the compressing response and
+     * ends the gzip stream before the response is completed
+     */
+    private static class CompressingRequest extends HttpServletRequestWrapper {
+        private final CompressingResponse response;
+        private AsyncContext asyncContext;
+        
+        CompressingRequest(HttpServletRequest request, CompressingResponse response) {
+            super(request);
+            this.response = response;
+        }
+        
+        @Override
+        public AsyncContext startAsync() {
+            return startAsync(this, response);
+        }
+        
+        @Override
+        public AsyncContext startAsync(ServletRequest request, ServletResponse response) {
+            asyncContext = new FinishingAsyncContext(super.startAsync(request, response), this.response);
+            return asyncContext;
+        }
+        
+        @Override
+        public AsyncContext getAsyncContext() {
+            return asyncContext != null ? asyncContext : super.getAsyncContext();
+        }
+    }
+    
+    /**
+     * Asynchronous context that finishes the compressed body when it completes
+     */
+    private static class FinishingAsyncContext implements AsyncContext {
+        private final AsyncContext delegate;
+        private final CompressingResponse response;
+        
+        FinishingAsyncContext(AsyncContext delegate, CompressingResponse response) {
+            this.delegate = delegate;
+            this.response = response;
+        }
+        
+        @Override
+        public void complete() {
+            try {
+                response.finish();
+            } catch (IOException e) {
+                // The client has gone; completing still releases the request
+            }
+            delegate.complete();
+        }
+        
+        @Override
+        public ServletRequest getRequest() {
+            return delegate.getRequest();
+        }
+        
+        @Override
+        public ServletResponse getResponse() {
+            return delegate.getResponse();
+        }
+        
+        @Override
+        public boolean hasOriginalRequestAndResponse() {
+            return delegate.hasOriginalRequestAndResponse();
+        }
+        
+        @Override
+        public void dispatch() {
+            delegate.dispatch();
+        }
+        
+        @Override
+        public void dispatch(String path) {
+            delegate.dispatch(path);
+        }
+        
+        @Override
+        public void dispatch(ServletContext context, String path) {
+            delegate.dispatch(context, path);
+        }
+        
+        @Override
+        public void start(Runnable run) {
+            delegate.start(run);
+        }
+        
+        @Override
+        public void addListener(AsyncListener listener) {
+            delegate.addListener(listener);
+        }
+        
+        @Override
+        public void addListener(AsyncListener listener, ServletRequest request, ServletResponse response) {
+            delegate.addListener(listener, request, response);
+        }
+        
+        @Override
+        public <T extends AsyncListener> T createListener(Class<T> listenerClass) throws ServletException {
+            return delegate.createListener(listenerClass);
+        }
+        
+        @Override
+        public void setTimeout(long timeout) {
+            delegate.setTimeout(timeout);
+        }
+        
+        @Override
+        public long getTimeout() {
+            return delegate.getTimeout();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.mathservlets;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded executor that runs mathematical operations off the container's request threads.
+ * Admission is capped at a fixed number of running plus queued tasks, so a saturated
+ * pool rejects work immediately instead of growing an unbounded backlog.
+ */
+public class ComputeExecutor {
+    
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private final boolean virtualThreads;
+    
+    private ComputeExecutor(ExecutorService executor, int capacity, boolean virtualThreads) {
+        this.executor = executor;
+        this.permits = new Semaphore(capacity);
+        this.virtualThreads = virtualThreads;
+    }
+    
+    /**
+     * Creates a compute executor
+     * @param threads number of tasks allowed to run at once
+     * @param queueCapacity number of tasks allowed to wait for a free thread
+     * @param useVirtualThreads whether to run tasks on virtual threads when the JVM supports them
+     * @return ComputeExecutor instance
+     */
+    public static ComputeExecutor create(int threads, int queueCapacity, boolean useVirtualThreads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Compute threads must be positive");
+        }
+        if (queueCapacity < 0) {
+            throw new IllegalArgumentException("Compute queue capacity must not be negative");
+        }
+        
+        int capacity = threads + queueCapacity;
+        if (useVirtualThreads) {
+            ExecutorService virtual = newVirtualThreadExecutor();
+            if (virtual != null) {
+                return new ComputeExecutor(virtual, capacity, true);
+            }
+        }
+        
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), new ComputeThreadFactory());
+        return new ComputeExecutor(pool, capacity, false);
+    }
+    
+    /**
+     * Looks up the virtual thread executor reflectively so the code still runs on Java 11
+     * @return virtual thread executor, or null if the JVM does not provide one
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+    
+    /**
+     * Submits a task for execution
+     * @param task the task to run
+     * @throws RejectedExecutionException if the pool is saturated or shut down
+     */
+    public void execute(Runnable task) {
+        if (!permits.tryAcquire()) {
+            throw new RejectedExecutionException("Compute pool is saturated");
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            throw e;
+        }
+    }
+    
+    /**
+     * Gets the number of tasks that can still be admitted
+     * @return free capacity
+     */
+    public int getAvailableCapacity() {
+        return permits.availablePermits();
+    }
+    
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+    
+    /**
+     * Stops accepting tasks and waits briefly for running ones to finish
+     */
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Names compute threads so they are easy to spot in thread dumps
+     */
+    private static class ComputeThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+        
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "math-compute-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
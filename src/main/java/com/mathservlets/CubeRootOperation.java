@@ -1,56 +1,228 @@
 package com.mathservlets;
 
+import java.math.BigInteger;
+
 /**
  * Implementation of cube root operation.
- * Calculates the cube root of a number using Newton's method.
+ * By default the root is taken with Math.cbrt and shown to six decimal places.
+ * With a precision it is computed to that many correctly rounded decimal places by
+ * a division-free Newton iteration whose working precision doubles at each step,
+ * so the whole calculation costs a handful of full-precision multiplications.
  */
 public class CubeRootOperation implements MathOperation {
     
-    private static final double PRECISION = 1e-10;
-    private static final int MAX_ITERATIONS = 100;
+    private static final long DEFAULT_SCALE = 1_000_000L;
+    
+    /** Values below this many bits have their integer cube root taken in long arithmetic */
+    private static final int LONG_BITS = 62;
+    
+    /** Guard bits dropped from the half-precision start, so one Newton step lands within one of the root */
+    private static final int GUARD_BITS = 4;
+    
+    /** Precision up to which the inverse cube root is taken from a double */
+    private static final int DOUBLE_BITS = 50;
+    
+    /** Extra bits carried beyond the requested digits to absorb truncation */
+    private static final int WORKING_GUARD_BITS = 32;
+    
+    /**
+     * Extra bits carried by the half-precision start of each Newton step. They cover the
+     * up to eleven bits lost because n^(-1/3) is below one, so errors do not grow from step to step.
+     */
+    private static final int STEP_GUARD_BITS = 16;
+    
+    /** Extra digits computed beyond the requested precision to decide the rounding */
+    private static final int GUARD_DIGITS = 12;
+    
+    /** The guard digits are trusted unless they lie this close to a rounding boundary */
+    private static final long ROUNDING_MARGIN = 1000;
+    
+    private static final BigInteger THREE = BigInteger.valueOf(3);
+    private static final long GUARD_SCALE = 1_000_000_000_000L;
+    private static final BigInteger HALF_UNIT = BigInteger.valueOf(GUARD_SCALE / 2);
+    
+    private static final double LOG2_10 = Math.log(10) / Math.log(2);
     
     @Override
     public String execute(int number) {
-        if (number < 0) {
-            double cubeRoot = calculateCubeRoot(-number);
-            return "Cube root of " + number + " = -" + String.format("%.6f", cubeRoot);
+        double cubeRoot = Math.cbrt(number);
+        StringBuilder text = new StringBuilder(40).append("Cube root of ").append(number).append(" = ");
+        if (cubeRoot < 0) {
+            text.append('-');
+            cubeRoot = -cubeRoot;
         }
         
-        if (number == 0) {
-            return "Cube root of 0 = 0.000000";
+        // Fixed-point formatting, rounding half up like %.6f
+        long scaled = Math.round(cubeRoot * DEFAULT_SCALE);
+        long fraction = scaled % DEFAULT_SCALE;
+        text.append(scaled / DEFAULT_SCALE).append('.');
+        for (long digit = DEFAULT_SCALE / 10; digit > 1 && fraction < digit; digit /= 10) {
+            text.append('0');
         }
-        
-        double cubeRoot = calculateCubeRoot(number);
-        return "Cube root of " + number + " = " + String.format("%.6f", cubeRoot);
+        return text.append(fraction).toString();
+    }
+    
+    @Override
+    public OperationResult evaluate(int number, int precision, CancellationToken token) {
+        token.checkpoint();
+        if (precision <= 0) {
+            return evaluate(number);
+        }
+        return OperationResult.of("Cube root of " + number + " = " + cubeRoot(number, precision, token));
     }
     
     /**
-     * Calculates cube root using Newton's method
-     * @param number the number (must be positive)
-     * @return cube root
+     * Calculates a cube root to the given number of decimal places, rounded half up.
+     * The root is computed in binary with guard digits to spare; only when the guard
+     * digits are too close to a rounding boundary to decide it is the exact integer
+     * root taken instead.
+     * @param number the number
+     * @param precision decimal places, at least 1
+     * @param token cancellation token of the request
+     * @return the root in plain decimal notation
+     * @throws java.util.concurrent.CancellationException if the token trips
      */
-    private double calculateCubeRoot(double number) {
-        if (number == 0) {
-            return 0;
+    static String cubeRoot(int number, int precision, CancellationToken token) {
+        long magnitude = Math.abs((long) number);
+        if (magnitude == 0) {
+            return format(false, "0", precision);
         }
+        int digits = precision + GUARD_DIGITS;
+        int bits = (int) Math.ceil(digits * LOG2_10) + WORKING_GUARD_BITS;
         
-        // Initial guess
-        double x = number;
+        // cbrt(n) = n * (n^(-1/3))^2, scaled by 2^bits and then by 10^digits
+        BigInteger inverse = inverseCubeRoot(magnitude, bits, token);
+        BigInteger root = inverse.multiply(inverse).shiftRight(bits).multiply(BigInteger.valueOf(magnitude));
+        token.checkpoint();
+        BigInteger scaled = root.multiply(BigInteger.TEN.pow(digits)).shiftRight(bits);
         
-        // Newton's method: x_{n+1} = (2*x_n + number/(x_n^2)) / 3
-        for (int i = 0; i < MAX_ITERATIONS; i++) {
-            double xPrev = x;
-            x = (2 * x + number / (x * x)) / 3;
-            
-            // Check for convergence
-            if (Math.abs(x - xPrev) < PRECISION) {
-                break;
+        // Adding half a unit of the last requested place makes the rounding a truncation
+        String text = DecimalRenderer.toDecimalString(scaled.add(HALF_UNIT));
+        long guard = text.length() > GUARD_DIGITS ? Long.parseLong(text.substring(text.length() - GUARD_DIGITS)) : 0;
+        String rounded;
+        if (guard < ROUNDING_MARGIN || guard > GUARD_SCALE - ROUNDING_MARGIN) {
+            rounded = DecimalRenderer.toDecimalString(exactRoundedRoot(magnitude, precision, token));
+        } else {
+            rounded = text.substring(0, text.length() - GUARD_DIGITS);
+        }
+        return format(number < 0, rounded, precision);
+    }
+    
+    /**
+     * Rounds cbrt(n) * 10^p half up using the exact integer cube root of n * 10^(3(p+1)).
+     * The extra digit decides the rounding; the root of a non-cube is irrational, so it
+     * never lies exactly halfway.
+     */
+    private static BigInteger exactRoundedRoot(long magnitude, int precision, CancellationToken token) {
+        BigInteger radicand = BigInteger.valueOf(magnitude).multiply(BigInteger.TEN.pow(3 * (precision + 1)));
+        return integerCubeRoot(radicand, token).add(BigInteger.valueOf(5)).divide(BigInteger.TEN);
+    }
+    
+    /**
+     * Places the decimal point in the digits of a root scaled by 10^precision
+     */
+    private static String format(boolean negative, String digits, int precision) {
+        StringBuilder text = new StringBuilder(digits.length() + 3);
+        if (negative) {
+            text.append('-');
+        }
+        if (digits.length() <= precision) {
+            text.append("0.");
+            for (int i = digits.length(); i < precision; i++) {
+                text.append('0');
             }
+            return text.append(digits).toString();
         }
+        int point = digits.length() - precision;
+        return text.append(digits, 0, point).append('.').append(digits, point, digits.length()).toString();
+    }
+    
+    /**
+     * Calculates n^(-1/3) * 2^bits to within a few units. The result at half the
+     * precision is extended by one Newton step for 1/y^3 = n,
+     * y' = y + y * (1 - n * y^3) / 3, which needs no division and doubles the correct bits.
+     * @param n the number, at least 1
+     * @param bits precision of the result
+     * @param token cancellation token checked at each step
+     * @return the scaled inverse cube root
+     */
+    static BigInteger inverseCubeRoot(long n, int bits, CancellationToken token) {
+        if (bits <= DOUBLE_BITS) {
+            return BigInteger.valueOf(Math.round(Math.scalb(1 / Math.cbrt((double) n), bits)));
+        }
+        token.checkpoint();
+        
+        int half = bits / 2 + STEP_GUARD_BITS;
+        BigInteger y = inverseCubeRoot(n, half, token).shiftLeft(bits - half);
+        BigInteger cube = y.multiply(y).shiftRight(bits).multiply(y).shiftRight(bits).multiply(BigInteger.valueOf(n));
+        BigInteger error = BigInteger.ONE.shiftLeft(bits).subtract(cube);
+        return y.add(y.multiply(error).shiftRight(bits).divide(THREE));
+    }
+    
+    /**
+     * Calculates floor(cbrt(value)) for a non-negative value.
+     * The root of the value's top half is found recursively, which gives an
+     * overestimate correct to about half the bits; one Newton step at full precision
+     * then doubles that, and a final correction steps down to the exact floor. The
+     * whole computation costs about one division and a few multiplications at full size.
+     * @param value the radicand, not negative
+     * @param token cancellation token checked at each level
+     * @return the integer cube root
+     */
+    static BigInteger integerCubeRoot(BigInteger value, CancellationToken token) {
+        int bits = value.bitLength();
+        if (bits <= LONG_BITS) {
+            return BigInteger.valueOf(longCubeRoot(value.longValue()));
+        }
+        token.checkpoint();
+        
+        // value = top * 2^(3 * shift) + rest, where the root of top has about half the bits
+        int rootBits = bits / 3 + 1;
+        int shift = Math.max(1, (rootBits - GUARD_BITS) / 2);
+        BigInteger top = value.shiftRight(3 * shift);
+        BigInteger x = integerCubeRoot(top, token).add(BigInteger.ONE).shiftLeft(shift);
         
+        // Newton step from above stays above the floor: x' = (2x + value / x^2) / 3
+        x = x.shiftLeft(1).add(value.divide(x.multiply(x))).divide(THREE);
+        
+        // Step down to the floor, updating x^2 and x^3 with additions only
+        BigInteger square = x.multiply(x);
+        BigInteger cube = square.multiply(x);
+        while (cube.compareTo(value) > 0) {
+            // (x - 1)^3 = x^3 - 3x^2 + 3x - 1 and (x - 1)^2 = x^2 - 2x + 1
+            BigInteger threeX = x.multiply(THREE);
+            cube = cube.subtract(square.multiply(THREE)).add(threeX).subtract(BigInteger.ONE);
+            square = square.subtract(x.shiftLeft(1)).add(BigInteger.ONE);
+            x = x.subtract(BigInteger.ONE);
+        }
         return x;
     }
     
+    /**
+     * Exact floor cube root of a non-negative long below 2^62
+     */
+    private static long longCubeRoot(long value) {
+        long root = (long) Math.cbrt((double) value);
+        while (root * root * root > value) {
+            root--;
+        }
+        while ((root + 1) * (root + 1) * (root + 1) <= value) {
+            root++;
+        }
+        return root;
+    }
+    
+    @Override
+    public long estimateCost(int number, int precision) {
+        if (precision <= 0) {
+            return estimateCost(number);
+        }
+        // Dominated by a division and multiplications of the 3p-digit radicand, which
+        // BigInteger performs in Toom-Cook time, plus rendering the p digits
+        double words = precision * LOG2_10 / 32;
+        return (long) Math.min(Long.MAX_VALUE / 2, Math.pow(words, 1.465) / 2) + 1;
+    }
+    
     @Override
     public String getOperationName() {
         return "Cube Root";
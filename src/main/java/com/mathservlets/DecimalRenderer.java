@@ -0,0 +1,207 @@
+package com.mathservlets;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Divide-and-conquer conversion of large BigInteger values to decimal text.
+ * A value is split by cached powers of ten of the form 10^(256 * 2^k) until the
+ * pieces are small enough for BigInteger.toString. The halves are independent,
+ * so they can be rendered in parallel or streamed out in order without building
+ * one giant String.
+ */
+public final class DecimalRenderer {
+    
+    /** Digits in the smallest piece, which is rendered by BigInteger.toString */
+    private static final int LEAF_DIGITS = 256;
+    
+    /** Values below this many bits are rendered directly */
+    private static final int DIRECT_BITS = 32768;
+    
+    /** Split levels at or above this one render their halves in parallel */
+    private static final int PARALLEL_LEVEL = 4;
+    
+    private static final double LOG2_10 = Math.log(10) / Math.log(2);
+    
+    private static final String ZEROS;
+    
+    static {
+        char[] zeros = new char[LEAF_DIGITS];
+        Arrays.fill(zeros, '0');
+        ZEROS = new String(zeros);
+    }
+    
+    /** powers[k] = 10^(LEAF_DIGITS * 2^k), grown on demand and never shrunk */
+    private static volatile BigInteger[] powers = { BigInteger.TEN.pow(LEAF_DIGITS) };
+    
+    private DecimalRenderer() {
+    }
+    
+    /**
+     * Converts a value to its decimal representation, rendering large values in parallel
+     * @param value the value to convert
+     * @return decimal string
+     */
+    public static String toDecimalString(BigInteger value) {
+        if (value.bitLength() < DIRECT_BITS) {
+            return value.toString();
+        }
+        
+        boolean negative = value.signum() < 0;
+        BigInteger magnitude = value.abs();
+        int level = topLevel(magnitude);
+        
+        // The digits are fully zero padded after one slot reserved for the sign;
+        // leading zeros are skipped when the String is built
+        char[] buffer = new char[(LEAF_DIGITS << (level + 1)) + 1];
+        ForkJoinPool.commonPool().invoke(new RenderTask(magnitude, level, buffer, 1));
+        
+        int start = 1;
+        while (buffer[start] == '0') {
+            start++;
+        }
+        if (negative) {
+            buffer[--start] = '-';
+        }
+        return new String(buffer, start, buffer.length - start);
+    }
+    
+    /**
+     * Streams the decimal representation of a value to the given output, most significant
+     * digits first, in chunks of at most 256 digits
+     * @param value the value to convert
+     * @param out destination for the digits
+     * @throws IOException if the output fails
+     */
+    public static void writeTo(BigInteger value, Appendable out) throws IOException {
+        writeTo(value, out, CancellationToken.NONE);
+    }
+    
+    /**
+     * Streams the decimal representation of a value, checking the token before each
+     * block of 512 digits
+     * @param value the value to convert
+     * @param out destination for the digits
+     * @param token cancellation token of the request
+     * @throws IOException if the output fails
+     * @throws java.util.concurrent.CancellationException if the token trips
+     */
+    public static void writeTo(BigInteger value, Appendable out, CancellationToken token) throws IOException {
+        if (value.bitLength() < LEAF_DIGITS * 3) {
+            out.append(value.toString());
+            return;
+        }
+        if (value.signum() < 0) {
+            out.append('-');
+            value = value.negate();
+        }
+        write(value, topLevel(value), false, out, token);
+    }
+    
+    /**
+     * Writes x, which must be below powers[level + 1]. Padded pieces are written with
+     * exactly LEAF_DIGITS * 2^(level + 1) digits.
+     */
+    private static void write(BigInteger x, int level, boolean pad, Appendable out, CancellationToken token)
+            throws IOException {
+        if (level == 0) {
+            token.checkpoint();
+        }
+        if (level < 0) {
+            String digits = x.toString();
+            if (pad) {
+                out.append(ZEROS, 0, LEAF_DIGITS - digits.length());
+            }
+            out.append(digits);
+            return;
+        }
+        
+        BigInteger[] parts = x.divideAndRemainder(power(level));
+        if (!pad && parts[0].signum() == 0) {
+            write(parts[1], level - 1, false, out, token);
+            return;
+        }
+        write(parts[0], level - 1, pad, out, token);
+        write(parts[1], level - 1, true, out, token);
+    }
+    
+    /**
+     * Finds the smallest level whose doubled power of ten is guaranteed to exceed x,
+     * judging by bit length so the next power never has to be computed
+     */
+    private static int topLevel(BigInteger x) {
+        int bits = x.bitLength();
+        int level = 0;
+        while ((double) ((long) LEAF_DIGITS << (level + 1)) * LOG2_10 < bits) {
+            level++;
+        }
+        return level;
+    }
+    
+    /**
+     * Gets 10^(LEAF_DIGITS * 2^level), computing and caching missing powers by squaring
+     */
+    static BigInteger power(int level) {
+        BigInteger[] cached = powers;
+        if (level < cached.length) {
+            return cached[level];
+        }
+        synchronized (DecimalRenderer.class) {
+            cached = powers;
+            if (level >= cached.length) {
+                BigInteger[] grown = Arrays.copyOf(cached, level + 1);
+                for (int i = cached.length; i <= level; i++) {
+                    grown[i] = grown[i - 1].multiply(grown[i - 1]);
+                }
+                powers = grown;
+                cached = grown;
+            }
+            return cached[level];
+        }
+    }
+    
+    /**
+     * Fills a fully padded slice of the output buffer, forking the two halves
+     * of large values
+     */
+    private static class RenderTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        
+        private final BigInteger value;
+        private final int level;
+        private final char[] buffer;
+        private final int offset;
+        
+        RenderTask(BigInteger value, int level, char[] buffer, int offset) {
+            this.value = value;
+            this.level = level;
+            this.buffer = buffer;
+            this.offset = offset;
+        }
+        
+        @Override
+        protected void compute() {
+            if (level < 0) {
+                String digits = value.toString();
+                int padding = LEAF_DIGITS - digits.length();
+                Arrays.fill(buffer, offset, offset + padding, '0');
+                digits.getChars(0, digits.length(), buffer, offset + padding);
+                return;
+            }
+            
+            BigInteger[] parts = value.divideAndRemainder(power(level));
+            int half = LEAF_DIGITS << level;
+            RenderTask high = new RenderTask(parts[0], level - 1, buffer, offset);
+            RenderTask low = new RenderTask(parts[1], level - 1, buffer, offset + half);
+            if (level >= PARALLEL_LEVEL) {
+                invokeAll(high, low);
+            } else {
+                high.compute();
+                low.compute();
+            }
+        }
+    }
+}
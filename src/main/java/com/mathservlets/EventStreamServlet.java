@@ -0,0 +1,567 @@
+package com.mathservlets;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Server-Sent Events endpoint for mathematical operations.
+ * Takes the same parameters as the HTML form, starts every requested operation at
+ * once and pushes each result as a "result" event the moment it is ready, so the
+ * first result arrives after the fastest operation rather than the slowest. A "done"
+ * event ends the stream; an "abort" event reports a timeout.
+ */
+public class EventStreamServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+    
+    static final String EVENT_STREAM = "text/event-stream";
+    
+    private static final int DEFAULT_TIMEOUT_MILLIS = 30000;
+    
+    /** Characters of a large result sent per event */
+    static final int CHUNK_CHARS = 65536;
+    
+    /** How long after the deadline a writer stuck on a slow client has before the container closes the connection */
+    private static final long ABORT_GRACE_MILLIS = 5000;
+    
+    private transient OperationFactory operationFactory;
+    private transient OperationRunner operationRunner;
+    private transient OperationMetrics operationMetrics;
+    private transient AdmissionController admissionController;
+    private int timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    
+    @Override
+    public void init() throws ServletException {
+        // The factory and its prime sieve are built once per application, normally by WarmUpListener
+        try {
+            operationFactory = OperationFactory.forContext(getServletContext());
+        } catch (IllegalArgumentException e) {
+            throw new ServletException("Invalid sieve configuration: " + e.getMessage(), e);
+        }
+        operationMetrics = OperationMetrics.forContext(getServletContext(), operationFactory.getAvailableOperations());
+        try {
+            admissionController = AdmissionController.forContext(getServletContext());
+        } catch (IllegalArgumentException e) {
+            throw new ServletException("Invalid admission configuration: " + e.getMessage(), e);
+        }
+        // Operations must run side by side for results to arrive in completion order
+        try {
+            int fanOutParallelism = InitParameters.intValue(this::getInitParameter, "fanOutParallelism",
+                    Runtime.getRuntime().availableProcessors());
+            operationRunner = new OperationRunner(operationFactory, Math.max(1, fanOutParallelism), operationMetrics,
+                    admissionController.getMaxOperationCost());
+            timeoutMillis = InitParameters.intValue(this::getInitParameter, "timeoutMillis", DEFAULT_TIMEOUT_MILLIS);
+        } catch (IllegalArgumentException e) {
+            throw new ServletException("Invalid compute configuration: " + e.getMessage(), e);
+        }
+    }
+    
+    @Override
+    public void destroy() {
+        operationRunner.shutdown();
+    }
+    
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        ValidationResult validation = ValidationResult.validate(request.getParameter("number"),
+                request.getParameterValues("operations"), request.getParameter("precision"));
+        if (!validation.isValid()) {
+            sendError(response, HttpServletResponse.SC_BAD_REQUEST, validation.getErrorMessage());
+            return;
+        }
+        
+        stream(request, response, validation.getNumber(), validation);
+    }
+    
+    /**
+     * Starts async processing, waits for admission without holding the container thread,
+     * then opens the event stream and writes each result from whichever thread finishes it.
+     * The admission permit is released once every result has been written or dropped.
+     */
+    private void stream(HttpServletRequest request, HttpServletResponse response, int number,
+                        ValidationResult validation) throws IOException {
+        response.setContentType(EVENT_STREAM + ";charset=UTF-8");
+        response.setHeader("Cache-Control", "no-store");
+        // Keep reverse proxies such as nginx from holding events back
+        response.setHeader("X-Accel-Buffering", "no");
+        
+        CancellationToken token = CancellationToken.withTimeout(timeoutMillis);
+        AsyncContext asyncContext = request.startAsync();
+        // The deadline below ends the stream; the container's timeout only backs it up
+        asyncContext.setTimeout(timeoutMillis + ABORT_GRACE_MILLIS);
+        EventWriter events = new EventWriter(asyncContext, new PageWriter(response.getOutputStream()), number,
+                validation.getPrecision(), validation.getOperations().size(), token);
+        CompletableFuture<AdmissionController.Permit> admission = admissionController.acquireAsync(
+                operationRunner.estimateCost(number, validation.getOperations(), validation.getPrecision()));
+        
+        asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                token.cancel("timed out");
+                admission.cancel(false);
+                events.close();
+            }
+            
+            @Override
+            public void onError(AsyncEvent event) {
+                token.cancel("client disconnected");
+                admission.cancel(false);
+                events.close();
+            }
+            
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
+            
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+        
+        CompletableFuture.delayedExecutor(timeoutMillis, TimeUnit.MILLISECONDS).execute(() -> {
+            if (events.abort("Calculation timed out, please try a smaller number")) {
+                token.cancel("timed out");
+                admission.cancel(false);
+                operationMetrics.recordTimeout();
+            }
+        });
+        
+        admission.whenComplete((permit, failure) -> {
+            if (failure instanceof AdmissionException) {
+                events.start(() -> events.shed((AdmissionException) failure));
+            } else if (permit != null) {
+                events.start(() -> {
+                    if (!events.admit(permit)) {
+                        return;
+                    }
+                    Map<String, CompletableFuture<OperationResult>> futures = operationRunner.submit(number,
+                            validation.getOperations(), validation.getPrecision(), token);
+                    for (Map.Entry<String, CompletableFuture<OperationResult>> entry : futures.entrySet()) {
+                        String operationType = entry.getKey();
+                        entry.getValue().whenComplete((result, error) -> events.offer(operationType, result));
+                    }
+                });
+            }
+        });
+    }
+    
+    private void sendError(HttpServletResponse response, int status, String message) throws IOException {
+        response.setStatus(status);
+        response.setContentType(ApiServlet.JSON + ";charset=UTF-8");
+        PageWriter page = new PageWriter(response.getOutputStream());
+        JsonWriter json = new JsonWriter(page);
+        json.beginObject().name("error").value(message).endObject();
+        json.flush();
+    }
+    
+    /**
+     * Serializes events from the threads finishing operations onto one response.
+     * Finished results wait in a queue ordered by estimated cost and are written by one
+     * drain at a time, started on the container through the async context, so a slow
+     * client never holds up a thread of the shared fan-out pool. A large result is sent
+     * as "partial" events of about CHUNK_CHARS characters followed by its "result"
+     * event, and cheaper results that finish meanwhile are written between the chunks,
+     * so one long write never holds back a quick result.
+     * Once the stream is closed by completion, timeout or a broken connection, further
+     * events are dropped. Closing and aborting only set a flag and never wait for a long
+     * write: a writer checks the flag between chunks, and whichever thread lets go of
+     * the stream last writes the abort event, if any, and completes the response.
+     */
+    private final class EventWriter {
+        private final AsyncContext asyncContext;
+        private final PageWriter page;
+        private final int number;
+        private final int precision;
+        private final CancellationToken token;
+        private volatile AdmissionController.Permit permit;
+        private final PriorityQueue<PendingResult> pending = new PriorityQueue<>();
+        private int remaining;
+        private boolean draining;
+        private final ReentrantLock writing = new ReentrantLock();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile String abortMessage;
+        private boolean completed;
+        
+        EventWriter(AsyncContext asyncContext, PageWriter page, int number, int precision, int results,
+                    CancellationToken token) {
+            this.asyncContext = asyncContext;
+            this.page = page;
+            this.number = number;
+            this.precision = precision;
+            this.remaining = results;
+            this.token = token;
+        }
+        
+        /**
+         * Takes the admission permit and flushes the headers, so the client knows the
+         * stream is open before any result
+         * @return false if the stream was closed while waiting; the permit is then released
+         */
+        boolean admit(AdmissionController.Permit permit) {
+            this.permit = permit;
+            if (closed.get()) {
+                permit.release();
+                return false;
+            }
+            comment("started");
+            return true;
+        }
+        
+        /**
+         * Answers a request turned away by admission control with an error instead of a
+         * stream; nothing has been written yet, so the status can still be set
+         */
+        void shed(AdmissionException e) {
+            writing.lock();
+            try {
+                if (closed.get()) {
+                    return;
+                }
+                operationMetrics.recordShed();
+                HttpServletResponse response = (HttpServletResponse) asyncContext.getResponse();
+                response.setHeader("Retry-After", String.valueOf(e.getRetryAfterSeconds()));
+                sendError(response, e.getStatus(), e.getMessage());
+            } catch (IOException ex) {
+                log("Failed to send shed response", ex);
+            } finally {
+                closed.set(true);
+                writing.unlock();
+                finishIfClosed();
+            }
+        }
+        
+        /**
+         * Runs a task that writes to the stream on a container thread. Once the response
+         * has been completed the container refuses; the stream is closed by then, so the
+         * task only drops its events and can run on the calling thread.
+         */
+        void start(Runnable task) {
+            try {
+                asyncContext.start(task);
+            } catch (IllegalStateException e) {
+                task.run();
+            }
+        }
+        
+        /**
+         * Queues a finished result and starts a drain unless one is already running
+         */
+        void offer(String operationType, OperationResult result) {
+            long cost = operationFactory.getAvailableOperations().contains(operationType)
+                    ? operationFactory.getOperation(operationType).estimateCost(number, precision) : 0;
+            synchronized (pending) {
+                pending.add(new PendingResult(operationType, result, cost));
+                if (draining) {
+                    return;
+                }
+                draining = true;
+            }
+            start(this::drain);
+        }
+        
+        /**
+         * Writes queued results until the queue is empty. The stream ends and the
+         * admission permit is released after the last result has been written or dropped.
+         */
+        private void drain() {
+            PendingResult next;
+            while ((next = poll()) != null) {
+                boolean last = write(next, true);
+                if (last) {
+                    done();
+                    permit.release();
+                }
+            }
+        }
+        
+        /**
+         * Takes the cheapest queued result, or ends this thread's turn at draining
+         */
+        private PendingResult poll() {
+            synchronized (pending) {
+                PendingResult next = pending.poll();
+                if (next == null) {
+                    draining = false;
+                }
+                return next;
+            }
+        }
+        
+        /**
+         * Writes one result, as a single event or in chunks
+         * @return true if this was the last result of the request
+         */
+        private boolean write(PendingResult next, boolean chunked) {
+            if (next.result != null) {
+                result(next, chunked);
+            }
+            synchronized (pending) {
+                return --remaining == 0;
+            }
+        }
+        
+        void comment(String text) {
+            writing.lock();
+            try {
+                if (closed.get()) {
+                    return;
+                }
+                page.write(": " + text + "\n\n");
+                page.flush();
+            } catch (IOException e) {
+                close();
+            } finally {
+                writing.unlock();
+                finishIfClosed();
+            }
+        }
+        
+        /**
+         * Writes one result as a JSON event. JSON escapes line breaks, so a data field
+         * can never be split, and the event type follows the data so a chunk can be
+         * ended as "partial" once it is known that more text follows.
+         */
+        private void result(PendingResult next, boolean chunked) {
+            writing.lock();
+            try {
+                writeResult(next, chunked);
+            } finally {
+                writing.unlock();
+                finishIfClosed();
+            }
+        }
+        
+        private void writeResult(PendingResult next, boolean chunked) {
+            if (closed.get()) {
+                return;
+            }
+            String operationType = next.operationType;
+            OperationResult result = next.result;
+            try {
+                long start = System.nanoTime();
+                JsonWriter json = new JsonWriter(page);
+                page.write("data: ");
+                json.beginObject().name("number").value(number);
+                OperationResult body = result;
+                if (chunked) {
+                    body = new OperationResult() {
+                        @Override
+                        public void writeTo(Appendable out) throws IOException {
+                            result.writeTo(new ChunkedText(out, next));
+                        }
+                        
+                        @Override
+                        public boolean isError() {
+                            return result.isError();
+                        }
+                    };
+                }
+                ApiServlet.writeResult(json, operationFactory, operationType, body);
+                json.endObject();
+                page.write("\nevent: result\n\n");
+                long rendered = System.nanoTime();
+                page.flush();
+                operationMetrics.record(operationType, number, OperationMetrics.Phase.RENDER, rendered - start);
+                operationMetrics.record(operationType, number, OperationMetrics.Phase.WRITE,
+                        System.nanoTime() - rendered);
+            } catch (IOException e) {
+                // The client has gone away; stop the operations still running
+                token.cancel("client disconnected");
+                close();
+            } catch (RuntimeException e) {
+                // Keep draining, so the remaining results are counted and the permit released
+                log("Failed to write event", e);
+                token.cancel("write failed");
+                close();
+            }
+        }
+        
+        /**
+         * Ends the current chunk of a large result as a "partial" event, writes the
+         * results no costlier than it that have finished since, and opens the next chunk.
+         * The JSON writer of the large result is inside its result string throughout;
+         * the chunk boundary closes and reopens that string around the other events.
+         */
+        private void splitChunk(PendingResult current) throws IOException {
+            page.write("\"}\nevent: partial\n\n");
+            page.flush();
+            
+            while (true) {
+                PendingResult next;
+                synchronized (pending) {
+                    next = pending.peek();
+                    if (next == null || next.cost > current.cost) {
+                        break;
+                    }
+                    pending.poll();
+                }
+                // Counted here, so the last result is always the one being chunked
+                write(next, false);
+            }
+            if (closed.get()) {
+                throw new IOException("Event stream closed");
+            }
+            
+            page.write("data: ");
+            new JsonWriter(page).beginObject().name("number").value(number).name("operation")
+                    .value(current.operationType);
+            page.write(",\"result\":\"");
+        }
+        
+        private void done() {
+            writing.lock();
+            try {
+                if (closed.get()) {
+                    return;
+                }
+                page.write("event: done\ndata: {}\n\n");
+                page.flush();
+            } catch (IOException e) {
+                log("Failed to end event stream", e);
+            } finally {
+                closed.set(true);
+                writing.unlock();
+                finishIfClosed();
+            }
+        }
+        
+        /**
+         * Ends the stream with an abort event without waiting. A writer in the middle of
+         * a result stops at its next chunk boundary and writes the event as it lets go;
+         * if it is stuck on a slow connection, the container's timeout closes it instead.
+         * @return true if the stream was still open
+         */
+        boolean abort(String message) {
+            boolean open = !closed.get();
+            if (open) {
+                abortMessage = message;
+            }
+            closed.set(true);
+            finishIfClosed();
+            return open;
+        }
+        
+        /**
+         * Ends the stream without waiting for a write in progress
+         */
+        void close() {
+            closed.set(true);
+            finishIfClosed();
+        }
+        
+        /**
+         * Completes a closed stream unless a thread is writing to it; that thread
+         * calls this again when it lets go, so the last one out completes it
+         */
+        private void finishIfClosed() {
+            if (!closed.get() || writing.isHeldByCurrentThread() || !writing.tryLock()) {
+                return;
+            }
+            try {
+                finish();
+            } finally {
+                writing.unlock();
+            }
+        }
+        
+        /**
+         * Writes the abort event, if any, and completes the response, holding the write lock
+         */
+        private void finish() {
+            if (completed) {
+                return;
+            }
+            completed = true;
+            String message = abortMessage;
+            if (message != null) {
+                try {
+                    page.write("event: abort\ndata: ");
+                    new JsonWriter(page).beginObject().name("error").value(message).endObject();
+                    page.write("\n\n");
+                    page.flush();
+                } catch (IOException e) {
+                    log("Failed to abort event stream", e);
+                }
+            }
+            try {
+                asyncContext.complete();
+            } catch (IllegalStateException e) {
+                // Already completed by the container after an error
+            }
+        }
+        
+        /**
+         * Result text sink that starts a new chunk every CHUNK_CHARS characters
+         */
+        private final class ChunkedText implements Appendable {
+            private final Appendable out;
+            private final PendingResult current;
+            private int written;
+            
+            ChunkedText(Appendable out, PendingResult current) {
+                this.out = out;
+                this.current = current;
+            }
+            
+            @Override
+            public Appendable append(CharSequence text) throws IOException {
+                out.append(text);
+                return count(text.length());
+            }
+            
+            @Override
+            public Appendable append(CharSequence text, int start, int end) throws IOException {
+                out.append(text, start, end);
+                return count(end - start);
+            }
+            
+            @Override
+            public Appendable append(char c) throws IOException {
+                out.append(c);
+                return count(1);
+            }
+            
+            private Appendable count(int length) throws IOException {
+                written += length;
+                if (written >= CHUNK_CHARS) {
+                    written = 0;
+                    splitChunk(current);
+                }
+                return this;
+            }
+        }
+    }
+    
+    /**
+     * A finished result waiting to be written, cheapest first
+     */
+    private static final class PendingResult implements Comparable<PendingResult> {
+        private final String operationType;
+        private final OperationResult result;
+        private final long cost;
+        
+        PendingResult(String operationType, OperationResult result, long cost) {
+            this.operationType = operationType;
+            this.result = result;
+            this.cost = cost;
+        }
+        
+        @Override
+        public int compareTo(PendingResult other) {
+            return Long.compare(cost, other.cost);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.mathservlets;
+
+import java.math.BigInteger;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Memory-bounded cache of factorial checkpoints.
+ * Checkpoints are stored for every multiple of a fixed interval, so a request for n
+ * only has to multiply the range between the nearest checkpoint below n and n.
+ * Lookups are lock-free; when the total size exceeds the budget, the entries that
+ * hold the most bits for the longest time without use are evicted first.
+ */
+public class FactorialCache {
+    
+    /** Default distance between checkpoints */
+    public static final int DEFAULT_INTERVAL = 1000;
+    
+    /** Default memory budget: 256 Mbit, i.e. 32 MB of factorial digits */
+    public static final long DEFAULT_MAX_BITS = 256L * 1024 * 1024;
+    
+    private final int interval;
+    private final long maxBits;
+    private final ConcurrentNavigableMap<Integer, Checkpoint> checkpoints = new ConcurrentSkipListMap<>();
+    private final AtomicLong totalBits = new AtomicLong();
+    private final AtomicLong clock = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    
+    public FactorialCache() {
+        this(DEFAULT_INTERVAL, DEFAULT_MAX_BITS);
+    }
+    
+    /**
+     * Creates a cache
+     * @param interval distance between checkpoints
+     * @param maxBits total bit length of cached values allowed before evicting
+     */
+    public FactorialCache(int interval, long maxBits) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("Checkpoint interval must be positive");
+        }
+        if (maxBits <= 0) {
+            throw new IllegalArgumentException("Cache budget must be positive");
+        }
+        this.interval = interval;
+        this.maxBits = maxBits;
+    }
+    
+    /**
+     * Gets the checkpoint that should be used for n
+     * @param n the number
+     * @return largest multiple of the interval not above n
+     */
+    public int checkpointFor(int n) {
+        return n - n % interval;
+    }
+    
+    /**
+     * Finds the nearest cached checkpoint at or below n and records a hit if it is
+     * close enough to be used, or a miss otherwise
+     * @param n the number
+     * @param maxGap largest distance below n at which a checkpoint is still worth extending
+     * @return entry mapping the checkpoint to its factorial, or null if none is cached within maxGap
+     */
+    public Map.Entry<Integer, BigInteger> floor(int n, int maxGap) {
+        Map.Entry<Integer, Checkpoint> entry = checkpoints.floorEntry(n);
+        if (entry == null || n - entry.getKey() > maxGap) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        Checkpoint checkpoint = entry.getValue();
+        checkpoint.lastAccess = clock.incrementAndGet();
+        return Map.entry(entry.getKey(), checkpoint.value);
+    }
+    
+    /**
+     * Stores the factorial of a checkpoint, evicting older entries if the budget is exceeded
+     * @param n the checkpoint, which must be a multiple of the interval
+     * @param factorial n!
+     */
+    public void put(int n, BigInteger factorial) {
+        if (n % interval != 0) {
+            throw new IllegalArgumentException("Not a checkpoint: " + n);
+        }
+        long bits = factorial.bitLength();
+        if (bits > maxBits) {
+            return;
+        }
+        Checkpoint checkpoint = new Checkpoint(factorial, clock.incrementAndGet());
+        if (checkpoints.putIfAbsent(n, checkpoint) == null) {
+            totalBits.addAndGet(bits);
+            if (totalBits.get() > maxBits) {
+                evict();
+            }
+        }
+    }
+    
+    /**
+     * Evicts entries until the cache is within budget. The victim is the entry with
+     * the highest product of bit length and time since last use.
+     */
+    private synchronized void evict() {
+        while (totalBits.get() > maxBits) {
+            long now = clock.get();
+            Integer victim = null;
+            double worst = -1;
+            for (Map.Entry<Integer, Checkpoint> entry : checkpoints.entrySet()) {
+                Checkpoint checkpoint = entry.getValue();
+                double score = (double) checkpoint.value.bitLength() * (now - checkpoint.lastAccess + 1);
+                if (score > worst) {
+                    worst = score;
+                    victim = entry.getKey();
+                }
+            }
+            if (victim == null) {
+                return;
+            }
+            Checkpoint removed = checkpoints.remove(victim);
+            if (removed != null) {
+                totalBits.addAndGet(-removed.value.bitLength());
+                evictions.increment();
+            }
+        }
+    }
+    
+    public int getInterval() {
+        return interval;
+    }
+    
+    public long getHits() {
+        return hits.sum();
+    }
+    
+    public long getMisses() {
+        return misses.sum();
+    }
+    
+    public long getEvictions() {
+        return evictions.sum();
+    }
+    
+    public long getTotalBits() {
+        return totalBits.get();
+    }
+    
+    public int size() {
+        return checkpoints.size();
+    }
+    
+    /**
+     * A cached factorial value with its last access time
+     */
+    private static class Checkpoint {
+        private final BigInteger value;
+        private volatile long lastAccess;
+        
+        Checkpoint(BigInteger value, long lastAccess) {
+            this.value = value;
+            this.lastAccess = lastAccess;
+        }
+    }
+}
@@ -0,0 +1,350 @@
+package com.mathservlets;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * High-performance factorial engine.
+ * The algorithm is picked by the size of n: small values come from a lookup table,
+ * medium values use a binary-splitting product tree, and large values use the prime
+ * factorization of n! so most of the work is squaring a few balanced products.
+ * Large product trees are split across a fork-join pool. With a FactorialCache,
+ * large requests start from the nearest cached checkpoint below n.
+ */
+public class FactorialEngine {
+    
+    /** Largest n whose factorial fits in a long */
+    static final int TABLE_LIMIT = 20;
+    
+    /** Smallest n computed through prime factorization instead of a plain product tree */
+    static final int PRIME_FACTORIZATION_THRESHOLD = 2048;
+    
+    /** Range width below which product trees are evaluated on the calling thread */
+    private static final int PARALLEL_THRESHOLD = 4096;
+    
+    /** Number of factors multiplied as primitive longs before switching to BigInteger */
+    private static final int LEAF_SIZE = 16;
+    
+    /**
+     * A checkpoint is extended from an older cached one only if the gap is at most this
+     * fraction of its value; otherwise computing it from scratch is cheaper
+     */
+    private static final int EXTENSION_DIVISOR = 4;
+    
+    private static final long[] SMALL_FACTORIALS = new long[TABLE_LIMIT + 1];
+    
+    static {
+        SMALL_FACTORIALS[0] = 1;
+        for (int i = 1; i <= TABLE_LIMIT; i++) {
+            SMALL_FACTORIALS[i] = SMALL_FACTORIALS[i - 1] * i;
+        }
+    }
+    
+    private final ForkJoinPool pool;
+    private final FactorialCache cache;
+    
+    /**
+     * Creates an uncached engine that splits large products across the common fork-join pool
+     */
+    public FactorialEngine() {
+        this(ForkJoinPool.commonPool(), null);
+    }
+    
+    /**
+     * Creates an engine that splits large products across the common fork-join pool
+     * @param cache checkpoint cache, or null to always compute from scratch
+     */
+    public FactorialEngine(FactorialCache cache) {
+        this(ForkJoinPool.commonPool(), cache);
+    }
+    
+    /**
+     * Creates an engine
+     * @param pool pool used for parallel subtrees
+     * @param cache checkpoint cache, or null to always compute from scratch
+     */
+    public FactorialEngine(ForkJoinPool pool, FactorialCache cache) {
+        this.pool = pool;
+        this.cache = cache;
+    }
+    
+    /**
+     * Calculates n!
+     * @param n the number
+     * @return factorial result as BigInteger
+     * @throws IllegalArgumentException if n is negative
+     */
+    public BigInteger factorial(int n) {
+        return factorial(n, CancellationToken.NONE);
+    }
+    
+    /**
+     * Calculates n!, checking the token between subtrees of the product and between squarings
+     * @param n the number
+     * @param token cancellation token of the request
+     * @return factorial result as BigInteger
+     * @throws IllegalArgumentException if n is negative
+     * @throws java.util.concurrent.CancellationException if the token trips
+     */
+    public BigInteger factorial(int n, CancellationToken token) {
+        if (n < 0) {
+            throw new IllegalArgumentException("Factorial is not defined for negative numbers");
+        }
+        if (n <= TABLE_LIMIT) {
+            return BigInteger.valueOf(SMALL_FACTORIALS[n]);
+        }
+        if (cache == null || n < cache.getInterval()) {
+            return compute(n, token);
+        }
+        return extend(checkpointFactorial(cache.checkpointFor(n), token), cache.checkpointFor(n), n, token);
+    }
+    
+    /**
+     * Gets the factorial of a checkpoint from the cache, extending an older checkpoint
+     * or computing it from scratch on a miss
+     */
+    private BigInteger checkpointFactorial(int checkpoint, CancellationToken token) {
+        Map.Entry<Integer, BigInteger> nearest = cache.floor(checkpoint, checkpoint / EXTENSION_DIVISOR);
+        if (nearest != null && nearest.getKey() == checkpoint) {
+            return nearest.getValue();
+        }
+        
+        BigInteger value;
+        if (nearest != null) {
+            value = extend(nearest.getValue(), nearest.getKey(), checkpoint, token);
+        } else {
+            value = compute(checkpoint, token);
+        }
+        cache.put(checkpoint, value);
+        return value;
+    }
+    
+    /**
+     * Computes n! from from! by multiplying the remaining range
+     */
+    private BigInteger extend(BigInteger fromFactorial, int from, int n, CancellationToken token) {
+        if (from == n) {
+            return fromFactorial;
+        }
+        BigInteger range = product(from + 1, n, token);
+        token.checkpoint();
+        return fromFactorial.multiply(range);
+    }
+    
+    /**
+     * Computes n! from scratch with the algorithm suited to its size
+     */
+    private BigInteger compute(int n, CancellationToken token) {
+        if (n <= TABLE_LIMIT) {
+            return BigInteger.valueOf(SMALL_FACTORIALS[n]);
+        }
+        if (n < PRIME_FACTORIZATION_THRESHOLD) {
+            return product(2, n, token);
+        }
+        return primeFactorization(n, token);
+    }
+    
+    /**
+     * Multiplies all integers in the inclusive range [from, to]
+     * @param from first factor
+     * @param to last factor
+     * @return the product, or 1 for an empty range
+     */
+    public BigInteger product(int from, int to) {
+        return product(from, to, CancellationToken.NONE);
+    }
+    
+    private BigInteger product(int from, int to, CancellationToken token) {
+        if (from > to) {
+            return BigInteger.ONE;
+        }
+        if ((long) to - from < PARALLEL_THRESHOLD) {
+            return rangeProduct(from, to);
+        }
+        return pool.invoke(new RangeProductTask(from, to, token));
+    }
+    
+    /**
+     * Computes n! as 2^e2 times the product of odd prime powers. Primes are grouped
+     * by the bits of their exponents so that the result is built with one balanced
+     * product per bit and a chain of squarings.
+     */
+    private BigInteger primeFactorization(int n, CancellationToken token) {
+        int[] primes = PrimeSieve.oddPrimesUpTo(n);
+        int[] exponents = new int[primes.length];
+        int maxExponent = 0;
+        for (int i = 0; i < primes.length; i++) {
+            int exponent = legendreExponent(n, primes[i]);
+            exponents[i] = exponent;
+            maxExponent = Math.max(maxExponent, exponent);
+        }
+        
+        int bits = 32 - Integer.numberOfLeadingZeros(maxExponent);
+        int[][] groups = new int[bits][];
+        int[] sizes = new int[bits];
+        for (int exponent : exponents) {
+            for (int bit = 0; bit < bits; bit++) {
+                if ((exponent & (1 << bit)) != 0) {
+                    sizes[bit]++;
+                }
+            }
+        }
+        for (int bit = 0; bit < bits; bit++) {
+            groups[bit] = new int[sizes[bit]];
+            sizes[bit] = 0;
+        }
+        for (int i = 0; i < primes.length; i++) {
+            for (int bit = 0; bit < bits; bit++) {
+                if ((exponents[i] & (1 << bit)) != 0) {
+                    groups[bit][sizes[bit]++] = primes[i];
+                }
+            }
+        }
+        
+        List<ForkJoinTask<BigInteger>> parts = new ArrayList<>(bits);
+        for (int bit = 0; bit < bits; bit++) {
+            parts.add(pool.submit(new ArrayProductTask(groups[bit], 0, groups[bit].length, token)));
+        }
+        
+        BigInteger result = BigInteger.ONE;
+        try {
+            for (int bit = bits - 1; bit >= 0; bit--) {
+                token.checkpoint();
+                result = result.multiply(result).multiply(parts.get(bit).join());
+            }
+        } finally {
+            // Parts not yet joined stop at their next check once the token has tripped
+            if (token.isCancelled()) {
+                for (ForkJoinTask<BigInteger> part : parts) {
+                    part.cancel(false);
+                }
+            }
+        }
+        
+        // The exponent of 2 in n! is n minus the number of one bits in n
+        return result.shiftLeft(n - Integer.bitCount(n));
+    }
+    
+    /**
+     * Gets the exponent of prime p in n! using Legendre's formula
+     */
+    static int legendreExponent(int n, int p) {
+        int exponent = 0;
+        int quotient = n;
+        while (quotient >= p) {
+            quotient /= p;
+            exponent += quotient;
+        }
+        return exponent;
+    }
+    
+    /**
+     * Sequential binary-splitting product of the inclusive range [from, to]
+     */
+    static BigInteger rangeProduct(long from, long to) {
+        if (to - from < LEAF_SIZE) {
+            BigInteger result = BigInteger.ONE;
+            long accumulator = 1;
+            for (long i = from; i <= to; i++) {
+                if (accumulator > Long.MAX_VALUE / i) {
+                    result = result.multiply(BigInteger.valueOf(accumulator));
+                    accumulator = i;
+                } else {
+                    accumulator *= i;
+                }
+            }
+            return result.multiply(BigInteger.valueOf(accumulator));
+        }
+        long mid = (from + to) >>> 1;
+        return rangeProduct(from, mid).multiply(rangeProduct(mid + 1, to));
+    }
+    
+    /**
+     * Sequential binary-splitting product of values[from, to)
+     */
+    static BigInteger arrayProduct(int[] values, int from, int to) {
+        if (to - from <= LEAF_SIZE) {
+            BigInteger result = BigInteger.ONE;
+            long accumulator = 1;
+            for (int i = from; i < to; i++) {
+                long value = values[i];
+                if (accumulator > Long.MAX_VALUE / value) {
+                    result = result.multiply(BigInteger.valueOf(accumulator));
+                    accumulator = value;
+                } else {
+                    accumulator *= value;
+                }
+            }
+            return result.multiply(BigInteger.valueOf(accumulator));
+        }
+        int mid = (from + to) >>> 1;
+        return arrayProduct(values, from, mid).multiply(arrayProduct(values, mid, to));
+    }
+    
+    /**
+     * Fork-join product of an integer range
+     */
+    private static class RangeProductTask extends RecursiveTask<BigInteger> {
+        private static final long serialVersionUID = 1L;
+        
+        private final long from;
+        private final long to;
+        private final CancellationToken token;
+        
+        RangeProductTask(long from, long to, CancellationToken token) {
+            this.from = from;
+            this.to = to;
+            this.token = token;
+        }
+        
+        @Override
+        protected BigInteger compute() {
+            token.checkpoint();
+            if (to - from < PARALLEL_THRESHOLD) {
+                return rangeProduct(from, to);
+            }
+            long mid = (from + to) >>> 1;
+            RangeProductTask left = new RangeProductTask(from, mid, token);
+            left.fork();
+            BigInteger right = new RangeProductTask(mid + 1, to, token).compute();
+            return left.join().multiply(right);
+        }
+    }
+    
+    /**
+     * Fork-join product of a slice of an int array
+     */
+    private static class ArrayProductTask extends RecursiveTask<BigInteger> {
+        private static final long serialVersionUID = 1L;
+        
+        private final int[] values;
+        private final int from;
+        private final int to;
+        private final CancellationToken token;
+        
+        ArrayProductTask(int[] values, int from, int to, CancellationToken token) {
+            this.values = values;
+            this.from = from;
+            this.to = to;
+            this.token = token;
+        }
+        
+        @Override
+        protected BigInteger compute() {
+            token.checkpoint();
+            if (to - from < PARALLEL_THRESHOLD) {
+                return arrayProduct(values, from, to);
+            }
+            int mid = (from + to) >>> 1;
+            ArrayProductTask left = new ArrayProductTask(values, from, mid, token);
+            left.fork();
+            BigInteger right = new ArrayProductTask(values, mid, to, token).compute();
+            return left.join().multiply(right);
+        }
+    }
+}
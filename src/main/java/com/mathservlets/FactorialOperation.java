@@ -1,13 +1,28 @@
 package com.mathservlets;
 
 import java.math.BigInteger;
+import java.util.concurrent.CancellationException;
 
 /**
  * Implementation of factorial operation.
- * Uses BigInteger to handle large numbers.
+ * Uses BigInteger to handle large numbers and caches checkpoints
+ * so nearby inputs do not recompute from scratch.
  */
 public class FactorialOperation implements MathOperation {
     
+    private final FactorialEngine engine;
+    
+    private final FactorialCache cache;
+    
+    public FactorialOperation() {
+        this(new FactorialCache());
+    }
+    
+    public FactorialOperation(FactorialCache cache) {
+        this.cache = cache;
+        this.engine = new FactorialEngine(cache);
+    }
+    
     @Override
     public String execute(int number) {
         if (number < 0) {
@@ -20,23 +35,73 @@ public class FactorialOperation implements MathOperation {
         
         try {
             BigInteger result = calculateFactorial(number);
-            return "Factorial of " + number + " = " + result.toString();
+            return "Factorial of " + number + " = " + DecimalRenderer.toDecimalString(result);
         } catch (Exception e) {
             return "Error calculating factorial: " + e.getMessage();
         }
     }
     
     /**
-     * Calculates factorial using iterative approach for better performance
+     * Calculates the factorial up front and renders its digits only when the
+     * result is written, so they stream straight to the output
+     */
+    @Override
+    public OperationResult evaluate(int number) {
+        return evaluate(number, CancellationToken.NONE);
+    }
+    
+    /**
+     * Checks the token between the product tree's subtrees and between rendered digit blocks
+     */
+    @Override
+    public OperationResult evaluate(int number, CancellationToken token) {
+        if (number <= 1) {
+            return OperationResult.of(execute(number));
+        }
+        
+        BigInteger result;
+        try {
+            result = engine.factorial(number, token);
+        } catch (CancellationException e) {
+            throw e;
+        } catch (Exception e) {
+            return OperationResult.error("Error calculating factorial: " + e.getMessage());
+        }
+        return out -> {
+            out.append("Factorial of ").append(String.valueOf(number)).append(" = ");
+            DecimalRenderer.writeTo(result, out, token);
+        };
+    }
+    
+    /**
+     * Estimates the cost from the number of digits in n!, since the multiplication and
+     * the decimal rendering both grow with it: about two microseconds per digit
+     */
+    @Override
+    public long estimateCost(int number) {
+        if (number < 3) {
+            return 1;
+        }
+        // Stirling: log10(n!) is about n * log10(n / e)
+        double digits = number * Math.log10(number / Math.E);
+        return (long) (2 * digits) + 1;
+    }
+    
+    /**
+     * Calculates factorial using the engine's product tree or prime factorization
      * @param n the number
      * @return factorial result as BigInteger
      */
     private BigInteger calculateFactorial(int n) {
-        BigInteger result = BigInteger.ONE;
-        for (int i = 2; i <= n; i++) {
-            result = result.multiply(BigInteger.valueOf(i));
-        }
-        return result;
+        return engine.factorial(n);
+    }
+    
+    /**
+     * Gets the checkpoint cache backing this operation
+     * @return factorial cache
+     */
+    public FactorialCache getCache() {
+        return cache;
     }
     
     @Override
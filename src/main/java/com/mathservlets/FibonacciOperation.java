@@ -1,14 +1,32 @@
 package com.mathservlets;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.IOException;
+import java.math.BigInteger;
 
 /**
  * Implementation of Fibonacci series operation.
  * Generates Fibonacci series up to the given number of terms.
+ * Terms that fit in a long come from a precomputed table; later terms are
+ * generated with BigInteger and written out one at a time, so the series is
+ * never held in memory as a whole.
  */
 public class FibonacciOperation implements MathOperation {
     
+    /** Number of leading terms that fit in a long: F(0) through F(92) */
+    static final int LONG_TERMS = 93;
+    
+    /** Terms generated between cancellation checks */
+    private static final int CHECK_INTERVAL = 64;
+    
+    private static final long[] LONG_SERIES = new long[LONG_TERMS];
+    
+    static {
+        LONG_SERIES[1] = 1;
+        for (int i = 2; i < LONG_TERMS; i++) {
+            LONG_SERIES[i] = LONG_SERIES[i - 1] + LONG_SERIES[i - 2];
+        }
+    }
+    
     @Override
     public String execute(int number) {
         if (number < 0) {
@@ -23,36 +41,100 @@ public class FibonacciOperation implements MathOperation {
             return "Fibonacci series with 1 term: [0]";
         }
         
-        List<Long> fibonacciSeries = generateFibonacciSeries(number);
-        
         StringBuilder result = new StringBuilder();
         result.append("Fibonacci series with ").append(number).append(" terms: ");
-        result.append(fibonacciSeries.toString());
+        try {
+            writeFibonacciSeries(number, result);
+        } catch (IOException e) {
+            // StringBuilder never throws
+            throw new IllegalStateException(e);
+        }
         
         return result.toString();
     }
     
     /**
-     * Generates Fibonacci series up to n terms
+     * Defers generating the series until the result is written, so terms go
+     * to the output as they are produced
+     */
+    @Override
+    public OperationResult evaluate(int number) {
+        return evaluate(number, CancellationToken.NONE);
+    }
+    
+    @Override
+    public OperationResult evaluate(int number, CancellationToken token) {
+        token.checkpoint();
+        if (number <= 1) {
+            return OperationResult.of(execute(number));
+        }
+        return out -> {
+            out.append("Fibonacci series with ").append(String.valueOf(number)).append(" terms: ");
+            writeFibonacciSeries(number, out, token);
+        };
+    }
+    
+    /**
+     * Estimates the cost from the length of the written series: term i has about
+     * 0.21 * i digits, so n terms total about n^2 / 10 digits at roughly a tenth of a
+     * microsecond each
+     */
+    @Override
+    public long estimateCost(int number) {
+        if (number < LONG_TERMS) {
+            return 1;
+        }
+        long terms = number;
+        return terms * terms / 100 + terms;
+    }
+    
+    /**
+     * Writes the first n Fibonacci numbers as a bracketed, comma-separated list,
+     * emitting each term as soon as it is generated
      * @param n number of terms
-     * @return list of Fibonacci numbers
+     * @param out destination for the series
+     * @throws IOException if the output fails
      */
-    private List<Long> generateFibonacciSeries(int n) {
-        List<Long> series = new ArrayList<>();
+    public void writeFibonacciSeries(int n, Appendable out) throws IOException {
+        writeFibonacciSeries(n, out, CancellationToken.NONE);
+    }
+    
+    /**
+     * Writes the first n Fibonacci numbers, checking the token every CHECK_INTERVAL terms
+     * @param n number of terms
+     * @param out destination for the series
+     * @param token cancellation token of the request
+     * @throws IOException if the output fails
+     * @throws java.util.concurrent.CancellationException if the token trips
+     */
+    public void writeFibonacciSeries(int n, Appendable out, CancellationToken token) throws IOException {
+        out.append('[');
         
-        if (n >= 1) {
-            series.add(0L);
-        }
-        if (n >= 2) {
-            series.add(1L);
+        int longTerms = Math.min(n, LONG_TERMS);
+        for (int i = 0; i < longTerms; i++) {
+            if (i > 0) {
+                out.append(", ");
+            }
+            out.append(Long.toString(LONG_SERIES[i]));
         }
         
-        for (int i = 2; i < n; i++) {
-            long next = series.get(i - 1) + series.get(i - 2);
-            series.add(next);
+        if (n > LONG_TERMS) {
+            // Terms past F(92) overflow a long, so continue exactly with BigInteger
+            BigInteger previous = BigInteger.valueOf(LONG_SERIES[LONG_TERMS - 2]);
+            BigInteger current = BigInteger.valueOf(LONG_SERIES[LONG_TERMS - 1]);
+            for (int i = LONG_TERMS; i < n; i++) {
+                if (i % CHECK_INTERVAL == 0) {
+                    token.checkpoint();
+                }
+                BigInteger next = previous.add(current);
+                previous = current;
+                current = next;
+                out.append(", ");
+                DecimalRenderer.writeTo(current, out);
+            }
         }
         
-        return series;
+        out.append(']');
     }
     
     @Override
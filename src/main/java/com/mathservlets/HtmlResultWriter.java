@@ -0,0 +1,226 @@
+package com.mathservlets;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Single-pass streaming formatter for operation results.
+ * Escapes HTML, spaces out arithmetic symbols and wraps standalone numbers in
+ * highlight spans as text passes through, writing to the underlying writer
+ * through a fixed-size buffer that is reused for every result of a response.
+ * Digit runs longer than the highlight limit, such as the digits of a large
+ * factorial, skip highlighting and are copied through in bulk.
+ */
+public class HtmlResultWriter extends Writer {
+    
+    /** Size of the output buffer in characters */
+    static final int BUFFER_SIZE = 4096;
+    
+    /** Longest digit run that is highlighted; longer runs are written as plain text */
+    static final int MAX_PENDING_DIGITS = 64;
+    
+    private static final String NUMBER_OPEN = "<span class='math-number'>";
+    private static final String NUMBER_CLOSE = "</span>";
+    
+    private final Writer out;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int count;
+    
+    private final char[] pending = new char[MAX_PENDING_DIGITS];
+    private int pendingCount;
+    private boolean longRun;
+    private boolean previousWord;
+    
+    /**
+     * Creates a formatter
+     * @param out writer receiving the formatted HTML
+     */
+    public HtmlResultWriter(Writer out) {
+        this.out = out;
+    }
+    
+    @Override
+    public void write(char[] chars, int offset, int length) throws IOException {
+        int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            if (longRun && isDigit(chars[i])) {
+                int runEnd = i + 1;
+                while (runEnd < end && isDigit(chars[runEnd])) {
+                    runEnd++;
+                }
+                emit(chars, i, runEnd - i);
+                i = runEnd;
+            } else {
+                accept(chars[i++]);
+            }
+        }
+    }
+    
+    @Override
+    public void write(String text, int offset, int length) throws IOException {
+        int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            if (longRun && isDigit(text.charAt(i))) {
+                int runEnd = i + 1;
+                while (runEnd < end && isDigit(text.charAt(runEnd))) {
+                    runEnd++;
+                }
+                emit(text, i, runEnd - i);
+                i = runEnd;
+            } else {
+                accept(text.charAt(i++));
+            }
+        }
+    }
+    
+    @Override
+    public void write(int c) throws IOException {
+        accept((char) c);
+    }
+    
+    /**
+     * Formats one character of result text
+     */
+    private void accept(char c) throws IOException {
+        if (isDigit(c)) {
+            if (longRun) {
+                emit(c);
+            } else if (pendingCount > 0) {
+                if (pendingCount < MAX_PENDING_DIGITS) {
+                    pending[pendingCount++] = c;
+                } else {
+                    // Too long to highlight; release the held digits and copy the rest through
+                    emit(pending, 0, pendingCount);
+                    pendingCount = 0;
+                    emit(c);
+                    longRun = true;
+                }
+            } else if (previousWord) {
+                emit(c);
+            } else {
+                pending[pendingCount++] = c;
+            }
+            previousWord = true;
+            return;
+        }
+        
+        boolean word = isWordChar(c);
+        if (pendingCount > 0) {
+            // Digits are a standalone number only if a non-word character follows
+            if (!word) {
+                emit(NUMBER_OPEN);
+            }
+            emit(pending, 0, pendingCount);
+            if (!word) {
+                emit(NUMBER_CLOSE);
+            }
+            pendingCount = 0;
+        }
+        longRun = false;
+        
+        switch (c) {
+            case '&': emit("&amp;"); break;
+            case '<': emit("&lt;"); break;
+            case '>': emit("&gt;"); break;
+            case '"': emit("&quot;"); break;
+            case '\'': emit("&#39;"); break;
+            case '*': emit(" × "); break;
+            case '/': emit(" ÷ "); break;
+            case '+': emit(" + "); break;
+            case '=': emit(" = "); break;
+            default: emit(c); break;
+        }
+        previousWord = word;
+    }
+    
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+    
+    private static boolean isWordChar(char c) {
+        return c == '_' || Character.isLetterOrDigit(c);
+    }
+    
+    /**
+     * Ends the current result, highlighting any number still held back, and
+     * writes the buffered output. The formatter can then be reused for the next result.
+     * @throws IOException if the output fails
+     */
+    public void finish() throws IOException {
+        if (pendingCount > 0) {
+            emit(NUMBER_OPEN);
+            emit(pending, 0, pendingCount);
+            emit(NUMBER_CLOSE);
+            pendingCount = 0;
+        }
+        longRun = false;
+        previousWord = false;
+        flushBuffer();
+    }
+    
+    private void emit(char c) throws IOException {
+        if (count == BUFFER_SIZE) {
+            flushBuffer();
+        }
+        buffer[count++] = c;
+    }
+    
+    private void emit(String text) throws IOException {
+        emit(text, 0, text.length());
+    }
+    
+    /**
+     * Copies a slice of a string into the buffer in as few chunks as possible
+     */
+    private void emit(String text, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (count == BUFFER_SIZE) {
+                flushBuffer();
+            }
+            int chunk = Math.min(length, BUFFER_SIZE - count);
+            text.getChars(offset, offset + chunk, buffer, count);
+            count += chunk;
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+    
+    /**
+     * Copies a slice of a char array into the buffer in as few chunks as possible
+     */
+    private void emit(char[] chars, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (count == BUFFER_SIZE) {
+                flushBuffer();
+            }
+            int chunk = Math.min(length, BUFFER_SIZE - count);
+            System.arraycopy(chars, offset, buffer, count, chunk);
+            count += chunk;
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+    
+    private void flushBuffer() throws IOException {
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+    }
+    
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+    
+    /**
+     * Finishes the current result without closing the underlying writer
+     */
+    @Override
+    public void close() throws IOException {
+        finish();
+    }
+}
@@ -0,0 +1,51 @@
+package com.mathservlets;
+
+import java.util.function.Function;
+
+/**
+ * Parses the numeric init and context parameters of the application's servlets,
+ * filters and listeners. An absent or blank value falls back to the default.
+ * Parameters are looked up through a method reference such as
+ * {@code this::getInitParameter} or {@code context::getInitParameter}.
+ */
+final class InitParameters {
+    
+    private InitParameters() {
+    }
+    
+    /**
+     * Parses an integer parameter
+     * @param parameters lookup of parameter values by name
+     * @param name the parameter name
+     * @param defaultValue value used when the parameter is not set
+     * @return the parsed value or the default
+     * @throws IllegalArgumentException if the value is not an integer
+     */
+    static int intValue(Function<String, String> parameters, String name, int defaultValue) {
+        long parsed = longValue(parameters, name, defaultValue);
+        if (parsed != (int) parsed) {
+            throw new IllegalArgumentException("Parameter " + name + " is out of range: " + parsed);
+        }
+        return (int) parsed;
+    }
+    
+    /**
+     * Parses a long parameter
+     * @param parameters lookup of parameter values by name
+     * @param name the parameter name
+     * @param defaultValue value used when the parameter is not set
+     * @return the parsed value or the default
+     * @throws IllegalArgumentException if the value is not an integer
+     */
+    static long longValue(Function<String, String> parameters, String name, long defaultValue) {
+        String value = parameters.apply(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Parameter " + name + " must be an integer: " + value, e);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.mathservlets;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Minimal streaming JSON writer.
+ * Values are written straight to the underlying writer as they are produced,
+ * with no document tree or intermediate strings. Operation results are escaped
+ * as they stream, so the digits of a large number go directly into the output.
+ */
+public class JsonWriter {
+    
+    /** Deepest nesting of objects and arrays supported */
+    static final int MAX_DEPTH = 64;
+    
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    
+    private final Writer out;
+    private final Appendable escaper = new StringEscaper();
+    
+    /** One bit per nesting level, set once the container at that level has a member */
+    private long nonEmpty;
+    private int depth;
+    private boolean afterName;
+    
+    /**
+     * Creates a JSON writer
+     * @param out writer receiving the JSON text
+     */
+    public JsonWriter(Writer out) {
+        this.out = out;
+    }
+    
+    public JsonWriter beginObject() throws IOException {
+        return open('{');
+    }
+    
+    public JsonWriter endObject() throws IOException {
+        return close('}');
+    }
+    
+    public JsonWriter beginArray() throws IOException {
+        return open('[');
+    }
+    
+    public JsonWriter endArray() throws IOException {
+        return close(']');
+    }
+    
+    /**
+     * Writes the name of the next object member
+     * @param name member name
+     * @return this writer
+     * @throws IOException if the output fails
+     */
+    public JsonWriter name(String name) throws IOException {
+        if (depth == 0 || afterName) {
+            throw new IllegalStateException("Member name outside of an object");
+        }
+        separate();
+        writeString(name);
+        out.write(':');
+        afterName = true;
+        return this;
+    }
+    
+    public JsonWriter value(String value) throws IOException {
+        beforeValue();
+        if (value == null) {
+            out.write("null");
+        } else {
+            writeString(value);
+        }
+        return this;
+    }
+    
+    public JsonWriter value(long value) throws IOException {
+        beforeValue();
+        out.write(Long.toString(value));
+        return this;
+    }
+    
+    public JsonWriter value(boolean value) throws IOException {
+        beforeValue();
+        out.write(value ? "true" : "false");
+        return this;
+    }
+    
+    /**
+     * Streams an operation result as a JSON string
+     * @param result the result to write
+     * @return this writer
+     * @throws IOException if the output fails
+     */
+    public JsonWriter value(OperationResult result) throws IOException {
+        beforeValue();
+        out.write('"');
+        result.writeTo(escaper);
+        out.write('"');
+        return this;
+    }
+    
+    /**
+     * Ends a top-level value with a newline, as in newline-delimited JSON
+     * @throws IOException if the output fails
+     */
+    public void endLine() throws IOException {
+        if (depth != 0) {
+            throw new IllegalStateException("Unclosed JSON value");
+        }
+        out.write('\n');
+    }
+    
+    public void flush() throws IOException {
+        out.flush();
+    }
+    
+    private JsonWriter open(char bracket) throws IOException {
+        if (depth == MAX_DEPTH) {
+            throw new IllegalStateException("JSON nesting is too deep");
+        }
+        beforeValue();
+        out.write(bracket);
+        depth++;
+        nonEmpty &= ~(1L << (depth - 1));
+        return this;
+    }
+    
+    private JsonWriter close(char bracket) throws IOException {
+        if (depth == 0 || afterName) {
+            throw new IllegalStateException("Nothing to close");
+        }
+        depth--;
+        out.write(bracket);
+        return this;
+    }
+    
+    private void beforeValue() throws IOException {
+        if (afterName) {
+            afterName = false;
+        } else {
+            separate();
+        }
+    }
+    
+    /**
+     * Writes a comma before every member of a container except the first
+     */
+    private void separate() throws IOException {
+        if (depth == 0) {
+            return;
+        }
+        long bit = 1L << (depth - 1);
+        if ((nonEmpty & bit) != 0) {
+            out.write(',');
+        } else {
+            nonEmpty |= bit;
+        }
+    }
+    
+    private void writeString(String text) throws IOException {
+        out.write('"');
+        escaper.append(text);
+        out.write('"');
+    }
+    
+    private void escape(char c) throws IOException {
+        switch (c) {
+            case '"': out.write("\\\""); break;
+            case '\\': out.write("\\\\"); break;
+            case '\n': out.write("\\n"); break;
+            case '\r': out.write("\\r"); break;
+            case '\t': out.write("\\t"); break;
+            case '\b': out.write("\\b"); break;
+            case '\f': out.write("\\f"); break;
+            default:
+                if (c < 0x20) {
+                    out.write("\\u00");
+                    out.write(HEX[c >> 4]);
+                    out.write(HEX[c & 0xF]);
+                } else {
+                    out.write(c);
+                }
+                break;
+        }
+    }
+    
+    /**
+     * Escapes string content on its way to the output
+     */
+    private class StringEscaper implements Appendable {
+        
+        @Override
+        public Appendable append(CharSequence text) throws IOException {
+            return append(text, 0, text.length());
+        }
+        
+        @Override
+        public Appendable append(CharSequence text, int start, int end) throws IOException {
+            for (int i = start; i < end; i++) {
+                escape(text.charAt(i));
+            }
+            return this;
+        }
+        
+        @Override
+        public Appendable append(char c) throws IOException {
+            escape(c);
+            return this;
+        }
+    }
+}
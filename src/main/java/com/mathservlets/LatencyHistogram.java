@@ -0,0 +1,90 @@
+package com.mathservlets;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with power-of-two buckets.
+ * Bucket i counts durations up to 2^(MIN_EXPONENT + i) nanoseconds, from about a
+ * microsecond to about a minute, plus one overflow bucket. Recording is a pair of
+ * atomic adds and never allocates, so it can sit on every request.
+ */
+public class LatencyHistogram {
+    
+    /** Upper bound of the first bucket is 2^10 ns, about one microsecond */
+    static final int MIN_EXPONENT = 10;
+    
+    /** Upper bound of the last finite bucket is 2^36 ns, about 69 seconds */
+    static final int MAX_EXPONENT = 36;
+    
+    /** Number of finite buckets; one more slot holds durations above the last bound */
+    static final int BUCKETS = MAX_EXPONENT - MIN_EXPONENT + 1;
+    
+    private static final int OVERFLOW = BUCKETS;
+    private static final int SUM = BUCKETS + 1;
+    
+    private final AtomicLongArray slots = new AtomicLongArray(BUCKETS + 2);
+    
+    /**
+     * Records one duration
+     * @param nanos elapsed time in nanoseconds
+     */
+    public void record(long nanos) {
+        slots.incrementAndGet(bucketFor(nanos));
+        slots.addAndGet(SUM, Math.max(nanos, 0));
+    }
+    
+    /**
+     * Gets the bucket a duration falls into
+     * @param nanos elapsed time in nanoseconds
+     * @return bucket index, or BUCKETS for the overflow bucket
+     */
+    static int bucketFor(long nanos) {
+        if (nanos <= 1) {
+            return 0;
+        }
+        // Smallest e with nanos <= 2^e
+        int exponent = 64 - Long.numberOfLeadingZeros(nanos - 1);
+        if (exponent > MAX_EXPONENT) {
+            return OVERFLOW;
+        }
+        return Math.max(0, exponent - MIN_EXPONENT);
+    }
+    
+    /**
+     * Gets the upper bound of a finite bucket
+     * @param bucket bucket index below BUCKETS
+     * @return bound in nanoseconds
+     */
+    static long upperBoundNanos(int bucket) {
+        return 1L << (MIN_EXPONENT + bucket);
+    }
+    
+    /**
+     * Gets the number of durations recorded in one bucket
+     * @param bucket bucket index, or BUCKETS for the overflow bucket
+     * @return count for that bucket alone
+     */
+    public long getBucketCount(int bucket) {
+        return slots.get(bucket);
+    }
+    
+    /**
+     * Gets the number of recorded durations
+     * @return total count
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i <= OVERFLOW; i++) {
+            count += slots.get(i);
+        }
+        return count;
+    }
+    
+    /**
+     * Gets the sum of recorded durations
+     * @return total in nanoseconds
+     */
+    public long getSumNanos() {
+        return slots.get(SUM);
+    }
+}
@@ -13,6 +13,65 @@ public interface MathOperation {
      */
     String execute(int number);
     
+    /**
+     * Evaluates the operation and returns a result that can be streamed.
+     * Operations with large outputs override this to defer building the text;
+     * the default adapts {@link #execute(int)}.
+     * @param number the input number
+     * @return result to be written out
+     */
+    default OperationResult evaluate(int number) {
+        return OperationResult.of(execute(number));
+    }
+    
+    /**
+     * Evaluates the operation, stopping early once the token trips. Operations whose
+     * work grows with the input override this and check the token in their loops,
+     * including while the result is written; the default checks it once up front.
+     * @param number the input number
+     * @param token cancellation token of the request
+     * @return result to be written out
+     * @throws java.util.concurrent.CancellationException if the token trips
+     */
+    default OperationResult evaluate(int number, CancellationToken token) {
+        token.checkpoint();
+        return evaluate(number);
+    }
+    
+    /**
+     * Evaluates the operation to the requested number of decimal places. Only operations
+     * with inexact results use the precision; the default ignores it.
+     * @param number the input number
+     * @param precision decimal places, or 0 for the operation's default
+     * @param token cancellation token of the request
+     * @return result to be written out
+     * @throws java.util.concurrent.CancellationException if the token trips
+     */
+    default OperationResult evaluate(int number, int precision, CancellationToken token) {
+        return evaluate(number, token);
+    }
+    
+    /**
+     * Estimates how expensive evaluating and writing the result is, so requests can be
+     * admitted by cost rather than by count. The unit is roughly a microsecond of
+     * single-core work; the default suits operations whose cost does not grow with the input.
+     * @param number the input number
+     * @return estimated cost, at least 1
+     */
+    default long estimateCost(int number) {
+        return 1;
+    }
+    
+    /**
+     * Estimates the cost of evaluating the operation to the requested number of decimal places
+     * @param number the input number
+     * @param precision decimal places, or 0 for the operation's default
+     * @return estimated cost, at least 1
+     */
+    default long estimateCost(int number, int precision) {
+        return estimateCost(number);
+    }
+    
     /**
      * Gets the operation name
      * @return operation name
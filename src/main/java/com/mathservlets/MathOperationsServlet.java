@@ -1,11 +1,16 @@
 package com.mathservlets;
 
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -14,15 +19,136 @@ import javax.servlet.http.HttpServletResponse;
 /**
  * Main servlet that handles mathematical operations requests.
  * Uses Strategy pattern for scalable operation handling.
+ * In async mode operations run on a bounded compute pool so request threads
+ * return to the connector while results are calculated.
  */
 public class MathOperationsServlet extends HttpServlet {
     private static final long serialVersionUID = 1L;
     
-    private final OperationFactory operationFactory;
+    private static final long DEFAULT_ASYNC_TIMEOUT_MILLIS = 30000L;
+    private static final int DEFAULT_QUEUE_CAPACITY = 64;
+    private static final int RETRY_AFTER_SECONDS = 5;
+    private static final int RESPONSE_BUFFER_SIZE = 8192;
+    
+    /** Request attribute carrying a failure of the compute pool while it calculated or wrote the response */
+    private static final String WRITE_FAILURE = MathOperationsServlet.class.getName() + ".writeFailure";
+    
+    private transient OperationFactory operationFactory;
+    private transient OperationRunner operationRunner;
+    private transient PageShell pageShell;
+    private transient OperationMetrics operationMetrics;
+    private transient ComputeExecutor computeExecutor;
+    private transient AdmissionController admissionController;
+    private long asyncTimeoutMillis = DEFAULT_ASYNC_TIMEOUT_MILLIS;
     
     public MathOperationsServlet() {
         super();
-        this.operationFactory = new OperationFactory();
+    }
+    
+    @Override
+    public void init() throws ServletException {
+        // The factory and its prime sieve are built once per application, normally by WarmUpListener
+        try {
+            operationFactory = OperationFactory.forContext(getServletContext());
+        } catch (IllegalArgumentException e) {
+            throw new ServletException("Invalid sieve configuration: " + e.getMessage(), e);
+        }
+        
+        operationMetrics = OperationMetrics.forContext(getServletContext(), operationFactory.getAvailableOperations());
+        MathOperation factorial = operationFactory.getOperation("factorial");
+        if (factorial instanceof FactorialOperation) {
+            operationMetrics.setFactorialCache(((FactorialOperation) factorial).getCache());
+        }
+        operationMetrics.setResultStore(operationFactory.getResultStore());
+        
+        try {
+            admissionController = AdmissionController.forContext(getServletContext());
+        } catch (IllegalArgumentException e) {
+            throw new ServletException("Invalid admission configuration: " + e.getMessage(), e);
+        }
+        operationMetrics.setAdmissionController(admissionController);
+        
+        pageShell = new PageShell(operationFactory.getAvailableOperations());
+        try {
+            int fanOutParallelism = InitParameters.intValue(this::getInitParameter, "fanOutParallelism", 0);
+            operationRunner = new OperationRunner(operationFactory, fanOutParallelism, operationMetrics,
+                    admissionController.getMaxOperationCost());
+            // Also the deadline of calculations run on the request thread
+            asyncTimeoutMillis = InitParameters.intValue(this::getInitParameter, "asyncTimeoutMillis",
+                    (int) DEFAULT_ASYNC_TIMEOUT_MILLIS);
+            
+            if (Boolean.parseBoolean(getInitParameter("asyncEnabled"))) {
+                int threads = InitParameters.intValue(this::getInitParameter, "computeThreads",
+                        Runtime.getRuntime().availableProcessors());
+                int queueCapacity = InitParameters.intValue(this::getInitParameter, "computeQueueCapacity",
+                        DEFAULT_QUEUE_CAPACITY);
+                boolean virtualThreads = Boolean.parseBoolean(getInitParameter("virtualThreads"));
+                computeExecutor = ComputeExecutor.create(threads, queueCapacity, virtualThreads);
+            }
+        } catch (IllegalArgumentException e) {
+            throw new ServletException("Invalid compute configuration: " + e.getMessage(), e);
+        }
+    }
+    
+    @Override
+    public void destroy() {
+        operationRunner.shutdown();
+        if (computeExecutor != null) {
+            computeExecutor.shutdown();
+            computeExecutor = null;
+        }
+    }
+    
+    /**
+     * Raises a failure the compute pool handed back with an async dispatch on the
+     * container thread, so the container aborts the response instead of ending it
+     * as if it were complete
+     */
+    @Override
+    protected void service(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        Object failure = request.getAttribute(WRITE_FAILURE);
+        if (failure != null && request.getDispatcherType() == DispatcherType.ASYNC) {
+            throw new ServletException("Failed to calculate or write results", (Throwable) failure);
+        }
+        super.service(request, response);
+    }
+    
+    /**
+     * Serves calculations at canonical, cacheable URLs. Requests are redirected to
+     * their canonical query string, and a client or cache that already holds the
+     * result gets 304 Not Modified without the calculation being run.
+     */
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) 
+            throws ServletException, IOException {
+        
+        response.setContentType("text/html;charset=UTF-8");
+        
+        ValidationResult validation = ValidationResult.validate(request.getParameter("number"),
+                request.getParameterValues("operations"), request.getParameter("precision"));
+        if (!validation.isValid()) {
+            sendErrorResponse(response, HttpServletResponse.SC_BAD_REQUEST, validation.getErrorMessage());
+            return;
+        }
+        
+        CanonicalRequest canonical = new CanonicalRequest(validation.getNumber(), validation.getPrecision(),
+                operationRunner.orderOperations(validation.getOperations()));
+        if (!canonical.getQueryString().equals(request.getQueryString())) {
+            response.setStatus(HttpServletResponse.SC_MOVED_PERMANENTLY);
+            response.setHeader("Location", request.getRequestURI() + "?" + canonical.getQueryString());
+            response.setHeader("Cache-Control", CanonicalRequest.CACHE_CONTROL);
+            return;
+        }
+        
+        if (canonical.matches(request.getHeader("If-None-Match"))) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            response.setHeader("ETag", canonical.getEntityTag());
+            response.setHeader("Cache-Control", CanonicalRequest.CACHE_CONTROL);
+            return;
+        }
+        
+        calculate(request, response, validation, canonical.getEntityTag());
     }
     
     @Override
@@ -35,304 +161,341 @@ public class MathOperationsServlet extends HttpServlet {
         // Get input parameters
         String numberParam = request.getParameter("number");
         String[] operations = request.getParameterValues("operations");
+        String precisionParam = request.getParameter("precision");
         
         // Validate input
-        ValidationResult validation = validateInput(numberParam, operations);
+        ValidationResult validation = ValidationResult.validate(numberParam, operations, precisionParam);
         if (!validation.isValid()) {
             sendErrorResponse(response, validation.getErrorMessage());
             return;
         }
         
-        int number = validation.getNumber();
-        Set<String> operationSet = validation.getOperations();
-        
-        // Process operations
-        Map<String, String> results = processOperations(number, operationSet);
-        
-        // Send response
-        sendSuccessResponse(response, number, results);
+        calculate(request, response, validation, null);
     }
     
     /**
-     * Validates the input parameters
+     * Admits the request by its estimated cost, then runs the validated operations,
+     * on the compute pool when async mode is enabled. The admission is held until the
+     * response has been written, since writing large results is part of their cost.
+     * Only async requests wait for budget, and without holding a thread; on the request
+     * thread a request is admitted at once or turned away, so it never ties up a
+     * container thread while it waits.
+     * Calculations stop early when the request's deadline passes or the client goes away.
+     * @param entityTag entity tag of a cacheable result, or null if the response must not be cached
      */
-    private ValidationResult validateInput(String numberParam, String[] operations) {
-        // Validate number
-        if (numberParam == null || numberParam.trim().isEmpty()) {
-            return ValidationResult.error("Number is required");
-        }
+    private void calculate(HttpServletRequest request, HttpServletResponse response, 
+                           ValidationResult validation, String entityTag) throws IOException {
+        int number = validation.getNumber();
+        int precision = validation.getPrecision();
+        Set<String> operationSet = validation.getOperations();
         
-        int number;
-        try {
-            number = Integer.parseInt(numberParam.trim());
-            if (number <= 0) {
-                return ValidationResult.error("Number must be positive");
-            }
-        } catch (NumberFormatException e) {
-            return ValidationResult.error("Invalid number format");
+        // Refusals depend on this server's limit rather than the request, so never cache them
+        if (operationRunner.exceedsLimit(number, operationSet, precision)) {
+            entityTag = null;
         }
         
-        // Validate operations
-        if (operations == null || operations.length == 0) {
-            return ValidationResult.error("At least one operation must be selected");
+        long cost = operationRunner.estimateCost(number, operationSet, precision);
+        if (computeExecutor != null && request.isAsyncSupported()) {
+            processAsync(request, number, precision, operationSet, entityTag, cost);
+            return;
         }
         
-        Set<String> operationSet = java.util.Arrays.stream(operations)
-                .collect(java.util.stream.Collectors.toSet());
+        AdmissionController.Permit permit;
+        try {
+            permit = admissionController.tryAcquire(cost);
+        } catch (AdmissionException e) {
+            sendShedResponse(response, e);
+            return;
+        }
         
-        return ValidationResult.success(number, operationSet);
+        CancellationToken token = CancellationToken.withTimeout(asyncTimeoutMillis);
+        try {
+            // Process operations
+            Map<String, OperationResult> results = processOperations(number, precision, operationSet, token);
+            if (token.isCancelled()) {
+                sendTimeoutResponse(response);
+                return;
+            }
+            
+            // Send response
+            sendResults(response, number, results, entityTag, token);
+        } finally {
+            permit.release();
+        }
     }
     
     /**
-     * Processes the requested operations using Strategy pattern
+     * Releases the request thread, waits for admission and hands the request to the
+     * compute pool. Whichever of completion, timeout, shedding or rejection happens
+     * first owns the response. A timeout or a connection error withdraws the request
+     * from the admission queue, or trips the token so the calculation stops at its
+     * next check; the admission permit is released once it has.
      */
-    private Map<String, String> processOperations(int number, Set<String> operations) {
-        Map<String, String> results = new HashMap<>();
+    private void processAsync(HttpServletRequest request, int number, int precision, Set<String> operationSet, 
+                              String entityTag, long cost) {
+        CancellationToken token = CancellationToken.withTimeout(asyncTimeoutMillis);
+        AsyncContext asyncContext = request.startAsync();
+        asyncContext.setTimeout(asyncTimeoutMillis);
+        AtomicBoolean responded = new AtomicBoolean();
+        CompletableFuture<AdmissionController.Permit> admission = admissionController.acquireAsync(cost);
         
-        for (String operationType : operations) {
-            try {
-                MathOperation operation = operationFactory.getOperation(operationType);
-                String result = operation.execute(number);
-                results.put(operationType, result);
-            } catch (Exception e) {
-                results.put(operationType, "Error: " + e.getMessage());
+        asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) throws IOException {
+                token.cancel("timed out");
+                admission.cancel(false);
+                if (responded.compareAndSet(false, true)) {
+                    sendTimeoutResponse((HttpServletResponse) asyncContext.getResponse());
+                    asyncContext.complete();
+                }
             }
-        }
+            
+            @Override
+            public void onError(AsyncEvent event) {
+                token.cancel("client disconnected");
+                admission.cancel(false);
+                responded.set(true);
+            }
+            
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
+            
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
         
-        return results;
+        // Runs on whichever thread admits the request: this one, a finishing request's or the wait's timer
+        admission.whenComplete((permit, failure) -> {
+            if (failure instanceof AdmissionException && responded.compareAndSet(false, true)) {
+                try {
+                    sendShedResponse((HttpServletResponse) asyncContext.getResponse(), (AdmissionException) failure);
+                } catch (IOException e) {
+                    log("Failed to write admission response", e);
+                } finally {
+                    asyncContext.complete();
+                }
+            } else if (permit != null) {
+                compute(asyncContext, number, precision, operationSet, entityTag, permit, token, responded);
+            }
+        });
     }
     
     /**
-     * Sends error response to client
+     * Runs an admitted request on the compute pool and writes its response
      */
-    private void sendErrorResponse(HttpServletResponse response, String errorMessage) 
-            throws IOException {
-        PrintWriter out = response.getWriter();
-        out.println("<!DOCTYPE html>");
-        out.println("<html><head><title>Cosmic Error - Universe of Mathematics</title>");
-        out.println("<meta name='viewport' content='width=device-width, initial-scale=1.0'>");
-        out.println("<style>");
-        out.println("* { margin: 0; padding: 0; box-sizing: border-box; }");
-        out.println("body { font-family: 'Arial', sans-serif; height: 100vh; overflow: hidden; position: relative; background: #000; }");
-        out.println(".galaxy-container { position: fixed; top: 0; left: 0; width: 100%; height: 100%; z-index: -1; }");
-        out.println(".error-content { position: relative; z-index: 10; height: 100vh; display: flex; flex-direction: column; justify-content: center; align-items: center; text-align: center; padding: 20px; }");
-        out.println(".error-icon { font-size: 6rem; color: #ff4757; margin-bottom: 2rem; animation: shake 1s ease-in-out infinite; text-shadow: 0 0 20px #ff4757, 0 0 40px #ff4757; }");
-        out.println("@keyframes shake { 0%, 100% { transform: translateX(0); } 25% { transform: translateX(-5px); } 75% { transform: translateX(5px); } }");
-        out.println(".error-title { color: #ffffff; font-size: 2.5rem; font-weight: bold; margin-bottom: 1rem; text-shadow: 0 0 10px #ff4757, 0 0 20px #ff4757, 2px 2px 4px rgba(0,0,0,0.8); }");
-        out.println(".error-message { color: #ffffff; font-size: 1.2rem; margin-bottom: 3rem; text-shadow: 1px 1px 2px rgba(0,0,0,0.8); background: rgba(255,71,87,0.1); padding: 20px; border-radius: 20px; backdrop-filter: blur(10px); border: 1px solid rgba(255,71,87,0.3); max-width: 600px; }");
-        out.println(".cosmic-btn { background: linear-gradient(45deg, #ff6b6b, #4ecdc4, #45b7d1, #96ceb4); background-size: 300% 300%; color: white; border: none; padding: 15px 30px; font-size: 1.2rem; font-weight: bold; border-radius: 50px; cursor: pointer; text-decoration: none; display: inline-block; text-transform: uppercase; letter-spacing: 0.1em; box-shadow: 0 10px 30px rgba(0,0,0,0.3), inset 0 1px 0 rgba(255,255,255,0.2); transition: all 0.3s ease; animation: gradientShift 3s ease infinite; }");
-        out.println("@keyframes gradientShift { 0% { background-position: 0% 50%; } 50% { background-position: 100% 50%; } 100% { background-position: 0% 50%; } }");
-        out.println(".cosmic-btn:hover { transform: translateY(-5px); box-shadow: 0 15px 40px rgba(0,0,0,0.4), inset 0 1px 0 rgba(255,255,255,0.2); }");
-        out.println(".error-nav { position: absolute; top: 20px; left: 20px; background: rgba(255,255,255,0.2); border: none; color: white; font-size: 1rem; cursor: pointer; border-radius: 25px; padding: 10px 20px; display: flex; align-items: center; justify-content: center; transition: all 0.3s ease; backdrop-filter: blur(10px); border: 1px solid rgba(255,255,255,0.3); text-decoration: none; font-weight: bold; }");
-        out.println(".error-nav:hover { background: rgba(255,255,255,0.3); transform: translateY(-2px); box-shadow: 0 5px 15px rgba(0,0,0,0.3); }");
-        out.println(".error-nav::before { content: '←'; margin-right: 8px; font-size: 1.2rem; }");
-        out.println("</style></head><body>");
-        
-        // Galaxy Background
-        out.println("<div class='galaxy-container'>");
-        out.println("<iframe src='https://my.spline.design/galaxy-lrPztl1iHbSICu5RVGnqWbNh/' frameborder='0' width='100%' height='100%'></iframe>");
-        out.println("</div>");
-        
-        // Error Content
-        out.println("<div class='error-content'>");
-        out.println("<button type='button' onclick='window.history.length > 1 ? window.history.back() : window.location.href = \"index.html\"' class='error-nav'>Back to Universe</button>");
-        out.println("<div class='error-icon'>⚠️</div>");
-        out.println("<h1 class='error-title'>COSMIC CALCULATION ERROR</h1>");
-        out.println("<div class='error-message'>" + errorMessage + "</div>");
-        out.println("<a href='index.html' class='cosmic-btn'>🚀 Return to Universe</a>");
-        out.println("</div>");
-        out.println("<script>");
-        out.println("function goBack() {");
-        out.println("    // Try to go back in history");
-        out.println("    if (document.referrer && document.referrer !== window.location.href) {");
-        out.println("        window.history.back();");
-        out.println("    } else {");
-        out.println("        // If no referrer, redirect to home page");
-        out.println("        window.location.href = 'index.html';");
-        out.println("    }");
-        out.println("}");
-        out.println("</script>");
-        out.println("</body></html>");
+    private void compute(AsyncContext asyncContext, int number, int precision, Set<String> operationSet,
+                         String entityTag, AdmissionController.Permit permit, CancellationToken token,
+                         AtomicBoolean responded) {
+        if (responded.get()) {
+            permit.release();
+            return;
+        }
+        try {
+            computeExecutor.execute(() -> {
+                try {
+                    Map<String, OperationResult> results;
+                    try {
+                        results = processOperations(number, precision, operationSet, token);
+                    } catch (RuntimeException | Error e) {
+                        // Hand the failure to the container, or the request would hang until its timeout
+                        if (responded.compareAndSet(false, true)) {
+                            asyncContext.getRequest().setAttribute(WRITE_FAILURE, e);
+                            end(asyncContext, true);
+                        }
+                        if (e instanceof Error) {
+                            throw (Error) e;
+                        }
+                        return;
+                    }
+                    if (!responded.compareAndSet(false, true)) {
+                        return;
+                    }
+                    boolean failed = false;
+                    try {
+                        HttpServletResponse response = (HttpServletResponse) asyncContext.getResponse();
+                        if (token.isCancelled()) {
+                            sendTimeoutResponse(response);
+                        } else {
+                            sendResults(response, number, results, entityTag, token);
+                        }
+                    } catch (IOException e) {
+                        log("Failed to write calculation results", e);
+                    } catch (RuntimeException e) {
+                        asyncContext.getRequest().setAttribute(WRITE_FAILURE, e);
+                        failed = true;
+                    } finally {
+                        end(asyncContext, failed);
+                    }
+                } finally {
+                    permit.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            permit.release();
+            operationMetrics.recordRejection();
+            if (responded.compareAndSet(false, true)) {
+                HttpServletResponse response = (HttpServletResponse) asyncContext.getResponse();
+                response.setHeader("Retry-After", String.valueOf(RETRY_AFTER_SECONDS));
+                try {
+                    sendErrorResponse(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                            "The calculation engine is busy, please try again shortly");
+                } catch (IOException writeFailure) {
+                    log("Failed to write rejection response", writeFailure);
+                } finally {
+                    asyncContext.complete();
+                }
+            }
+        }
     }
     
     /**
-     * Sends success response with results
+     * Completes an async request, or dispatches it back to the container to report the
+     * failure stored under WRITE_FAILURE
      */
-    private void sendSuccessResponse(HttpServletResponse response, int number, 
-                                   Map<String, String> results) throws IOException {
-        PrintWriter out = response.getWriter();
-        out.println("<!DOCTYPE html>");
-        out.println("<html><head><title>Cosmic Calculations Complete</title>");
-        out.println("<meta name='viewport' content='width=device-width, initial-scale=1.0'>");
-        out.println("<style>");
-        out.println("* { margin: 0; padding: 0; box-sizing: border-box; }");
-        out.println("body { font-family: 'Arial', sans-serif; height: 100vh; overflow-x: hidden; position: relative; background: #000; }");
-        out.println(".galaxy-container { position: fixed; top: 0; left: 0; width: 100%; height: 100%; z-index: -1; }");
-        out.println(".stars { position: absolute; top: 0; left: 0; width: 100%; height: 100%; background: transparent; z-index: 1; }");
-        out.println(".star { position: absolute; background: white; border-radius: 50%; animation: twinkle 3s infinite; }");
-        out.println(".star:nth-child(1) { top: 10%; left: 15%; width: 2px; height: 2px; animation-delay: 0s; }");
-        out.println(".star:nth-child(2) { top: 25%; left: 85%; width: 1px; height: 1px; animation-delay: 0.5s; }");
-        out.println(".star:nth-child(3) { top: 55%; left: 25%; width: 3px; height: 3px; animation-delay: 1s; }");
-        out.println(".star:nth-child(4) { top: 75%; left: 75%; width: 2px; height: 2px; animation-delay: 1.5s; }");
-        out.println(".star:nth-child(5) { top: 35%; left: 55%; width: 1px; height: 1px; animation-delay: 0.8s; }");
-        out.println(".star:nth-child(6) { top: 85%; left: 35%; width: 2px; height: 2px; animation-delay: 2s; }");
-        out.println("@keyframes twinkle { 0%, 100% { opacity: 0.3; } 50% { opacity: 1; } }");
-        out.println(".results-content { position: relative; z-index: 10; min-height: 100vh; display: flex; flex-direction: column; justify-content: center; align-items: center; padding: 20px; }");
-        out.println(".success-icon { font-size: 6rem; color: #00ff88; margin-bottom: 2rem; animation: pulse 2s ease-in-out infinite; text-shadow: 0 0 20px #00ff88, 0 0 40px #00ff88; }");
-        out.println("@keyframes pulse { 0%, 100% { transform: scale(1); } 50% { transform: scale(1.1); } }");
-        out.println(".results-title { color: #ffffff; font-size: 3rem; font-weight: bold; margin-bottom: 1rem; text-shadow: 0 0 10px #00ff88, 0 0 20px #00ff88, 2px 2px 4px rgba(0,0,0,0.8); animation: glow 2s ease-in-out infinite alternate; }");
-        out.println("@keyframes glow { from { text-shadow: 0 0 10px #00ff88, 0 0 20px #00ff88, 2px 2px 4px rgba(0,0,0,0.8); } to { text-shadow: 0 0 20px #00ff88, 0 0 30px #00ff88, 0 0 40px #00ff88, 2px 2px 4px rgba(0,0,0,0.8); } }");
-        out.println(".number-display { color: #ffffff; font-size: 1.5rem; margin-bottom: 3rem; text-shadow: 1px 1px 2px rgba(0,0,0,0.8); background: rgba(255,255,255,0.1); padding: 20px; border-radius: 20px; backdrop-filter: blur(10px); border: 1px solid rgba(255,255,255,0.2); }");
-        out.println(".results-container { background: linear-gradient(135deg, rgba(255,255,255,0.1), rgba(255,255,255,0.05)); backdrop-filter: blur(25px); border: 1px solid rgba(255,255,255,0.2); padding: 50px; border-radius: 30px; box-shadow: 0 30px 80px rgba(0,0,0,0.4), 0 0 100px rgba(0,255,255,0.1), inset 0 1px 0 rgba(255,255,255,0.2); max-width: 900px; width: 95%; margin-bottom: 40px; position: relative; overflow: hidden; }");
-        out.println(".results-container::before { content: ''; position: absolute; top: -50%; left: -50%; width: 200%; height: 200%; background: radial-gradient(circle, rgba(0,255,255,0.03) 0%, transparent 70%); animation: rotate 20s linear infinite; }");
-        out.println("@keyframes rotate { 0% { transform: rotate(0deg); } 100% { transform: rotate(360deg); } }");
-        out.println(".result-item { background: linear-gradient(135deg, rgba(255,255,255,0.1), rgba(255,255,255,0.05)); backdrop-filter: blur(20px); border: 1px solid rgba(255,255,255,0.2); padding: 30px; margin-bottom: 25px; border-radius: 25px; box-shadow: 0 15px 35px rgba(0,0,0,0.3), inset 0 1px 0 rgba(255,255,255,0.2); transition: all 0.4s ease; position: relative; overflow: hidden; }");
-        out.println(".result-item::before { content: ''; position: absolute; top: 0; left: -100%; width: 100%; height: 100%; background: linear-gradient(90deg, transparent, rgba(0,255,255,0.1), transparent); transition: left 0.6s ease; }");
-        out.println(".result-item:hover::before { left: 100%; }");
-        out.println(".result-item:hover { transform: translateY(-8px) scale(1.02); box-shadow: 0 20px 50px rgba(0,255,255,0.2), inset 0 1px 0 rgba(255,255,255,0.3); border-color: rgba(0,255,255,0.5); }");
-        out.println(".result-title { font-weight: bold; color: #ffffff; margin-bottom: 20px; font-size: 1.4rem; display: flex; align-items: center; text-shadow: 0 0 10px rgba(0,255,255,0.5); position: relative; z-index: 2; }");
-        out.println(".result-icon { margin-right: 15px; font-size: 2rem; filter: drop-shadow(0 0 10px rgba(0,255,255,0.7)); }");
-        out.println(".result-content { color: rgba(255,255,255,0.9); line-height: 1.8; font-size: 1.1rem; text-shadow: 0 0 5px rgba(0,255,255,0.3); position: relative; z-index: 2; }");
-        out.println(".factorial-result { border-left: 4px solid #ff6b6b; }");
-        out.println(".fibonacci-result { border-left: 4px solid #4ecdc4; }");
-        out.println(".prime-result { border-left: 4px solid #45b7d1; }");
-        out.println(".palindrome-result { border-left: 4px solid #96ceb4; }");
-        out.println(".cube-root-result { border-left: 4px solid #feca57; }");
-        out.println(".result-highlight { background: linear-gradient(45deg, rgba(0,255,255,0.1), rgba(255,255,255,0.05)); padding: 15px; border-radius: 15px; margin: 10px 0; border: 1px solid rgba(0,255,255,0.3); }");
-        out.println(".math-number { font-weight: bold; color: #00ffff; text-shadow: 0 0 10px rgba(0,255,255,0.7); font-size: 1.2em; }");
-        out.println(".cosmic-btn { background: linear-gradient(45deg, #ff6b6b, #4ecdc4, #45b7d1, #96ceb4); background-size: 300% 300%; color: white; border: none; padding: 15px 30px; font-size: 1.2rem; font-weight: bold; border-radius: 50px; cursor: pointer; text-decoration: none; display: inline-block; text-transform: uppercase; letter-spacing: 0.1em; box-shadow: 0 10px 30px rgba(0,0,0,0.3), inset 0 1px 0 rgba(255,255,255,0.2); transition: all 0.3s ease; animation: gradientShift 3s ease infinite; }");
-        out.println("@keyframes gradientShift { 0% { background-position: 0% 50%; } 50% { background-position: 100% 50%; } 100% { background-position: 0% 50%; } }");
-        out.println(".cosmic-btn:hover { transform: translateY(-5px); box-shadow: 0 15px 40px rgba(0,0,0,0.4), inset 0 1px 0 rgba(255,255,255,0.2); }");
-        out.println(".navigation-btn { position: absolute; top: 20px; left: 20px; background: rgba(255,255,255,0.2); border: none; color: white; font-size: 1rem; cursor: pointer; border-radius: 25px; padding: 10px 20px; display: flex; align-items: center; justify-content: center; transition: all 0.3s ease; backdrop-filter: blur(10px); border: 1px solid rgba(255,255,255,0.3); text-decoration: none; font-weight: bold; }");
-        out.println(".navigation-btn:hover { background: rgba(255,255,255,0.3); transform: translateY(-2px); box-shadow: 0 5px 15px rgba(0,0,0,0.3); }");
-        out.println(".navigation-btn::before { content: '←'; margin-right: 8px; font-size: 1.2rem; }");
-        out.println(".button-group { display: flex; gap: 15px; flex-wrap: wrap; justify-content: center; margin-top: 20px; }");
-        out.println("@media (max-width: 768px) { .results-title { font-size: 2rem; } .success-icon { font-size: 4rem; } .results-container { padding: 20px; } .button-group { flex-direction: column; align-items: center; } .cosmic-btn { width: 200px; } }");
-        out.println("</style></head><body>");
-        
-        // Galaxy Background
-        out.println("<div class='galaxy-container'>");
-        out.println("<iframe src='https://my.spline.design/galaxy-lrPztl1iHbSICu5RVGnqWbNh/' frameborder='0' width='100%' height='100%'></iframe>");
-        out.println("</div>");
-        
-        // Stars
-        out.println("<div class='stars'>");
-        out.println("<div class='star'></div><div class='star'></div><div class='star'></div><div class='star'></div><div class='star'></div><div class='star'></div>");
-        out.println("</div>");
-        
-        // Main Content
-        out.println("<div class='results-content'>");
-        out.println("<a href='index.html' class='navigation-btn'>Back to Universe</a>");
-        out.println("<div class='success-icon'>✨</div>");
-        out.println("<h1 class='results-title'>COSMIC CALCULATIONS COMPLETE</h1>");
-        out.println("<div class='number-display'>🔢 Input Number: <strong>" + number + "</strong> 🌟</div>");
-        
-        out.println("<div class='results-container'>");
-        out.println("<h2 style='text-align: center; color: #ffffff; margin-bottom: 40px; font-size: 2.5rem; text-shadow: 0 0 15px rgba(0,255,255,0.5); font-weight: bold;'>✨ Mathematical Discoveries ✨</h2>");
-        
-        for (Map.Entry<String, String> entry : results.entrySet()) {
-            String operationType = entry.getKey();
-            String result = entry.getValue();
-            String title = getOperationTitle(operationType);
-            String icon = getOperationIcon(operationType);
-            
-            String cssClass = operationType.toLowerCase() + "-result";
-            out.println("<div class='result-item " + cssClass + "'>");
-            out.println("<div class='result-title'><span class='result-icon'>" + icon + "</span>" + title + "</div>");
-            out.println("<div class='result-content'>" + formatResultContent(result) + "</div>");
-            out.println("</div>");
+    private static void end(AsyncContext asyncContext, boolean failed) {
+        try {
+            if (failed) {
+                asyncContext.dispatch();
+            } else {
+                asyncContext.complete();
+            }
+        } catch (IllegalStateException e) {
+            // Already ended by the container after a connection error
         }
-        
-        out.println("</div>");
-        out.println("<div class='button-group'>");
-        out.println("<a href='index.html' class='cosmic-btn'>🚀 Explore Another Universe</a>");
-        out.println("<button type='button' onclick='window.history.length > 1 ? window.history.back() : window.location.href = \"index.html\"' class='cosmic-btn'>⏰ Go Back</button>");
-        out.println("<button onclick='window.print()' class='cosmic-btn'>🖨️ Print Results</button>");
-        out.println("</div>");
-        out.println("</div>");
-        
-        out.println("<script>");
-        out.println("");
-        out.println("document.addEventListener('mousemove', function(e) {");
-        out.println("    const stars = document.querySelectorAll('.star');");
-        out.println("    const x = e.clientX / window.innerWidth;");
-        out.println("    const y = e.clientY / window.innerHeight;");
-        out.println("    stars.forEach((star, index) => {");
-        out.println("        const speed = (index + 1) * 0.3;");
-        out.println("        const xPos = x * speed * 5;");
-        out.println("        const yPos = y * speed * 5;");
-        out.println("        star.style.transform = 'translate(' + xPos + 'px, ' + yPos + 'px)';");
-        out.println("    });");
-        out.println("});");
-        out.println("</script>");
-        out.println("</body></html>");
     }
     
     /**
-     * Gets display title for operation type
+     * Turns away a request the admission controller did not admit
      */
-    private String getOperationTitle(String operationType) {
-        switch (operationType) {
-            case "factorial": return "Factorial";
-            case "palindrome": return "Palindrome Check";
-            case "fibonacci": return "Fibonacci Series";
-            case "prime": return "Prime Number Check";
-            case "cubeRoot": return "Cube Root";
-            default: return operationType;
-        }
+    private void sendShedResponse(HttpServletResponse response, AdmissionException e) throws IOException {
+        operationMetrics.recordShed();
+        response.setHeader("Retry-After", String.valueOf(e.getRetryAfterSeconds()));
+        sendErrorResponse(response, e.getStatus(), e.getMessage());
     }
     
     /**
-     * Gets display icon for operation type
+     * Processes the requested operations using Strategy pattern.
+     * Results are ordered by operation type so the page renders deterministically.
      */
-    private String getOperationIcon(String operationType) {
-        switch (operationType) {
-            case "factorial": return "🔢";
-            case "palindrome": return "🔄";
-            case "fibonacci": return "🌀";
-            case "prime": return "🔍";
-            case "cubeRoot": return "∛";
-            default: return "✨";
+    private Map<String, OperationResult> processOperations(int number, int precision, Set<String> operations,
+                                                           CancellationToken token) {
+        return operationRunner.run(number, operations, precision, token);
+    }
+    
+    /**
+     * Sends the results, tripping the token if writing fails. Results that are errors
+     * may not fail again, so they make the page uncacheable. A failure that happens
+     * before the response is committed drops the caching headers too, so the error
+     * page the container sends instead cannot be kept.
+     */
+    private void sendResults(HttpServletResponse response, int number, Map<String, OperationResult> results,
+                             String entityTag, CancellationToken token) throws IOException {
+        for (OperationResult result : results.values()) {
+            if (result.isError()) {
+                entityTag = null;
+            }
+        }
+        try {
+            sendSuccessResponse(response, number, results, entityTag);
+        } catch (IOException e) {
+            token.cancel("client disconnected");
+            throw e;
+        } catch (RuntimeException e) {
+            token.cancel("failed to write results");
+            if (!response.isCommitted()) {
+                response.reset();
+            }
+            throw e;
         }
     }
     
     /**
-     * Helper method to format result content with enhanced styling
+     * Answers a request whose calculation ran past its deadline
+     */
+    private void sendTimeoutResponse(HttpServletResponse response) throws IOException {
+        operationMetrics.recordTimeout();
+        sendErrorResponse(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                "Calculation timed out, please try a smaller number");
+    }
+    
+    /**
+     * Sends error response to client
      */
-    private String formatResultContent(String result) {
-        if (result == null || result.trim().isEmpty()) {
-            return result;
+    private void sendErrorResponse(HttpServletResponse response, String errorMessage) 
+            throws IOException {
+        sendErrorResponse(response, HttpServletResponse.SC_OK, errorMessage);
+    }
+    
+    /**
+     * Sends error response to client with the given HTTP status
+     */
+    private void sendErrorResponse(HttpServletResponse response, int status, String errorMessage) 
+            throws IOException {
+        response.setStatus(status);
+        response.setContentType("text/html;charset=UTF-8");
+        PageWriter page = new PageWriter(response.getOutputStream());
+        page.writeBytes(pageShell.errorHead());
+        page.write(errorMessage);
+        page.writeBytes(pageShell.errorTail());
+        page.flush();
+    }
+    
+    /**
+     * Sends success response with results.
+     * Constant markup is written from pre-encoded bytes and only the number and results
+     * are encoded per request. Results are streamed into a bounded response buffer and
+     * flushed one at a time, so large results go out with chunked transfer.
+     * Results of canonical GET requests are marked as cacheable for a year. Large results
+     * are generated while they are written, after the headers; if one fails part way the
+     * response is aborted rather than ended, so a truncated page is never stored as complete.
+     * Render and write times of each result are recorded in the operation metrics.
+     */
+    void sendSuccessResponse(HttpServletResponse response, int number, 
+                                   Map<String, OperationResult> results, String entityTag) throws IOException {
+        if (entityTag != null) {
+            response.setHeader("ETag", entityTag);
+            response.setHeader("Cache-Control", CanonicalRequest.CACHE_CONTROL);
         }
+        response.setBufferSize(RESPONSE_BUFFER_SIZE);
+        PageWriter page = new PageWriter(response.getOutputStream());
+        HtmlResultWriter formatter = new HtmlResultWriter(page);
+        page.writeBytes(pageShell.successHead());
+        page.write(Integer.toString(number));
+        page.writeBytes(pageShell.resultsOpen());
         
-        // Escape HTML characters first
-        String formatted = result.replace("&", "&amp;")
-                                .replace("<", "&lt;")
-                                .replace(">", "&gt;")
-                                .replace("\"", "&quot;")
-                                .replace("'", "&#39;");
+        for (Map.Entry<String, OperationResult> entry : results.entrySet()) {
+            long start = System.nanoTime();
+            page.writeBytes(pageShell.itemHead(entry.getKey()));
+            writeResultContent(page, formatter, entry.getValue());
+            page.writeBytes(pageShell.itemEnd());
+            long rendered = System.nanoTime();
+            page.flush();
+            operationMetrics.record(entry.getKey(), number, OperationMetrics.Phase.RENDER, rendered - start);
+            operationMetrics.record(entry.getKey(), number, OperationMetrics.Phase.WRITE, System.nanoTime() - rendered);
+        }
         
-        // Format mathematical operations with proper symbols
-        formatted = formatted.replaceAll("\\*", " × ");
-        formatted = formatted.replaceAll("/", " ÷ ");
-        formatted = formatted.replaceAll("\\+", " + ");
-        formatted = formatted.replaceAll("=", " = ");
+        page.writeBytes(pageShell.successTail());
+        page.flush();
+    }
+    
+    /**
+     * Streams a result through the response's HTML formatter with enhanced styling
+     */
+    private void writeResultContent(PageWriter page, HtmlResultWriter formatter, OperationResult result) 
+            throws IOException {
+        boolean highlight = !result.isError();
+        if (highlight) {
+            page.writeBytes(pageShell.highlightOpen());
+        }
         
-        // Highlight numbers with special styling
-        formatted = formatted.replaceAll("\\b\\d+\\b", "<span class='math-number'>$0</span>");
+        // A failure here propagates, since the page may already be marked as cacheable
+        result.writeTo(formatter);
+        formatter.finish();
         
-        // Add special formatting for different result types
-        if (result.toLowerCase().contains("factorial")) {
-            formatted = "<div class='result-highlight'>" + formatted + "</div>";
-        } else if (result.toLowerCase().contains("fibonacci")) {
-            formatted = "<div class='result-highlight'>" + formatted + "</div>";
-        } else if (result.toLowerCase().contains("prime")) {
-            formatted = "<div class='result-highlight'>" + formatted + "</div>";
-        } else if (result.toLowerCase().contains("palindrome")) {
-            formatted = "<div class='result-highlight'>" + formatted + "</div>";
-        } else if (result.toLowerCase().contains("cube root")) {
-            formatted = "<div class='result-highlight'>" + formatted + "</div>";
+        if (highlight) {
+            page.writeBytes(pageShell.highlightClose());
         }
-        
-        return formatted;
     }
 }
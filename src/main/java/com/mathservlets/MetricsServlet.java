@@ -0,0 +1,35 @@
+package com.mathservlets;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Exposes the shared operation metrics in the Prometheus text format.
+ */
+public class MetricsServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+    
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) 
+            throws ServletException, IOException {
+        response.setContentType(CONTENT_TYPE);
+        response.setHeader("Cache-Control", "no-store");
+        
+        OperationMetrics metrics = (OperationMetrics) getServletContext().getAttribute(OperationMetrics.CONTEXT_ATTRIBUTE);
+        StringBuilder text = new StringBuilder();
+        if (metrics != null) {
+            metrics.writePrometheus(text);
+        }
+        
+        PrintWriter out = response.getWriter();
+        out.write(text.toString());
+        out.flush();
+    }
+}
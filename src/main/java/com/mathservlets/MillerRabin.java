@@ -0,0 +1,136 @@
+package com.mathservlets;
+
+/**
+ * Deterministic Miller-Rabin primality test for 64-bit numbers.
+ * Numbers up to Integer.MAX_VALUE use the bases 2, 7 and 61 with plain long arithmetic;
+ * larger numbers use seven fixed bases that are known to be exact for every long,
+ * with Montgomery multiplication to keep products within 64 bits.
+ */
+public final class MillerRabin {
+    
+    private static final long[] SMALL_PRIMES = {2, 3, 5, 7, 11, 13, 17, 19, 23, 29, 31, 37};
+    private static final long[] BASES_INT = {2, 7, 61};
+    private static final long[] BASES_LONG = {2, 325, 9375, 28178, 450775, 9780504, 1795265022};
+    
+    private MillerRabin() {
+    }
+    
+    /**
+     * Checks whether a number is prime
+     * @param n the number
+     * @return true if prime, false otherwise
+     */
+    public static boolean isPrime(long n) {
+        if (n < 2) {
+            return false;
+        }
+        for (long p : SMALL_PRIMES) {
+            if (n % p == 0) {
+                return n == p;
+            }
+        }
+        if (n < 37 * 37) {
+            return true;
+        }
+        
+        long d = n - 1;
+        int s = Long.numberOfTrailingZeros(d);
+        d >>= s;
+        
+        if (n <= Integer.MAX_VALUE) {
+            for (long base : BASES_INT) {
+                if (!passesInt(base, d, s, n)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return passesLong(d, s, n);
+    }
+    
+    /**
+     * One Miller-Rabin round for n below 2^31, where products fit in a long
+     */
+    private static boolean passesInt(long base, long d, int s, long n) {
+        long x = 1;
+        long b = base % n;
+        for (long e = d; e > 0; e >>= 1) {
+            if ((e & 1) != 0) {
+                x = x * b % n;
+            }
+            b = b * b % n;
+        }
+        if (x == 1 || x == n - 1) {
+            return true;
+        }
+        for (int r = 1; r < s; r++) {
+            x = x * x % n;
+            if (x == n - 1) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * All Miller-Rabin rounds for odd n above 2^31, in Montgomery form
+     */
+    private static boolean passesLong(long d, int s, long n) {
+        // inverse of n modulo 2^64 by Newton iteration; each step doubles the correct bits
+        long inverse = n;
+        for (int i = 0; i < 5; i++) {
+            inverse *= 2 - n * inverse;
+        }
+        long one = Long.remainderUnsigned(-n, n);
+        long rSquared = one;
+        for (int i = 0; i < 64; i++) {
+            rSquared <<= 1;
+            if (Long.compareUnsigned(rSquared, n) >= 0) {
+                rSquared -= n;
+            }
+        }
+        long minusOne = n - one;
+        
+        for (long base : BASES_LONG) {
+            long a = base % n;
+            if (a == 0) {
+                continue;
+            }
+            long b = multiply(a, rSquared, n, inverse);
+            long x = one;
+            for (long e = d; e > 0; e >>= 1) {
+                if ((e & 1) != 0) {
+                    x = multiply(x, b, n, inverse);
+                }
+                b = multiply(b, b, n, inverse);
+            }
+            if (x == one || x == minusOne) {
+                continue;
+            }
+            boolean witness = true;
+            for (int r = 1; r < s; r++) {
+                x = multiply(x, x, n, inverse);
+                if (x == minusOne) {
+                    witness = false;
+                    break;
+                }
+            }
+            if (witness) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Montgomery product a * b / 2^64 mod n for a, b below n
+     */
+    private static long multiply(long a, long b, long n, long inverse) {
+        long low = a * b;
+        long high = Math.multiplyHigh(a, b);
+        long q = low * inverse;
+        long qnHigh = Math.multiplyHigh(q, n) + ((q >> 63) & n);
+        long t = high - qnHigh;
+        return t < 0 ? t + n : t;
+    }
+}
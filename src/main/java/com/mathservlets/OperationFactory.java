@@ -1,29 +1,101 @@
 package com.mathservlets;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
+import javax.servlet.ServletContext;
+
 /**
  * Factory class for creating mathematical operations.
  * Uses Factory pattern for scalable operation management.
  */
 public class OperationFactory {
     
+    /** Name of the servlet context attribute holding the shared factory */
+    public static final String CONTEXT_ATTRIBUTE = OperationFactory.class.getName();
+    
     private final Map<String, MathOperation> operations;
     
+    private final ResultStore resultStore;
+    
     public OperationFactory() {
-        operations = new HashMap<>();
-        initializeOperations();
+        this(new PrimeSieve());
+    }
+    
+    /**
+     * Creates a factory whose prime operations share the given sieve
+     * @param sieve precomputed prime sieve
+     */
+    public OperationFactory(PrimeSieve sieve) {
+        this(sieve, null);
+    }
+    
+    /**
+     * Creates a factory whose expensive results are kept in a result store
+     * @param sieve precomputed prime sieve
+     * @param resultStore store of expensive results, or null to calculate every result
+     */
+    public OperationFactory(PrimeSieve sieve, ResultStore resultStore) {
+        operations = new LinkedHashMap<>();
+        this.resultStore = resultStore;
+        initializeOperations(sieve);
+    }
+    
+    /**
+     * Gets the factory shared by all servlets of a web application, building it with the
+     * prime sieve described by the context parameters sieveLimit and sieveOffHeap on first use.
+     * Sharing it means the sieve and the factorial checkpoints are built, and warmed up, once.
+     * The result store described by the resultStore context parameters is opened with it;
+     * if it cannot be opened, results are calculated as if there were none.
+     * @param context the servlet context
+     * @return OperationFactory instance
+     * @throws IllegalArgumentException if a context parameter is invalid
+     */
+    public static OperationFactory forContext(ServletContext context) {
+        synchronized (context) {
+            OperationFactory factory = (OperationFactory) context.getAttribute(CONTEXT_ATTRIBUTE);
+            if (factory == null) {
+                int sieveLimit = InitParameters.intValue(context::getInitParameter, "sieveLimit",
+                        PrimeSieve.DEFAULT_LIMIT);
+                boolean sieveOffHeap = Boolean.parseBoolean(context.getInitParameter("sieveOffHeap"));
+                factory = new OperationFactory(new PrimeSieve(sieveLimit, sieveOffHeap), openResultStore(context));
+                context.setAttribute(CONTEXT_ATTRIBUTE, factory);
+            }
+            return factory;
+        }
+    }
+    
+    private static ResultStore openResultStore(ServletContext context) {
+        try {
+            return ResultStore.open(context);
+        } catch (IOException e) {
+            context.log("Result store unavailable, calculating every result: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Gets the store keeping expensive results across restarts
+     * @return the store, or null if results are not stored
+     */
+    public ResultStore getResultStore() {
+        return resultStore;
     }
     
     /**
      * Initializes all available operations
      */
-    private void initializeOperations() {
+    private void initializeOperations(PrimeSieve sieve) {
         operations.put("factorial", new FactorialOperation());
         operations.put("palindrome", new PalindromeOperation());
+        operations.put("palindromeCount", new PalindromeRangeOperation(PalindromeRangeOperation.Mode.COUNT));
+        operations.put("nthPalindrome", new PalindromeRangeOperation(PalindromeRangeOperation.Mode.NTH));
+        operations.put("nextPalindrome", new PalindromeRangeOperation(PalindromeRangeOperation.Mode.NEXT));
         operations.put("fibonacci", new FibonacciOperation());
-        operations.put("prime", new PrimeOperation());
+        operations.put("prime", new PrimeOperation(sieve));
+        operations.put("primeCount", new PrimeRangeOperation(true));
+        operations.put("primeRange", new PrimeRangeOperation(false));
         operations.put("cubeRoot", new CubeRootOperation());
     }
     
@@ -42,7 +114,7 @@ public class OperationFactory {
     }
     
     /**
-     * Gets all available operation types
+     * Gets all available operation types in their display order
      * @return set of operation types
      */
     public java.util.Set<String> getAvailableOperations() {
@@ -0,0 +1,313 @@
+package com.mathservlets;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletContext;
+
+/**
+ * Per-operation latency histograms and counters.
+ * Every histogram is allocated up front, keyed by operation, phase and the number
+ * of decimal digits of the input, so recording a measurement is a lookup and a
+ * few atomic adds with no allocation or locking. Operation types outside the
+ * known set are ignored, so request input cannot grow the registry.
+ */
+public class OperationMetrics {
+    
+    /** Name of the servlet context attribute holding the shared metrics */
+    public static final String CONTEXT_ATTRIBUTE = OperationMetrics.class.getName();
+    
+    /** Inputs are bucketed by digit count; an int has at most ten digits */
+    static final int SIZE_BUCKETS = 10;
+    
+    /**
+     * Phases of handling one operation
+     */
+    public enum Phase {
+        /** Evaluating the operation */
+        COMPUTE,
+        /** Formatting the result into the response buffer, including any text generated while it is written */
+        RENDER,
+        /** Flushing the formatted result to the client */
+        WRITE
+    }
+    
+    private static final int[] POWERS_OF_TEN = {
+        10, 100, 1000, 10000, 100000, 1000000, 10000000, 100000000, 1000000000
+    };
+    
+    private final Map<String, OperationStats> operations;
+    private final AtomicLong rejections = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong shed = new AtomicLong();
+    private volatile FactorialCache factorialCache;
+    private volatile ResultStore resultStore;
+    private volatile AdmissionController admissionController;
+    
+    /**
+     * Creates metrics for a fixed set of operations
+     * @param operationTypes the operation types to track
+     */
+    public OperationMetrics(Collection<String> operationTypes) {
+        Map<String, OperationStats> stats = new LinkedHashMap<>();
+        for (String operationType : operationTypes) {
+            stats.put(operationType, new OperationStats());
+        }
+        this.operations = Collections.unmodifiableMap(stats);
+    }
+    
+    /**
+     * Gets the metrics shared by all servlets of a web application, creating them on first use
+     * @param context the servlet context
+     * @param operationTypes the operation types to track if the metrics are created
+     * @return OperationMetrics instance
+     */
+    public static OperationMetrics forContext(ServletContext context, Collection<String> operationTypes) {
+        synchronized (context) {
+            OperationMetrics metrics = (OperationMetrics) context.getAttribute(CONTEXT_ATTRIBUTE);
+            if (metrics == null) {
+                metrics = new OperationMetrics(operationTypes);
+                context.setAttribute(CONTEXT_ATTRIBUTE, metrics);
+            }
+            return metrics;
+        }
+    }
+    
+    /**
+     * Records the duration of one phase of an operation
+     * @param operationType the operation type
+     * @param number the input number
+     * @param phase the phase measured
+     * @param nanos elapsed time in nanoseconds
+     */
+    public void record(String operationType, int number, Phase phase, long nanos) {
+        OperationStats stats = operations.get(operationType);
+        if (stats != null) {
+            stats.histograms[phase.ordinal()][sizeBucket(number)].record(nanos);
+        }
+    }
+    
+    /**
+     * Counts an operation that produced an error result
+     * @param operationType the operation type
+     */
+    public void recordError(String operationType) {
+        OperationStats stats = operations.get(operationType);
+        if (stats != null) {
+            stats.errors.incrementAndGet();
+        }
+    }
+    
+    public void recordRejection() {
+        rejections.incrementAndGet();
+    }
+    
+    public void recordTimeout() {
+        timeouts.incrementAndGet();
+    }
+    
+    /**
+     * Counts a request turned away by admission control
+     */
+    public void recordShed() {
+        shed.incrementAndGet();
+    }
+    
+    /**
+     * Exports the factorial checkpoint cache counters with the other metrics
+     * @param cache the cache, or null to stop exporting it
+     */
+    public void setFactorialCache(FactorialCache cache) {
+        this.factorialCache = cache;
+    }
+    
+    /**
+     * Exports the result store counters with the other metrics
+     * @param store the store, or null to stop exporting it
+     */
+    public void setResultStore(ResultStore store) {
+        this.resultStore = store;
+    }
+    
+    /**
+     * Exports the admission budget, cost in flight and queue length with the other metrics
+     * @param controller the admission controller, or null to stop exporting it
+     */
+    public void setAdmissionController(AdmissionController controller) {
+        this.admissionController = controller;
+    }
+    
+    /**
+     * Gets the input size bucket of a number
+     * @param number the input number
+     * @return number of decimal digits minus one, from 0 to 9
+     */
+    static int sizeBucket(int number) {
+        int magnitude = number == Integer.MIN_VALUE ? Integer.MAX_VALUE : Math.abs(number);
+        int bucket = 0;
+        while (bucket < POWERS_OF_TEN.length && magnitude >= POWERS_OF_TEN[bucket]) {
+            bucket++;
+        }
+        return bucket;
+    }
+    
+    /**
+     * Gets a histogram for inspection
+     * @param operationType the operation type
+     * @param phase the phase
+     * @param sizeBucket the input size bucket
+     * @return the histogram, or null for an unknown operation type
+     */
+    public LatencyHistogram getHistogram(String operationType, Phase phase, int sizeBucket) {
+        OperationStats stats = operations.get(operationType);
+        return stats == null ? null : stats.histograms[phase.ordinal()][sizeBucket];
+    }
+    
+    public long getErrors(String operationType) {
+        OperationStats stats = operations.get(operationType);
+        return stats == null ? 0 : stats.errors.get();
+    }
+    
+    public long getRejections() {
+        return rejections.get();
+    }
+    
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+    
+    public long getShed() {
+        return shed.get();
+    }
+    
+    public Collection<String> getOperationTypes() {
+        return operations.keySet();
+    }
+    
+    /**
+     * Writes all metrics in the Prometheus text exposition format.
+     * Histograms that have never been recorded are left out.
+     * @param out destination for the metrics
+     * @throws IOException if the output fails
+     */
+    public void writePrometheus(Appendable out) throws IOException {
+        out.append("# HELP mathservlets_operation_seconds Time spent in each phase of an operation\n");
+        out.append("# TYPE mathservlets_operation_seconds histogram\n");
+        for (Map.Entry<String, OperationStats> entry : operations.entrySet()) {
+            for (Phase phase : Phase.values()) {
+                for (int size = 0; size < SIZE_BUCKETS; size++) {
+                    LatencyHistogram histogram = entry.getValue().histograms[phase.ordinal()][size];
+                    if (histogram.getCount() > 0) {
+                        String labels = "operation=\"" + entry.getKey() + "\",phase=\""
+                                + phase.name().toLowerCase(java.util.Locale.ROOT) + "\",digits=\"" + (size + 1) + "\"";
+                        writeHistogram(out, "mathservlets_operation_seconds", labels, histogram);
+                    }
+                }
+            }
+        }
+        
+        out.append("# HELP mathservlets_operation_errors_total Operations that returned an error result\n");
+        out.append("# TYPE mathservlets_operation_errors_total counter\n");
+        for (Map.Entry<String, OperationStats> entry : operations.entrySet()) {
+            out.append("mathservlets_operation_errors_total{operation=\"").append(entry.getKey()).append("\"} ")
+                    .append(Long.toString(entry.getValue().errors.get())).append('\n');
+        }
+        
+        writeCounter(out, "mathservlets_requests_rejected_total", "Requests turned away because the compute pool was full",
+                rejections.get());
+        writeCounter(out, "mathservlets_requests_timed_out_total", "Requests that exceeded the calculation timeout",
+                timeouts.get());
+        writeCounter(out, "mathservlets_requests_shed_total", "Requests turned away by cost-based admission control",
+                shed.get());
+        
+        AdmissionController admission = admissionController;
+        if (admission != null) {
+            writeGauge(out, "mathservlets_admission_budget", "Estimated cost allowed in flight", admission.getBudget());
+            writeGauge(out, "mathservlets_admission_in_flight", "Estimated cost of admitted requests",
+                    admission.getInFlight());
+            writeGauge(out, "mathservlets_admission_queued", "Requests waiting for admission", admission.getQueued());
+        }
+        
+        FactorialCache cache = factorialCache;
+        if (cache != null) {
+            writeCounter(out, "mathservlets_factorial_cache_hits_total", "Factorial checkpoint cache hits", cache.getHits());
+            writeCounter(out, "mathservlets_factorial_cache_misses_total", "Factorial checkpoint cache misses",
+                    cache.getMisses());
+            writeCounter(out, "mathservlets_factorial_cache_evictions_total", "Factorial checkpoints evicted",
+                    cache.getEvictions());
+            writeGauge(out, "mathservlets_factorial_cache_entries", "Factorial checkpoints held", cache.size());
+            writeGauge(out, "mathservlets_factorial_cache_bits", "Total bit length of cached factorials",
+                    cache.getTotalBits());
+        }
+        
+        ResultStore store = resultStore;
+        if (store != null) {
+            writeCounter(out, "mathservlets_result_store_hits_total", "Results served from the result store",
+                    store.getHits());
+            writeCounter(out, "mathservlets_result_store_misses_total", "Storable results that had to be calculated",
+                    store.getMisses());
+            writeCounter(out, "mathservlets_result_store_stored_total", "Results added to the result store",
+                    store.getStored());
+            writeGauge(out, "mathservlets_result_store_entries", "Results in the store, from all JVMs sharing it",
+                    store.getEntries());
+            writeGauge(out, "mathservlets_result_store_bytes", "Size of the result store's data log",
+                    store.getDataBytes());
+        }
+    }
+    
+    /**
+     * Writes one histogram as cumulative buckets, sum and count
+     */
+    private static void writeHistogram(Appendable out, String name, String labels, LatencyHistogram histogram)
+            throws IOException {
+        long cumulative = 0;
+        for (int bucket = 0; bucket < LatencyHistogram.BUCKETS; bucket++) {
+            cumulative += histogram.getBucketCount(bucket);
+            out.append(name).append("_bucket{").append(labels).append(",le=\"")
+                    .append(Double.toString(LatencyHistogram.upperBoundNanos(bucket) / 1e9)).append("\"} ")
+                    .append(Long.toString(cumulative)).append('\n');
+        }
+        cumulative += histogram.getBucketCount(LatencyHistogram.BUCKETS);
+        out.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ")
+                .append(Long.toString(cumulative)).append('\n');
+        out.append(name).append("_sum{").append(labels).append("} ")
+                .append(Double.toString(histogram.getSumNanos() / 1e9)).append('\n');
+        out.append(name).append("_count{").append(labels).append("} ")
+                .append(Long.toString(cumulative)).append('\n');
+    }
+    
+    private static void writeCounter(Appendable out, String name, String help, long value) throws IOException {
+        writeSample(out, name, help, "counter", value);
+    }
+    
+    private static void writeGauge(Appendable out, String name, String help, long value) throws IOException {
+        writeSample(out, name, help, "gauge", value);
+    }
+    
+    private static void writeSample(Appendable out, String name, String help, String type, long value)
+            throws IOException {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        out.append(name).append(' ').append(Long.toString(value)).append('\n');
+    }
+    
+    /**
+     * Histograms and counters of a single operation
+     */
+    private static class OperationStats {
+        private final LatencyHistogram[][] histograms = new LatencyHistogram[Phase.values().length][SIZE_BUCKETS];
+        private final AtomicLong errors = new AtomicLong();
+        
+        OperationStats() {
+            for (LatencyHistogram[] phase : histograms) {
+                for (int i = 0; i < SIZE_BUCKETS; i++) {
+                    phase[i] = new LatencyHistogram();
+                }
+            }
+        }
+    }
+}
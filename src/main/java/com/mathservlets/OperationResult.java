@@ -0,0 +1,55 @@
+package com.mathservlets;
+
+import java.io.IOException;
+
+/**
+ * Result of a mathematical operation that is written out incrementally.
+ * Operations do their expensive calculation before returning a result, and the
+ * result only turns it into text when it is written, so large values can go
+ * straight to the response without being built as one String first.
+ */
+public interface OperationResult {
+    
+    /**
+     * Writes the result text
+     * @param out destination for the text
+     * @throws IOException if the output fails
+     */
+    void writeTo(Appendable out) throws IOException;
+    
+    /**
+     * Whether this result describes a failure instead of a calculated value
+     * @return true for error results
+     */
+    default boolean isError() {
+        return false;
+    }
+    
+    /**
+     * Creates a result from already formatted text
+     * @param text the result text
+     * @return OperationResult instance
+     */
+    static OperationResult of(String text) {
+        return out -> out.append(text);
+    }
+    
+    /**
+     * Creates an error result
+     * @param message the error message
+     * @return OperationResult instance
+     */
+    static OperationResult error(String message) {
+        return new OperationResult() {
+            @Override
+            public void writeTo(Appendable out) throws IOException {
+                out.append(message);
+            }
+            
+            @Override
+            public boolean isError() {
+                return true;
+            }
+        };
+    }
+}
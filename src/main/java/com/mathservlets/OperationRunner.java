@@ -0,0 +1,247 @@
+package com.mathservlets;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Runs the operations selected in a request, either one after another or
+ * fanned out across a ForkJoin pool so a request costs as much as its slowest operation.
+ * Results are always returned in the factory's display order.
+ */
+public class OperationRunner {
+    
+    private final OperationFactory operationFactory;
+    private final ForkJoinPool pool;
+    private final OperationMetrics metrics;
+    private final long maxOperationCost;
+    private final ResultStore resultStore;
+    
+    /**
+     * Creates a runner that evaluates operations sequentially, without metrics or a cost limit
+     * @param operationFactory factory providing the operations
+     */
+    public OperationRunner(OperationFactory operationFactory) {
+        this(operationFactory, 0, null, Long.MAX_VALUE);
+    }
+    
+    /**
+     * Creates a runner
+     * @param operationFactory factory providing the operations
+     * @param parallelism number of fan-out threads, or 0 to evaluate sequentially
+     * @param metrics metrics receiving compute times and errors, or null
+     * @param maxOperationCost largest estimated cost of an operation that is evaluated;
+     *        costlier operations get an error result instead
+     */
+    public OperationRunner(OperationFactory operationFactory, int parallelism, OperationMetrics metrics,
+            long maxOperationCost) {
+        if (parallelism < 0) {
+            throw new IllegalArgumentException("Parallelism must not be negative");
+        }
+        this.operationFactory = operationFactory;
+        this.pool = parallelism > 0 ? new ForkJoinPool(parallelism) : null;
+        this.metrics = metrics;
+        this.maxOperationCost = maxOperationCost;
+        this.resultStore = operationFactory.getResultStore();
+    }
+    
+    /**
+     * Evaluates the requested operations on the given number with default precision and no deadline
+     * @param number the input number
+     * @param operations the requested operation types
+     * @return results keyed by operation type, in display order
+     */
+    public Map<String, OperationResult> run(int number, Set<String> operations) {
+        return run(number, operations, 0, CancellationToken.NONE);
+    }
+    
+    /**
+     * Evaluates the requested operations to the given number of decimal places,
+     * stopping them early once the token trips. Operations that were stopped get an error result.
+     * @param number the input number
+     * @param operations the requested operation types
+     * @param precision decimal places for operations with inexact results, or 0 for their default
+     * @param token cancellation token of the request
+     * @return results keyed by operation type, in display order
+     */
+    public Map<String, OperationResult> run(int number, Set<String> operations, int precision,
+            CancellationToken token) {
+        List<String> ordered = orderOperations(operations);
+        Map<String, OperationResult> results = new LinkedHashMap<>();
+        
+        if (pool == null || ordered.size() < 2) {
+            for (String operationType : ordered) {
+                results.put(operationType, execute(operationType, number, precision, token));
+            }
+            return results;
+        }
+        
+        List<CompletableFuture<OperationResult>> futures = new ArrayList<>(ordered.size());
+        for (String operationType : ordered) {
+            futures.add(CompletableFuture.supplyAsync(() -> execute(operationType, number, precision, token), pool));
+        }
+        for (int i = 0; i < ordered.size(); i++) {
+            results.put(ordered.get(i), futures.get(i).join());
+        }
+        return results;
+    }
+    
+    /**
+     * Starts the requested operations to the given number of decimal places without waiting
+     * for them. Each future completes as soon as its own operation is done, so results can
+     * be used in completion order. Operations are started cheapest first, so quick results
+     * are not stuck behind slow ones for a thread. Without a fan-out pool they run one after
+     * another on the calling thread.
+     * @param number the input number
+     * @param operations the requested operation types
+     * @param precision decimal places for operations with inexact results, or 0 for their default
+     * @param token cancellation token of the request
+     * @return futures keyed by operation type, in display order
+     */
+    public Map<String, CompletableFuture<OperationResult>> submit(int number, Set<String> operations,
+            int precision, CancellationToken token) {
+        List<String> ordered = orderOperations(operations);
+        List<String> byCost = new ArrayList<>(ordered);
+        byCost.sort(Comparator.comparingLong(operationType -> costOf(operationType, number, precision)));
+        
+        Map<String, CompletableFuture<OperationResult>> started = new HashMap<>();
+        for (String operationType : byCost) {
+            started.put(operationType, pool == null
+                    ? CompletableFuture.completedFuture(execute(operationType, number, precision, token))
+                    : CompletableFuture.supplyAsync(() -> execute(operationType, number, precision, token), pool));
+        }
+        
+        Map<String, CompletableFuture<OperationResult>> futures = new LinkedHashMap<>();
+        for (String operationType : ordered) {
+            futures.put(operationType, started.get(operationType));
+        }
+        return futures;
+    }
+    
+    /**
+     * Evaluates a single operation, turning any failure into an error result
+     * so one operation cannot affect the others. A cancelled operation is not counted
+     * as an error of the operation. Results expensive enough to be worth keeping
+     * go through the factory's result store.
+     */
+    private OperationResult execute(String operationType, int number, int precision, CancellationToken token) {
+        long start = System.nanoTime();
+        OperationResult result;
+        try {
+            MathOperation operation = operationFactory.getOperation(operationType);
+            long cost = operation.estimateCost(number, precision);
+            if (cost > maxOperationCost) {
+                result = OperationResult.error("Error: " + operation.getOperationName() + " of " + number
+                        + (precision > 0 ? " to " + precision + " decimal places" : "")
+                        + " is too large to calculate on this server");
+            } else if (resultStore != null && cost >= resultStore.getMinCost()) {
+                result = resultStore.evaluate(operationType, operation, number, precision, token);
+            } else {
+                result = operation.evaluate(number, precision, token);
+            }
+        } catch (Exception e) {
+            // Fork-join pools may rethrow a cancellation as a copy without its message
+            if (token.isCancelled()) {
+                return OperationResult.error("Error: Calculation cancelled: " + token.getReason());
+            }
+            result = OperationResult.error("Error: " + e.getMessage());
+        }
+        
+        if (metrics != null) {
+            metrics.record(operationType, number, OperationMetrics.Phase.COMPUTE, System.nanoTime() - start);
+            if (result.isError()) {
+                metrics.recordError(operationType);
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Estimates the total cost of a request. Unknown operations and operations over
+     * the cost limit are not evaluated, so they count for nothing.
+     * @param number the input number
+     * @param operations the requested operation types
+     * @param precision decimal places for operations with inexact results, or 0 for their default
+     * @return estimated cost, at least 1
+     */
+    public long estimateCost(int number, Set<String> operations, int precision) {
+        long total = 1;
+        for (String operationType : operations) {
+            long cost = costOf(operationType, number, precision);
+            if (cost <= maxOperationCost) {
+                total = cost > Long.MAX_VALUE - total ? Long.MAX_VALUE : total + cost;
+            }
+        }
+        return total;
+    }
+    
+    /**
+     * Checks whether any requested operation is over the cost limit and will be refused
+     * @param number the input number
+     * @param operations the requested operation types
+     * @param precision decimal places for operations with inexact results, or 0 for their default
+     * @return true if at least one operation will get a limit error
+     */
+    public boolean exceedsLimit(int number, Set<String> operations, int precision) {
+        for (String operationType : operations) {
+            long cost = costOf(operationType, number, precision);
+            if (cost > maxOperationCost) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Gets the estimated cost of one operation, or 0 for an unknown operation
+     */
+    private long costOf(String operationType, int number, int precision) {
+        if (!operationFactory.getAvailableOperations().contains(operationType)) {
+            return 0;
+        }
+        return operationFactory.getOperation(operationType).estimateCost(number, precision);
+    }
+    
+    public long getMaxOperationCost() {
+        return maxOperationCost;
+    }
+    
+    /**
+     * Orders requested operations by the factory's display order, followed by
+     * any unknown operation types in alphabetical order
+     */
+    List<String> orderOperations(Set<String> operations) {
+        List<String> ordered = new ArrayList<>(operations.size());
+        for (String operationType : operationFactory.getAvailableOperations()) {
+            if (operations.contains(operationType)) {
+                ordered.add(operationType);
+            }
+        }
+        if (ordered.size() < operations.size()) {
+            Set<String> unknown = new TreeSet<>(operations);
+            unknown.removeAll(ordered);
+            ordered.addAll(unknown);
+        }
+        return ordered;
+    }
+    
+    public boolean isParallel() {
+        return pool != null;
+    }
+    
+    /**
+     * Releases the fan-out threads
+     */
+    public void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+}
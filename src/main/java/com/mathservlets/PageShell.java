@@ -0,0 +1,227 @@
+package com.mathservlets;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Constant parts of the result and error pages, encoded to UTF-8 once.
+ * Styles live in the static css/results.css and css/error.css resources so
+ * browsers can cache them; the servlet only encodes the dynamic fragments.
+ */
+public class PageShell {
+    
+    private static final String SUCCESS_HEAD =
+            "<!DOCTYPE html>\n"
+            + "<html><head><title>Cosmic Calculations Complete</title>\n"
+            + "<meta name='viewport' content='width=device-width, initial-scale=1.0'>\n"
+            + "<link rel='stylesheet' href='css/results.css'>\n"
+            + "</head><body>\n"
+            + "<div class='galaxy-container'>\n"
+            + "<iframe src='https://my.spline.design/galaxy-lrPztl1iHbSICu5RVGnqWbNh/' frameborder='0' width='100%' height='100%'></iframe>\n"
+            + "</div>\n"
+            + "<div class='stars'>\n"
+            + "<div class='star'></div><div class='star'></div><div class='star'></div><div class='star'></div><div class='star'></div><div class='star'></div>\n"
+            + "</div>\n"
+            + "<div class='results-content'>\n"
+            + "<a href='index.html' class='navigation-btn'>Back to Universe</a>\n"
+            + "<div class='success-icon'>✨</div>\n"
+            + "<h1 class='results-title'>COSMIC CALCULATIONS COMPLETE</h1>\n"
+            + "<div class='number-display'>🔢 Input Number: <strong>";
+    
+    private static final String RESULTS_OPEN =
+            "</strong> 🌟</div>\n"
+            + "<div class='results-container'>\n"
+            + "<h2 style='text-align: center; color: #ffffff; margin-bottom: 40px; font-size: 2.5rem; text-shadow: 0 0 15px rgba(0,255,255,0.5); font-weight: bold;'>✨ Mathematical Discoveries ✨</h2>\n";
+    
+    private static final String ITEM_END = "</div>\n</div>\n";
+    
+    private static final String SUCCESS_TAIL =
+            "</div>\n"
+            + "<div class='button-group'>\n"
+            + "<a href='index.html' class='cosmic-btn'>🚀 Explore Another Universe</a>\n"
+            + "<button type='button' onclick='window.history.length > 1 ? window.history.back() : window.location.href = \"index.html\"' class='cosmic-btn'>⏰ Go Back</button>\n"
+            + "<button onclick='window.print()' class='cosmic-btn'>🖨️ Print Results</button>\n"
+            + "</div>\n"
+            + "</div>\n"
+            + "<script>\n"
+            + "document.addEventListener('mousemove', function(e) {\n"
+            + "    const stars = document.querySelectorAll('.star');\n"
+            + "    const x = e.clientX / window.innerWidth;\n"
+            + "    const y = e.clientY / window.innerHeight;\n"
+            + "    stars.forEach((star, index) => {\n"
+            + "        const speed = (index + 1) * 0.3;\n"
+            + "        const xPos = x * speed * 5;\n"
+            + "        const yPos = y * speed * 5;\n"
+            + "        star.style.transform = 'translate(' + xPos + 'px, ' + yPos + 'px)';\n"
+            + "    });\n"
+            + "});\n"
+            + "</script>\n"
+            + "</body></html>\n";
+    
+    private static final String ERROR_HEAD =
+            "<!DOCTYPE html>\n"
+            + "<html><head><title>Cosmic Error - Universe of Mathematics</title>\n"
+            + "<meta name='viewport' content='width=device-width, initial-scale=1.0'>\n"
+            + "<link rel='stylesheet' href='css/error.css'>\n"
+            + "</head><body>\n"
+            + "<div class='galaxy-container'>\n"
+            + "<iframe src='https://my.spline.design/galaxy-lrPztl1iHbSICu5RVGnqWbNh/' frameborder='0' width='100%' height='100%'></iframe>\n"
+            + "</div>\n"
+            + "<div class='error-content'>\n"
+            + "<button type='button' onclick='window.history.length > 1 ? window.history.back() : window.location.href = \"index.html\"' class='error-nav'>Back to Universe</button>\n"
+            + "<div class='error-icon'>⚠️</div>\n"
+            + "<h1 class='error-title'>COSMIC CALCULATION ERROR</h1>\n"
+            + "<div class='error-message'>";
+    
+    private static final String ERROR_TAIL =
+            "</div>\n"
+            + "<a href='index.html' class='cosmic-btn'>🚀 Return to Universe</a>\n"
+            + "</div>\n"
+            + "<script>\n"
+            + "function goBack() {\n"
+            + "    // Try to go back in history\n"
+            + "    if (document.referrer && document.referrer !== window.location.href) {\n"
+            + "        window.history.back();\n"
+            + "    } else {\n"
+            + "        // If no referrer, redirect to home page\n"
+            + "        window.location.href = 'index.html';\n"
+            + "    }\n"
+            + "}\n"
+            + "</script>\n"
+            + "</body></html>\n";
+    
+    private final byte[] successHead = encode(SUCCESS_HEAD);
+    private final byte[] resultsOpen = encode(RESULTS_OPEN);
+    private final byte[] itemEnd = encode(ITEM_END);
+    private final byte[] highlightOpen = encode("<div class='result-highlight'>");
+    private final byte[] highlightClose = encode("</div>");
+    private final byte[] successTail = encode(SUCCESS_TAIL);
+    private final byte[] errorHead = encode(ERROR_HEAD);
+    private final byte[] errorTail = encode(ERROR_TAIL);
+    private final Map<String, byte[]> itemHeads = new HashMap<>();
+    
+    /**
+     * Encodes the page fragments, including a result header for every known operation
+     * @param operationTypes operation types offered by the factory
+     */
+    public PageShell(Iterable<String> operationTypes) {
+        for (String operationType : operationTypes) {
+            itemHeads.put(operationType, encode(itemHeadHtml(operationType)));
+        }
+    }
+    
+    /**
+     * Builds the opening markup of a result item, up to the start of its content
+     */
+    private static String itemHeadHtml(String operationType) {
+        String cssClass = escape(operationType.toLowerCase()) + "-result";
+        return "<div class='result-item " + cssClass + "'>\n"
+                + "<div class='result-title'><span class='result-icon'>" + getOperationIcon(operationType)
+                + "</span>" + escape(getOperationTitle(operationType)) + "</div>\n"
+                + "<div class='result-content'>";
+    }
+    
+    /**
+     * Gets display title for operation type
+     */
+    static String getOperationTitle(String operationType) {
+        switch (operationType) {
+            case "factorial": return "Factorial";
+            case "palindrome": return "Palindrome Check";
+            case "palindromeCount": return "Palindrome Count";
+            case "nthPalindrome": return "Nth Palindrome";
+            case "nextPalindrome": return "Next Palindrome";
+            case "fibonacci": return "Fibonacci Series";
+            case "prime": return "Prime Number Check";
+            case "primeCount": return "Prime Count";
+            case "primeRange": return "Prime Range";
+            case "cubeRoot": return "Cube Root";
+            default: return operationType;
+        }
+    }
+    
+    /**
+     * Gets display icon for operation type
+     */
+    static String getOperationIcon(String operationType) {
+        switch (operationType) {
+            case "factorial": return "🔢";
+            case "palindrome": return "🔄";
+            case "palindromeCount": return "🪞";
+            case "nthPalindrome": return "🎯";
+            case "nextPalindrome": return "⏭";
+            case "fibonacci": return "🌀";
+            case "prime": return "🔍";
+            case "primeCount": return "🧮";
+            case "primeRange": return "📜";
+            case "cubeRoot": return "∛";
+            default: return "✨";
+        }
+    }
+    
+    /**
+     * Escapes text for use in HTML content and single-quoted attributes
+     */
+    static String escape(String text) {
+        StringBuilder escaped = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&': escaped.append("&amp;"); break;
+                case '<': escaped.append("&lt;"); break;
+                case '>': escaped.append("&gt;"); break;
+                case '"': escaped.append("&quot;"); break;
+                case '\'': escaped.append("&#39;"); break;
+                default: escaped.append(c); break;
+            }
+        }
+        return escaped.toString();
+    }
+    
+    private static byte[] encode(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Gets the encoded header of a result item
+     * @param operationType the operation type
+     * @return pre-encoded bytes, encoded on the fly for unknown operation types
+     */
+    public byte[] itemHead(String operationType) {
+        byte[] head = itemHeads.get(operationType);
+        return head != null ? head : encode(itemHeadHtml(operationType));
+    }
+    
+    public byte[] successHead() {
+        return successHead;
+    }
+    
+    public byte[] resultsOpen() {
+        return resultsOpen;
+    }
+    
+    public byte[] itemEnd() {
+        return itemEnd;
+    }
+    
+    public byte[] highlightOpen() {
+        return highlightOpen;
+    }
+    
+    public byte[] highlightClose() {
+        return highlightClose;
+    }
+    
+    public byte[] successTail() {
+        return successTail;
+    }
+    
+    public byte[] errorHead() {
+        return errorHead;
+    }
+    
+    public byte[] errorTail() {
+        return errorTail;
+    }
+}
@@ -0,0 +1,125 @@
+package com.mathservlets;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+/**
+ * UTF-8 writer over a byte stream that also accepts pre-encoded bytes.
+ * Dynamic text is encoded into a fixed-size byte buffer and constant page
+ * fragments are copied in as they are, so only the dynamic parts of a page
+ * are encoded per request.
+ */
+public class PageWriter extends Writer {
+    
+    /** Size of the byte buffer */
+    static final int BUFFER_SIZE = 8192;
+    
+    private final OutputStream out;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int count;
+    private char highSurrogate;
+    
+    /**
+     * Creates a page writer
+     * @param out stream receiving the encoded page
+     */
+    public PageWriter(OutputStream out) {
+        this.out = out;
+    }
+    
+    /**
+     * Writes bytes that are already UTF-8 encoded
+     * @param bytes encoded fragment
+     * @throws IOException if the output fails
+     */
+    public void writeBytes(byte[] bytes) throws IOException {
+        if (bytes.length > BUFFER_SIZE - count) {
+            flushBuffer();
+            if (bytes.length >= BUFFER_SIZE) {
+                out.write(bytes);
+                return;
+            }
+        }
+        System.arraycopy(bytes, 0, buffer, count, bytes.length);
+        count += bytes.length;
+    }
+    
+    @Override
+    public void write(int c) throws IOException {
+        encode((char) c);
+    }
+    
+    @Override
+    public void write(char[] chars, int offset, int length) throws IOException {
+        for (int i = offset; i < offset + length; i++) {
+            encode(chars[i]);
+        }
+    }
+    
+    @Override
+    public void write(String text, int offset, int length) throws IOException {
+        for (int i = offset; i < offset + length; i++) {
+            encode(text.charAt(i));
+        }
+    }
+    
+    /**
+     * Encodes one UTF-16 unit, pairing surrogates into four-byte sequences
+     */
+    private void encode(char c) throws IOException {
+        if (count > BUFFER_SIZE - 4) {
+            flushBuffer();
+        }
+        if (highSurrogate != 0) {
+            char high = highSurrogate;
+            highSurrogate = 0;
+            if (Character.isLowSurrogate(c)) {
+                int codePoint = Character.toCodePoint(high, c);
+                buffer[count++] = (byte) (0xF0 | (codePoint >> 18));
+                buffer[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buffer[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buffer[count++] = (byte) (0x80 | (codePoint & 0x3F));
+                return;
+            }
+            buffer[count++] = '?';
+        }
+        
+        if (c < 0x80) {
+            buffer[count++] = (byte) c;
+        } else if (c < 0x800) {
+            buffer[count++] = (byte) (0xC0 | (c >> 6));
+            buffer[count++] = (byte) (0x80 | (c & 0x3F));
+        } else if (Character.isHighSurrogate(c)) {
+            highSurrogate = c;
+        } else if (Character.isLowSurrogate(c)) {
+            buffer[count++] = '?';
+        } else {
+            buffer[count++] = (byte) (0xE0 | (c >> 12));
+            buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            buffer[count++] = (byte) (0x80 | (c & 0x3F));
+        }
+    }
+    
+    private void flushBuffer() throws IOException {
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+    }
+    
+    /**
+     * Writes the buffered bytes and flushes the underlying stream
+     */
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+    
+    @Override
+    public void close() throws IOException {
+        flushBuffer();
+        out.close();
+    }
+}
@@ -2,7 +2,8 @@ package com.mathservlets;
 
 /**
  * Implementation of palindrome check operation.
- * Checks if a number reads the same forwards and backwards.
+ * Checks if a number reads the same forwards and backwards, comparing its digits
+ * arithmetically with {@link Palindromes#isPalindrome(int)}.
  */
 public class PalindromeOperation implements MathOperation {
     
@@ -12,7 +13,7 @@ public class PalindromeOperation implements MathOperation {
             return "Negative numbers are not considered palindromes.";
         }
         
-        boolean isPalindrome = isPalindrome(number);
+        boolean isPalindrome = Palindromes.isPalindrome(number);
         
         if (isPalindrome) {
             return "The number " + number + " is a palindrome.";
@@ -21,27 +22,6 @@ public class PalindromeOperation implements MathOperation {
         }
     }
     
-    /**
-     * Checks if a number is palindrome
-     * @param number the number to check
-     * @return true if palindrome, false otherwise
-     */
-    private boolean isPalindrome(int number) {
-        String numberStr = String.valueOf(number);
-        int left = 0;
-        int right = numberStr.length() - 1;
-        
-        while (left < right) {
-            if (numberStr.charAt(left) != numberStr.charAt(right)) {
-                return false;
-            }
-            left++;
-            right--;
-        }
-        
-        return true;
-    }
-    
     @Override
     public String getOperationName() {
         return "Palindrome Check";
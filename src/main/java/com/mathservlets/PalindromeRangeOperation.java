@@ -0,0 +1,64 @@
+package com.mathservlets;
+
+/**
+ * Implementation of palindrome range operations.
+ * Counts the palindromes up to the given number, finds the palindrome at that
+ * position, or finds the next palindrome from it. Each is worked out from the digits
+ * of the number by {@link Palindromes}, without walking the range.
+ */
+public class PalindromeRangeOperation implements MathOperation {
+    
+    /**
+     * What the operation reports about the number
+     */
+    public enum Mode {
+        /** How many palindromes lie between 1 and the number */
+        COUNT,
+        /** The palindrome at the number's position in 1, 2, ..., 9, 11, 22, ... */
+        NTH,
+        /** The smallest palindrome that is not below the number */
+        NEXT
+    }
+    
+    private final Mode mode;
+    
+    /**
+     * Creates a palindrome range operation
+     * @param mode what to report
+     */
+    public PalindromeRangeOperation(Mode mode) {
+        this.mode = mode;
+    }
+    
+    @Override
+    public String execute(int number) {
+        switch (mode) {
+            case COUNT:
+                long count = Palindromes.countUpTo(number, 10);
+                return "There " + (count == 1 ? "is 1 palindrome" : "are " + count + " palindromes")
+                        + " from 1 to " + number + ".";
+            case NTH:
+                if (number < 1) {
+                    return "Palindrome positions start at 1.";
+                }
+                return "Palindrome number " + number + " is " + Palindromes.nth(number, 10) + ".";
+            default:
+                long next = Palindromes.next(number, 10);
+                return next == number
+                        ? "The number " + number + " is itself a palindrome."
+                        : "The next palindrome after " + number + " is " + next + ".";
+        }
+    }
+    
+    @Override
+    public String getOperationName() {
+        switch (mode) {
+            case COUNT:
+                return "Palindrome Count";
+            case NTH:
+                return "Nth Palindrome";
+            default:
+                return "Next Palindrome";
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.mathservlets;
+
+/**
+ * Arithmetic on numeric palindromes in any base from 2 to 36.
+ * Checks reverse half of the digits in place, without building strings. Counting,
+ * ranking and finding the next palindrome work from the first half of the digits:
+ * a palindrome of length L is fixed by its first ceil(L/2) digits, so there are
+ * (b-1) * b^(ceil(L/2)-1) of them, and each of these runs in time proportional to
+ * the number of digits rather than to the width of the range.
+ * The positive palindromes are 1, 2, ..., 9, 11, 22, ...; zero only matters to the checks.
+ */
+public final class Palindromes {
+    
+    private Palindromes() {
+    }
+    
+    /**
+     * Checks whether a number reads the same forwards and backwards in base 10
+     * @param n the number
+     * @return true for a non-negative palindrome
+     */
+    public static boolean isPalindrome(int n) {
+        return isPalindrome(n, 10);
+    }
+    
+    /**
+     * Checks whether a number reads the same forwards and backwards in base 10
+     * @param n the number
+     * @return true for a non-negative palindrome
+     */
+    public static boolean isPalindrome(long n) {
+        return isPalindrome(n, 10);
+    }
+    
+    /**
+     * Checks whether a number reads the same forwards and backwards in a base.
+     * The low half of the digits is reversed until it meets the high half, so the
+     * reversed part never exceeds the number and cannot overflow.
+     * @param n the number
+     * @param base the base, 2 to 36
+     * @return true for a non-negative palindrome
+     */
+    public static boolean isPalindrome(long n, int base) {
+        checkBase(base);
+        if (n < 0 || n % base == 0 && n != 0) {
+            return false;
+        }
+        long reversed = 0;
+        while (n > reversed) {
+            reversed = reversed * base + n % base;
+            n /= base;
+        }
+        // An odd digit count leaves the middle digit on the reversed half
+        return n == reversed || n == reversed / base;
+    }
+    
+    /**
+     * Counts the positive palindromes in a range
+     * @param from lower end of the range, inclusive
+     * @param to upper end of the range, inclusive
+     * @param base the base, 2 to 36
+     * @return the number of palindromes, 0 for an empty range
+     */
+    public static long count(long from, long to, int base) {
+        if (to < from || to < 1) {
+            return 0;
+        }
+        return countUpTo(to, base) - (from <= 1 ? 0 : countUpTo(from - 1, base));
+    }
+    
+    /**
+     * Counts the positive palindromes up to a number
+     * @param n upper end, inclusive
+     * @param base the base, 2 to 36
+     * @return the number of palindromes in [1, n]
+     */
+    public static long countUpTo(long n, int base) {
+        checkBase(base);
+        if (n < 1) {
+            return 0;
+        }
+        int length = length(n, base);
+        
+        // All palindromes shorter than n: (b-1) * b^(ceil(L/2)-1) of each length L
+        long count = 0;
+        long firstHalves = 1;
+        for (int shorter = 1; shorter < length; shorter++) {
+            count += (base - 1) * firstHalves;
+            if (shorter % 2 == 0) {
+                firstHalves *= base;
+            }
+        }
+        
+        // Then those of n's length whose first half is smaller than n's
+        int halfLength = (length + 1) / 2;
+        long half = n / power(base, length - halfLength);
+        count += half - firstHalves;
+        // The palindrome on n's own first half counts if it is not above n
+        if (!exceeds(half, length, base, n)) {
+            count++;
+        }
+        return count;
+    }
+    
+    /**
+     * Gets the k-th positive palindrome
+     * @param k rank, starting at 1
+     * @param base the base, 2 to 36
+     * @return the palindrome
+     * @throws ArithmeticException if it does not fit in a long
+     */
+    public static long nth(long k, int base) {
+        checkBase(base);
+        if (k < 1) {
+            throw new IllegalArgumentException("Rank must be positive: " + k);
+        }
+        int length = 1;
+        long firstHalves = 1;
+        while (k > (base - 1) * firstHalves) {
+            k -= (base - 1) * firstHalves;
+            if (length % 2 == 0) {
+                firstHalves = Math.multiplyExact(firstHalves, (long) base);
+            }
+            length++;
+        }
+        // The k-th palindrome of this length has the k-th first half
+        return mirror(firstHalves + k - 1, length, base);
+    }
+    
+    /**
+     * Gets the smallest palindrome not below a number
+     * @param n the number
+     * @param base the base, 2 to 36
+     * @return the palindrome, 0 for a negative n
+     * @throws ArithmeticException if it does not fit in a long
+     */
+    public static long next(long n, int base) {
+        checkBase(base);
+        if (n < base) {
+            return Math.max(n, 0);
+        }
+        int length = length(n, base);
+        int halfLength = (length + 1) / 2;
+        long half = n / power(base, length - halfLength);
+        long candidate = mirror(half, length, base);
+        if (candidate >= n) {
+            return candidate;
+        }
+        // Increasing the first half gives the next palindrome; from all nines it takes one more digit
+        if (half + 1 == power(base, halfLength)) {
+            return Math.addExact(power(base, length), 1);
+        }
+        return mirror(half + 1, length, base);
+    }
+    
+    /**
+     * Builds the palindrome of a given length whose first digits are half
+     * @param half the first (length + 1) / 2 digits
+     * @param length number of digits of the palindrome
+     * @param base the base
+     * @return the palindrome
+     * @throws ArithmeticException if it does not fit in a long
+     */
+    static long mirror(long half, int length, int base) {
+        long palindrome = half;
+        long rest = length % 2 == 0 ? half : half / base;
+        while (rest > 0) {
+            palindrome = Math.addExact(Math.multiplyExact(palindrome, (long) base), rest % base);
+            rest /= base;
+        }
+        return palindrome;
+    }
+    
+    /**
+     * Checks whether the palindrome built on half is above a limit, which it is if it overflows
+     */
+    private static boolean exceeds(long half, int length, int base, long limit) {
+        try {
+            return mirror(half, length, base) > limit;
+        } catch (ArithmeticException e) {
+            return true;
+        }
+    }
+    
+    /**
+     * Number of digits of a positive number
+     */
+    private static int length(long n, int base) {
+        int length = 1;
+        while (n >= base) {
+            n /= base;
+            length++;
+        }
+        return length;
+    }
+    
+    private static long power(int base, int exponent) {
+        long result = 1;
+        for (int i = 0; i < exponent; i++) {
+            result = Math.multiplyExact(result, (long) base);
+        }
+        return result;
+    }
+    
+    private static void checkBase(int base) {
+        if (base < Character.MIN_RADIX || base > Character.MAX_RADIX) {
+            throw new IllegalArgumentException("Base must be between 2 and 36: " + base);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.mathservlets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * In-memory copies of the static webapp resources, each gzipped once at startup at the
+ * best compression level. Requests for them are answered from memory, compressed or not
+ * as the client accepts, without reaching the container's default servlet.
+ */
+public class PrecompressedResources {
+    
+    /** Resources larger than this are left to the container */
+    static final int MAX_RESOURCE_SIZE = 1 << 20;
+    
+    private final Map<String, Resource> resources;
+    
+    private PrecompressedResources(Map<String, Resource> resources) {
+        this.resources = Collections.unmodifiableMap(resources);
+    }
+    
+    /**
+     * Loads and compresses every compressible resource outside WEB-INF and META-INF
+     * @param context the servlet context to read from
+     * @return the loaded resources
+     * @throws IOException if a resource cannot be read
+     */
+    public static PrecompressedResources load(ServletContext context) throws IOException {
+        Map<String, Resource> resources = new HashMap<>();
+        collect(context, "/", resources);
+        // The welcome file also answers the application root
+        Resource welcome = resources.get("/index.html");
+        if (welcome != null) {
+            resources.put("/", welcome);
+        }
+        return new PrecompressedResources(resources);
+    }
+    
+    private static void collect(ServletContext context, String directory, Map<String, Resource> resources)
+            throws IOException {
+        Set<String> paths = context.getResourcePaths(directory);
+        if (paths == null) {
+            return;
+        }
+        for (String path : paths) {
+            if (path.startsWith("/WEB-INF/") || path.startsWith("/META-INF/")) {
+                continue;
+            }
+            if (path.endsWith("/")) {
+                collect(context, path, resources);
+                continue;
+            }
+            String mimeType = context.getMimeType(path);
+            if (!CompressionFilter.isCompressible(mimeType)) {
+                continue;
+            }
+            try (InputStream in = context.getResourceAsStream(path)) {
+                byte[] content = in == null ? null : readLimited(in);
+                if (content != null) {
+                    resources.put(path, of(contentType(mimeType), content));
+                }
+            }
+        }
+    }
+    
+    /**
+     * Reads a resource, giving up on one larger than the limit
+     */
+    private static byte[] readLimited(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+            if (out.size() > MAX_RESOURCE_SIZE) {
+                return null;
+            }
+        }
+        return out.toByteArray();
+    }
+    
+    private static String contentType(String mimeType) {
+        return mimeType.startsWith("text/") && !mimeType.contains("charset") ? mimeType + ";charset=UTF-8" : mimeType;
+    }
+    
+    /**
+     * Creates a resource from its content, keeping a gzip copy only if it is smaller
+     * @param contentType value of the Content-Type header
+     * @param content the bytes of the resource
+     * @return the resource
+     */
+    static Resource of(String contentType, byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        String tag = Long.toHexString(crc.getValue()) + "-" + Integer.toHexString(content.length);
+        
+        byte[] gzipped = gzip(content);
+        if (gzipped.length >= content.length) {
+            gzipped = null;
+        }
+        return new Resource(contentType, content, gzipped, "\"s-" + tag + "\"", "\"s-" + tag + "-gz\"");
+    }
+    
+    private static byte[] gzip(byte[] content) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 4 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out) {
+            {
+                def.setLevel(Deflater.BEST_COMPRESSION);
+            }
+        }) {
+            gzip.write(content);
+        } catch (IOException e) {
+            throw new IllegalStateException("In-memory compression failed", e);
+        }
+        return out.toByteArray();
+    }
+    
+    /**
+     * Looks up a resource by its path within the application
+     * @param path the path, starting with a slash
+     * @return the resource, or null if it is not held in memory
+     */
+    public Resource get(String path) {
+        return resources.get(path);
+    }
+    
+    public int size() {
+        return resources.size();
+    }
+    
+    /**
+     * A static resource with its optional gzip encoding
+     */
+    public static class Resource {
+        private final String contentType;
+        private final byte[] content;
+        private final byte[] gzipped;
+        private final String entityTag;
+        private final String gzipEntityTag;
+        
+        private Resource(String contentType, byte[] content, byte[] gzipped, String entityTag, String gzipEntityTag) {
+            this.contentType = contentType;
+            this.content = content;
+            this.gzipped = gzipped;
+            this.entityTag = entityTag;
+            this.gzipEntityTag = gzipEntityTag;
+        }
+        
+        /**
+         * Writes the resource, gzipped if the client accepts it and that is smaller.
+         * Answers 304 when the client's cached copy is current. On an error dispatch the
+         * status set for the error is kept.
+         * @param request the request
+         * @param response the response
+         * @param acceptsGzip whether the client accepts gzip
+         * @throws IOException if the output fails
+         */
+        public void serve(HttpServletRequest request, HttpServletResponse response, boolean acceptsGzip)
+                throws IOException {
+            boolean compressed = acceptsGzip && gzipped != null;
+            byte[] body = compressed ? gzipped : content;
+            String tag = compressed ? gzipEntityTag : entityTag;
+            
+            response.setContentType(contentType);
+            if (request.getDispatcherType() == DispatcherType.REQUEST) {
+                response.setHeader("ETag", tag);
+                if (CanonicalRequest.matches(request.getHeader("If-None-Match"), tag)) {
+                    response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                    return;
+                }
+            }
+            if (compressed) {
+                response.setHeader("Content-Encoding", "gzip");
+            }
+            response.setContentLength(body.length);
+            if (!"HEAD".equals(request.getMethod())) {
+                ServletOutputStream out = response.getOutputStream();
+                out.write(body);
+                out.flush();
+            }
+        }
+        
+        public String getContentType() {
+            return contentType;
+        }
+        
+        public byte[] getContent() {
+            return content.clone();
+        }
+        
+        /**
+         * Gets the gzip encoding of the resource
+         * @return the compressed bytes, or null if compression does not make it smaller
+         */
+        public byte[] getGzipped() {
+            return gzipped == null ? null : gzipped.clone();
+        }
+    }
+}
@@ -2,10 +2,21 @@ package com.mathservlets;
 
 /**
  * Implementation of prime number check operation.
- * Checks if a number is prime using optimized algorithm.
+ * Numbers covered by the precomputed sieve are answered in constant time;
+ * larger numbers use deterministic Miller-Rabin.
  */
 public class PrimeOperation implements MathOperation {
     
+    private final PrimeSieve sieve;
+    
+    public PrimeOperation() {
+        this(new PrimeSieve());
+    }
+    
+    public PrimeOperation(PrimeSieve sieve) {
+        this.sieve = sieve;
+    }
+    
     @Override
     public String execute(int number) {
         if (number < 2) {
@@ -22,31 +33,23 @@ public class PrimeOperation implements MathOperation {
     }
     
     /**
-     * Checks if a number is prime using optimized algorithm
+     * Checks if a number is prime using the sieve or Miller-Rabin
      * @param number the number to check
      * @return true if prime, false otherwise
      */
     private boolean isPrime(int number) {
-        // Handle edge cases
-        if (number <= 1) {
-            return false;
-        }
-        if (number <= 3) {
-            return true;
-        }
-        if (number % 2 == 0 || number % 3 == 0) {
-            return false;
+        if (sieve.covers(number)) {
+            return sieve.isPrime(number);
         }
-        
-        // Check divisibility from 5 to sqrt(number)
-        // Only check odd numbers of the form 6k ± 1
-        for (int i = 5; i * i <= number; i += 6) {
-            if (number % i == 0 || number % (i + 2) == 0) {
-                return false;
-            }
-        }
-        
-        return true;
+        return MillerRabin.isPrime(number);
+    }
+    
+    /**
+     * Gets the sieve backing this operation
+     * @return prime sieve
+     */
+    public PrimeSieve getSieve() {
+        return sieve;
     }
     
     @Override
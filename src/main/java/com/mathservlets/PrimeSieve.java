@@ -0,0 +1,134 @@
+package com.mathservlets;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+
+/**
+ * Precomputed odd-only sieve of Eratosthenes stored as a bitset.
+ * Each bit marks whether an odd number is composite, so a sieve up to n takes n / 16 bytes.
+ * The bitset can live on the Java heap or in a direct buffer outside it.
+ */
+public class PrimeSieve {
+    
+    /** Default upper bound: 2^24, which takes 1 MB */
+    public static final int DEFAULT_LIMIT = 1 << 24;
+    
+    private final int limit;
+    private final boolean offHeap;
+    private final LongBuffer composite;
+    
+    public PrimeSieve() {
+        this(DEFAULT_LIMIT, false);
+    }
+    
+    /**
+     * Builds a sieve
+     * @param limit largest number covered by the sieve
+     * @param offHeap whether to store the bitset in a direct buffer
+     */
+    public PrimeSieve(int limit, boolean offHeap) {
+        if (limit < 2) {
+            throw new IllegalArgumentException("Sieve limit must be at least 2");
+        }
+        this.limit = limit;
+        this.offHeap = offHeap;
+        
+        // Bit i stands for the odd number 2i + 1
+        long oddCount = limit / 2 + 1L;
+        long[] bits = new long[(int) ((oddCount + 63) >>> 6)];
+        bits[0] |= 1L; // 1 is not prime
+        for (long p = 3; p * p <= limit; p += 2) {
+            long index = p >>> 1;
+            if ((bits[(int) (index >>> 6)] & (1L << index)) != 0) {
+                continue;
+            }
+            for (long multiple = p * p; multiple <= limit; multiple += 2 * p) {
+                long bit = multiple >>> 1;
+                bits[(int) (bit >>> 6)] |= 1L << bit;
+            }
+        }
+        
+        if (offHeap) {
+            LongBuffer direct = ByteBuffer.allocateDirect(bits.length * Long.BYTES)
+                    .order(ByteOrder.nativeOrder())
+                    .asLongBuffer();
+            direct.put(bits);
+            direct.flip();
+            this.composite = direct;
+        } else {
+            this.composite = LongBuffer.wrap(bits);
+        }
+    }
+    
+    /**
+     * Checks whether a number is prime in constant time
+     * @param n the number, which must not exceed the sieve limit
+     * @return true if prime, false otherwise
+     * @throws IllegalArgumentException if n is above the limit
+     */
+    public boolean isPrime(int n) {
+        if (n > limit) {
+            throw new IllegalArgumentException("Number " + n + " is above the sieve limit " + limit);
+        }
+        if (n < 2) {
+            return false;
+        }
+        if ((n & 1) == 0) {
+            return n == 2;
+        }
+        int index = n >>> 1;
+        return (composite.get(index >>> 6) & (1L << index)) == 0;
+    }
+    
+    /**
+     * Whether the number is covered by the sieve
+     * @param n the number
+     * @return true if n is within the sieve range
+     */
+    public boolean covers(long n) {
+        return n <= limit;
+    }
+    
+    /**
+     * Lists the odd primes up to n with a one-off odd-only sieve of Eratosthenes
+     * @param n upper bound
+     * @return odd primes up to n in ascending order
+     */
+    public static int[] oddPrimesUpTo(int n) {
+        if (n < 3) {
+            return new int[0];
+        }
+        // Index i represents the odd number 2i + 1
+        int size = (n - 1) / 2 + 1;
+        boolean[] composite = new boolean[size];
+        int count = 0;
+        for (int i = 1; i < size; i++) {
+            if (composite[i]) {
+                continue;
+            }
+            count++;
+            long p = 2L * i + 1;
+            for (long j = p * p / 2; j < size; j += p) {
+                composite[(int) j] = true;
+            }
+        }
+        
+        int[] primes = new int[count];
+        int index = 0;
+        for (int i = 1; i < size; i++) {
+            if (!composite[i]) {
+                primes[index++] = 2 * i + 1;
+            }
+        }
+        return primes;
+    }
+    
+    public int getLimit() {
+        return limit;
+    }
+    
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+}
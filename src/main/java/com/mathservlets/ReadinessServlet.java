@@ -0,0 +1,46 @@
+package com.mathservlets;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Readiness probe for load balancers.
+ * Answers 200 once the startup warm-up has finished and 503 while it is still running,
+ * so traffic is kept away from nodes whose code is not yet compiled.
+ */
+public class ReadinessServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+    
+    private static final int RETRY_AFTER_SECONDS = 5;
+    
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        response.setContentType("text/plain;charset=UTF-8");
+        response.setHeader("Cache-Control", "no-store");
+        
+        // Without the warm-up listener there is nothing to wait for
+        WarmUp warmUp = (WarmUp) getServletContext().getAttribute(WarmUp.CONTEXT_ATTRIBUTE);
+        String body;
+        if (warmUp == null) {
+            body = "ready\n";
+        } else if (warmUp.isReady()) {
+            body = "ready\nwarm-up " + warmUp.getCompletedRounds() + "/" + warmUp.getRounds() + " rounds in "
+                    + warmUp.getDurationMillis() + " ms\n"
+                    + (warmUp.getFailure() == null ? "" : "warm-up failed: " + warmUp.getFailure() + "\n");
+        } else {
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            response.setHeader("Retry-After", String.valueOf(RETRY_AFTER_SECONDS));
+            body = "warming up\nwarm-up " + warmUp.getCompletedRounds() + "/" + warmUp.getRounds() + " rounds\n";
+        }
+        
+        PrintWriter out = response.getWriter();
+        out.write(body);
+        out.flush();
+    }
+}
@@ -0,0 +1,581 @@
+package com.mathservlets;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.servlet.ServletContext;
+
+/**
+ * Disk-backed store of expensive results, keyed by operation and number and shared
+ * by every JVM on the host that opens the same directory.
+ * Result text is appended to a data log and found through a compact index of
+ * fixed-size slots with linear probing. Both files are memory-mapped, so a stored
+ * result is read straight from the page cache the JVMs share, and it survives
+ * restarts and redeploys. Nothing is ever removed; once the index is three quarters
+ * full or the log reaches its size limit, further results are simply not stored.
+ * <p>
+ * Lookups take no locks. Appends are serialized with a lock on the index header, a
+ * file lock across JVMs, and an entry is published by writing its slot's state last,
+ * so readers in any JVM see either nothing or a complete record.
+ */
+public final class ResultStore implements Closeable {
+    
+    /** Default number of index slots: 2 MB of index for up to 49152 results */
+    static final int DEFAULT_SLOTS = 1 << 16;
+    
+    /** Default size limit of the data log */
+    static final long DEFAULT_MAX_BYTES = 1L << 30;
+    
+    /** Default estimated cost from which results are stored, about 10 ms of work */
+    static final long DEFAULT_MIN_COST = 10000;
+    
+    static final String INDEX_FILE = "results.idx";
+    static final String DATA_FILE = "results.dat";
+    
+    private static final long INDEX_MAGIC = 0x4d53494e44455831L;
+    private static final long DATA_MAGIC = 0x4d53524553554c54L;
+    private static final int VERSION = 1;
+    
+    // Index header: magic, version, slot count, end of the data log, entry count
+    private static final int INDEX_HEADER = 64;
+    private static final int SLOTS_AT = 12;
+    private static final int DATA_END_AT = 16;
+    private static final int COUNT_AT = 24;
+    
+    // Slot: state, number, key hash, record offset, text length
+    private static final int SLOT_SIZE = 32;
+    private static final int FULL = 1;
+    private static final int MAX_SLOTS = 1 << 24;
+    
+    // Record: magic, number, key length, text length, key, text
+    private static final int DATA_HEADER = 16;
+    private static final int RECORD_MAGIC = 0x52534c54;
+    private static final int RECORD_HEADER = 14;
+    
+    /** The log is mapped in segments that no record crosses, which also caps the size of a record */
+    private static final int SEGMENT_BITS = 26;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+    private static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+    
+    private static final int CHUNK_SIZE = 4096;
+    
+    /** Reads and writes slot states with acquire and release ordering */
+    private static final VarHandle STATE = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    
+    private final Path directory;
+    private final FileChannel indexChannel;
+    private final FileChannel dataChannel;
+    private final MappedByteBuffer index;
+    private final AtomicReferenceArray<MappedByteBuffer> segments;
+    private final int slots;
+    private final long maxBytes;
+    private final long minCost;
+    
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong stored = new AtomicLong();
+    
+    /**
+     * Opens the store in a directory, creating it if needed. When the store already
+     * exists its own number of slots is used.
+     * @param directory directory of the index and data files
+     * @param slots number of index slots for a new store, a power of two
+     * @param maxBytes size limit of the data log
+     * @param minCost smallest estimated cost of a result worth storing
+     * @throws IOException if the files cannot be opened or are not a store of this version
+     */
+    public ResultStore(Path directory, int slots, long maxBytes, long minCost) throws IOException {
+        if (slots <= 0 || slots > MAX_SLOTS || Integer.bitCount(slots) != 1) {
+            throw new IllegalArgumentException("Result store slots must be a power of two up to " + MAX_SLOTS
+                    + ": " + slots);
+        }
+        if (maxBytes <= DATA_HEADER) {
+            throw new IllegalArgumentException("Result store size limit is too small: " + maxBytes);
+        }
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.minCost = minCost;
+        this.segments = new AtomicReferenceArray<>((int) ((maxBytes - 1 >>> SEGMENT_BITS) + 1));
+        
+        Files.createDirectories(directory);
+        indexChannel = FileChannel.open(directory.resolve(INDEX_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileChannel data = null;
+        try {
+            data = FileChannel.open(directory.resolve(DATA_FILE), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            // Whole-file lock, so JVMs starting together create the store once
+            FileLock lock;
+            try {
+                lock = indexChannel.lock();
+            } catch (OverlappingFileLockException e) {
+                throw new IOException("Result store is being opened by another application in this JVM: "
+                        + directory, e);
+            }
+            try {
+                if (indexChannel.size() == 0) {
+                    create(indexChannel, data, slots);
+                }
+                ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER);
+                readFully(indexChannel, header, 0);
+                ByteBuffer dataHeader = ByteBuffer.allocate(DATA_HEADER);
+                readFully(data, dataHeader, 0);
+                if (header.getLong(0) != INDEX_MAGIC || header.getInt(8) != VERSION
+                        || dataHeader.getLong(0) != DATA_MAGIC || dataHeader.getInt(8) != VERSION) {
+                    throw new IOException("Not a result store of version " + VERSION + ": " + directory);
+                }
+                this.slots = header.getInt(SLOTS_AT);
+                if (this.slots <= 0 || this.slots > MAX_SLOTS || Integer.bitCount(this.slots) != 1) {
+                    throw new IOException("Corrupt result store index: " + directory);
+                }
+                this.index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+                        INDEX_HEADER + (long) this.slots * SLOT_SIZE);
+            } finally {
+                lock.release();
+            }
+        } catch (IOException | RuntimeException e) {
+            indexChannel.close();
+            if (data != null) {
+                data.close();
+            }
+            throw e;
+        }
+        this.dataChannel = data;
+    }
+    
+    /**
+     * Opens the store described by the context parameters resultStoreDir, resultStoreSlots,
+     * resultStoreMaxBytes and resultStoreMinCost. A relative directory is taken relative to
+     * the temporary directory, which every JVM on the host shares by default.
+     * @param context the servlet context
+     * @return the store, or null if resultStoreDir is not set
+     * @throws IOException if the store cannot be opened
+     * @throws IllegalArgumentException if a context parameter is invalid
+     */
+    public static ResultStore open(ServletContext context) throws IOException {
+        String dir = context.getInitParameter("resultStoreDir");
+        if (dir == null || dir.trim().isEmpty()) {
+            return null;
+        }
+        Path directory = Paths.get(System.getProperty("java.io.tmpdir")).resolve(dir.trim());
+        return new ResultStore(directory,
+                InitParameters.intValue(context::getInitParameter, "resultStoreSlots", DEFAULT_SLOTS),
+                InitParameters.longValue(context::getInitParameter, "resultStoreMaxBytes", DEFAULT_MAX_BYTES),
+                InitParameters.longValue(context::getInitParameter, "resultStoreMinCost", DEFAULT_MIN_COST));
+    }
+    
+    /**
+     * Writes the headers of a new store
+     */
+    private static void create(FileChannel indexChannel, FileChannel data, int slots) throws IOException {
+        ByteBuffer dataHeader = ByteBuffer.allocate(DATA_HEADER);
+        dataHeader.putLong(0, DATA_MAGIC).putInt(8, VERSION);
+        writeFully(data, dataHeader, 0);
+        ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER);
+        header.putLong(0, INDEX_MAGIC).putInt(8, VERSION).putInt(SLOTS_AT, slots).putLong(DATA_END_AT, DATA_HEADER);
+        // The index header goes last; until it is there the store counts as not created
+        writeFully(indexChannel, header, 0);
+    }
+    
+    /**
+     * Gets the result of an operation from the store, or evaluates it and stores it.
+     * A stored result is written from the mapped log, so serving it needs neither the
+     * calculation nor a copy of its text on the heap.
+     * @param operationType the operation type
+     * @param operation the operation
+     * @param number the input number
+     * @param precision decimal places, or 0 for the operation's default
+     * @param token cancellation token of the request
+     * @return the result
+     * @throws java.util.concurrent.CancellationException if the token trips
+     */
+    public OperationResult evaluate(String operationType, MathOperation operation, int number, int precision,
+            CancellationToken token) {
+        String key = key(operationType, precision);
+        ByteBuffer text = get(key, number);
+        if (text != null) {
+            hits.incrementAndGet();
+            return new StoredResult(text);
+        }
+        misses.incrementAndGet();
+        
+        OperationResult result = operation.evaluate(number, precision, token);
+        if (result.isError()) {
+            return result;
+        }
+        RecordBuffer buffer = new RecordBuffer();
+        try {
+            PageWriter writer = new PageWriter(buffer);
+            result.writeTo(writer);
+            writer.flush();
+        } catch (IOException e) {
+            // Too large to store; it is rendered again when it is written
+            return result;
+        }
+        try {
+            text = put(key, number, buffer.bytes, buffer.count);
+        } catch (IOException e) {
+            text = null;
+        }
+        return new StoredResult(text != null ? text : ByteBuffer.wrap(buffer.bytes, 0, buffer.count));
+    }
+    
+    /**
+     * Builds the key of a result. It starts with the version of the result text, so
+     * results rendered before a change of format are never served again; they just
+     * stay in the log unused.
+     * @param operationType the operation type
+     * @param precision decimal places, or 0 for the operation's default
+     * @return operation key
+     * @see CanonicalRequest#RESULT_VERSION
+     */
+    static String key(String operationType, int precision) {
+        String key = "r" + CanonicalRequest.RESULT_VERSION + "/" + operationType;
+        return precision > 0 ? key + ":" + precision : key;
+    }
+    
+    /**
+     * Looks up the text of a stored result
+     * @param key operation key
+     * @param number the input number
+     * @return read-only view of the text in the mapped log, or null if it is not stored
+     */
+    ByteBuffer get(String key, int number) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        long hash = hash(keyBytes, number);
+        int mask = slots - 1;
+        int slot = (int) hash & mask;
+        for (int probe = 0; probe < slots; probe++, slot = (slot + 1) & mask) {
+            int base = INDEX_HEADER + slot * SLOT_SIZE;
+            if ((int) STATE.getAcquire(index, base) != FULL) {
+                return null;
+            }
+            if (index.getLong(base + 8) == hash && index.getInt(base + 4) == number) {
+                ByteBuffer text = read(index.getLong(base + 16), index.getInt(base + 24), keyBytes, number);
+                if (text != null) {
+                    return text;
+                }
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Appends a result to the log and publishes it in the index. If another thread or
+     * JVM has stored the same result meanwhile, that one is returned instead.
+     * @param key operation key
+     * @param number the input number
+     * @param text UTF-8 result text
+     * @param length number of bytes of text
+     * @return read-only view of the stored text, or null if the store is full or busy
+     * @throws IOException if writing the log fails
+     */
+    ByteBuffer put(String key, int number, byte[] text, int length) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int recordLength = RECORD_HEADER + keyBytes.length + length;
+        if (keyBytes.length > Short.MAX_VALUE || recordLength > SEGMENT_SIZE) {
+            return null;
+        }
+        long hash = hash(keyBytes, number);
+        long offset;
+        synchronized (this) {
+            // Only one file lock per file can be held in a JVM; another application's store holds it now
+            FileLock lock;
+            try {
+                lock = indexChannel.lock(0, INDEX_HEADER, false);
+            } catch (OverlappingFileLockException e) {
+                return null;
+            }
+            try {
+                int mask = slots - 1;
+                int slot = (int) hash & mask;
+                int base = INDEX_HEADER + slot * SLOT_SIZE;
+                while ((int) STATE.getAcquire(index, base) == FULL) {
+                    if (index.getLong(base + 8) == hash && index.getInt(base + 4) == number) {
+                        ByteBuffer existing = read(index.getLong(base + 16), index.getInt(base + 24), keyBytes, number);
+                        if (existing != null) {
+                            return existing;
+                        }
+                    }
+                    slot = (slot + 1) & mask;
+                    base = INDEX_HEADER + slot * SLOT_SIZE;
+                }
+                int count = index.getInt(COUNT_AT);
+                if (count >= slots - slots / 4) {
+                    return null;
+                }
+                offset = index.getLong(DATA_END_AT);
+                if ((offset & SEGMENT_MASK) + recordLength > SEGMENT_SIZE) {
+                    offset = (offset | SEGMENT_MASK) + 1;
+                }
+                if (offset + recordLength > maxBytes) {
+                    return null;
+                }
+                
+                // Grow the file to the end of the segment so readers map each segment once
+                long segmentEnd = (offset | SEGMENT_MASK) + 1;
+                if (dataChannel.size() < Math.min(segmentEnd, maxBytes)) {
+                    writeFully(dataChannel, ByteBuffer.allocate(1), Math.min(segmentEnd, maxBytes) - 1);
+                }
+                ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + keyBytes.length);
+                record.putInt(RECORD_MAGIC).putInt(number).putShort((short) keyBytes.length).putInt(length)
+                        .put(keyBytes).flip();
+                writeFully(dataChannel, record, offset);
+                writeFully(dataChannel, ByteBuffer.wrap(text, 0, length), offset + RECORD_HEADER + keyBytes.length);
+                
+                index.putLong(DATA_END_AT, offset + recordLength);
+                index.putInt(COUNT_AT, count + 1);
+                index.putInt(base + 4, number);
+                index.putLong(base + 8, hash);
+                index.putLong(base + 16, offset);
+                index.putInt(base + 24, length);
+                STATE.setRelease(index, base, FULL);
+            } finally {
+                lock.release();
+            }
+        }
+        stored.incrementAndGet();
+        return read(offset, length, keyBytes, number);
+    }
+    
+    /**
+     * Reads a record from the log, checking that it is the one the index points to
+     * @return view of the record's text, or null if it does not match
+     */
+    private ByteBuffer read(long offset, int length, byte[] keyBytes, int number) {
+        int recordLength = RECORD_HEADER + keyBytes.length + length;
+        if (offset < DATA_HEADER || length < 0 || (offset & SEGMENT_MASK) + recordLength > SEGMENT_SIZE) {
+            return null;
+        }
+        ByteBuffer segment;
+        try {
+            segment = segment(offset, recordLength);
+        } catch (IOException e) {
+            return null;
+        }
+        if (segment == null) {
+            return null;
+        }
+        int at = (int) (offset & SEGMENT_MASK);
+        if (segment.getInt(at) != RECORD_MAGIC || segment.getInt(at + 4) != number
+                || segment.getShort(at + 8) != keyBytes.length || segment.getInt(at + 10) != length) {
+            return null;
+        }
+        int textAt = at + RECORD_HEADER;
+        for (byte b : keyBytes) {
+            if (segment.get(textAt++) != b) {
+                return null;
+            }
+        }
+        ByteBuffer text = segment.duplicate();
+        text.limit(textAt + length).position(textAt);
+        return text.slice().asReadOnlyBuffer();
+    }
+    
+    /**
+     * Gets the mapping of the log segment holding a record, mapping it again if the
+     * record lies beyond the part mapped so far
+     */
+    private ByteBuffer segment(long offset, int recordLength) throws IOException {
+        int number = (int) (offset >>> SEGMENT_BITS);
+        if (number >= segments.length()) {
+            return null;
+        }
+        long end = (offset & SEGMENT_MASK) + recordLength;
+        MappedByteBuffer mapped = segments.get(number);
+        if (mapped == null || mapped.capacity() < end) {
+            long start = (long) number << SEGMENT_BITS;
+            long size = Math.min(SEGMENT_SIZE, dataChannel.size() - start);
+            if (size < end) {
+                return null;
+            }
+            mapped = dataChannel.map(FileChannel.MapMode.READ_ONLY, start, size);
+            segments.set(number, mapped);
+        }
+        return mapped;
+    }
+    
+    /**
+     * Hashes an operation key and number with FNV-1a and a final mix
+     */
+    static long hash(byte[] keyBytes, int number) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : keyBytes) {
+            hash = (hash ^ (b & 0xFF)) * 0x100000001b3L;
+        }
+        hash = (hash ^ number) * 0x9e3779b97f4a7c15L;
+        return hash ^ (hash >>> 29);
+    }
+    
+    /**
+     * Gets the smallest estimated cost of a result worth storing. Cheaper results
+     * are quicker to calculate than to look up.
+     * @return estimated cost
+     */
+    public long getMinCost() {
+        return minCost;
+    }
+    
+    public Path getDirectory() {
+        return directory;
+    }
+    
+    public int getSlots() {
+        return slots;
+    }
+    
+    /**
+     * Gets the number of results stored by all JVMs sharing the store
+     * @return entry count
+     */
+    public int getEntries() {
+        return index.getInt(COUNT_AT);
+    }
+    
+    /**
+     * Gets the size of the data log written by all JVMs sharing the store
+     * @return bytes
+     */
+    public long getDataBytes() {
+        return index.getLong(DATA_END_AT);
+    }
+    
+    /**
+     * Gets the number of lookups answered from the store by this JVM
+     * @return hit count
+     */
+    public long getHits() {
+        return hits.get();
+    }
+    
+    /**
+     * Gets the number of results this JVM had to calculate
+     * @return miss count
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+    
+    /**
+     * Gets the number of results this JVM has added to the store
+     * @return store count
+     */
+    public long getStored() {
+        return stored.get();
+    }
+    
+    /**
+     * Closes the files. Results already looked up stay readable until they are written.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            indexChannel.close();
+        } finally {
+            dataChannel.close();
+        }
+    }
+    
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+    }
+    
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long at = position;
+        while (buffer.hasRemaining()) {
+            at += channel.write(buffer, at);
+        }
+    }
+    
+    /**
+     * Result whose UTF-8 text is read from a buffer, normally a view of the mapped log.
+     * The text is decoded in small chunks on its way out.
+     */
+    private static final class StoredResult implements OperationResult {
+        private final ByteBuffer text;
+        
+        StoredResult(ByteBuffer text) {
+            this.text = text;
+        }
+        
+        @Override
+        public void writeTo(Appendable out) throws IOException {
+            CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            ByteBuffer source = text.duplicate();
+            CharBuffer chunk = CharBuffer.allocate(CHUNK_SIZE);
+            boolean done = false;
+            while (!done) {
+                CoderResult result = decoder.decode(source, chunk, true);
+                if (result.isUnderflow()) {
+                    decoder.flush(chunk);
+                    done = true;
+                }
+                chunk.flip();
+                if (out instanceof Writer) {
+                    ((Writer) out).write(chunk.array(), 0, chunk.limit());
+                } else {
+                    out.append(chunk);
+                }
+                chunk.clear();
+            }
+        }
+    }
+    
+    /**
+     * Growable byte array holding a result while it is rendered, up to the size of a record
+     */
+    private static final class RecordBuffer extends OutputStream {
+        private byte[] bytes = new byte[CHUNK_SIZE];
+        private int count;
+        
+        @Override
+        public void write(int b) throws IOException {
+            ensure(1);
+            bytes[count++] = (byte) b;
+        }
+        
+        @Override
+        public void write(byte[] source, int offset, int length) throws IOException {
+            ensure(length);
+            System.arraycopy(source, offset, bytes, count, length);
+            count += length;
+        }
+        
+        private void ensure(int length) throws IOException {
+            if (length > SEGMENT_SIZE - RECORD_HEADER - count) {
+                throw new IOException("Result too large to store");
+            }
+            if (count + length > bytes.length) {
+                bytes = Arrays.copyOf(bytes, (int) Math.min(Math.max(bytes.length * 2L, count + length), SEGMENT_SIZE));
+            }
+        }
+    }
+}
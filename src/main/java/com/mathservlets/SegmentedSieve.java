@@ -0,0 +1,216 @@
+package com.mathservlets;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.stream.LongStream;
+
+/**
+ * Parallel segmented sieve of Eratosthenes for prime queries over ranges.
+ * The range is cut into cache-sized segments of odd numbers that are sieved
+ * independently on the fork-join pool, so memory use does not depend on the
+ * width of the range. Primes can be counted or streamed out in order.
+ */
+public final class SegmentedSieve {
+    
+    /** Odd numbers per segment: 2^18 bits, a 32 KB bitset that stays in cache */
+    static final int SEGMENT_BITS = 1 << 18;
+    
+    private static final ThreadLocal<long[]> SEGMENT = ThreadLocal.withInitial(() -> new long[SEGMENT_BITS >>> 6]);
+    
+    private SegmentedSieve() {
+    }
+    
+    /**
+     * Counts the primes in the inclusive range [from, to]
+     * @param from lower bound
+     * @param to upper bound
+     * @return number of primes in the range
+     */
+    public static long countPrimes(long from, long to) {
+        return countPrimes(from, to, CancellationToken.NONE);
+    }
+    
+    /**
+     * Counts the primes in the inclusive range [from, to], checking the token before each segment
+     * @param from lower bound
+     * @param to upper bound
+     * @param token cancellation token of the request
+     * @return number of primes in the range
+     * @throws java.util.concurrent.CancellationException if the token trips
+     */
+    public static long countPrimes(long from, long to, CancellationToken token) {
+        if (to < 2 || from > to) {
+            return 0;
+        }
+        long count = from <= 2 ? 1 : 0;
+        long base = firstOdd(from);
+        if (base > to) {
+            return count;
+        }
+        int[] basePrimes = PrimeSieve.oddPrimesUpTo(sqrt(to));
+        return count + LongStream.range(0, segmentCount(base, to))
+                .parallel()
+                .map(segment -> {
+                    token.checkpoint();
+                    return countSegment(base, segment, to, basePrimes);
+                })
+                .sum();
+    }
+    
+    /**
+     * Writes the primes in the inclusive range [from, to] as a comma-separated list.
+     * Segments are sieved in parallel batches and written in ascending order.
+     * @param from lower bound
+     * @param to upper bound
+     * @param out destination for the list
+     * @throws IOException if the output fails
+     */
+    public static void writePrimes(long from, long to, Appendable out) throws IOException {
+        writePrimes(from, to, out, CancellationToken.NONE);
+    }
+    
+    /**
+     * Writes the primes in the inclusive range [from, to], checking the token before each segment
+     * @param from lower bound
+     * @param to upper bound
+     * @param out destination for the list
+     * @param token cancellation token of the request
+     * @throws IOException if the output fails
+     * @throws java.util.concurrent.CancellationException if the token trips
+     */
+    public static void writePrimes(long from, long to, Appendable out, CancellationToken token)
+            throws IOException {
+        if (to < 2 || from > to) {
+            return;
+        }
+        boolean first = true;
+        if (from <= 2) {
+            out.append('2');
+            first = false;
+        }
+        long base = firstOdd(from);
+        if (base > to) {
+            return;
+        }
+        
+        int[] basePrimes = PrimeSieve.oddPrimesUpTo(sqrt(to));
+        long segments = segmentCount(base, to);
+        int batch = Math.max(1, Runtime.getRuntime().availableProcessors());
+        for (long start = 0; start < segments; start += batch) {
+            long[][] primes = LongStream.range(start, Math.min(segments, start + batch))
+                    .parallel()
+                    .mapToObj(segment -> {
+                        token.checkpoint();
+                        return listSegment(base, segment, to, basePrimes);
+                    })
+                    .toArray(long[][]::new);
+            for (long[] segmentPrimes : primes) {
+                for (long prime : segmentPrimes) {
+                    if (!first) {
+                        out.append(", ");
+                    }
+                    out.append(Long.toString(prime));
+                    first = false;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Gets the first odd number at or above from, skipping 1
+     */
+    private static long firstOdd(long from) {
+        long start = Math.max(from, 3);
+        return (start & 1) == 0 ? start + 1 : start;
+    }
+    
+    private static long segmentCount(long base, long to) {
+        return (to - base) / 2 / SEGMENT_BITS + 1;
+    }
+    
+    private static int sqrt(long n) {
+        long root = (long) Math.sqrt((double) n);
+        while (root * root > n) {
+            root--;
+        }
+        while ((root + 1) * (root + 1) <= n) {
+            root++;
+        }
+        return (int) root;
+    }
+    
+    private static long segmentStart(long base, long segment) {
+        return base + segment * 2L * SEGMENT_BITS;
+    }
+    
+    /**
+     * Marks the odd composites of one segment in the thread's bitset
+     * @return number of odd numbers in the segment
+     */
+    private static int sieveSegment(long low, long to, int[] basePrimes, long[] bits) {
+        long high = Math.min(to, low + 2L * (SEGMENT_BITS - 1));
+        int length = (int) ((high - low) / 2 + 1);
+        Arrays.fill(bits, 0, (length + 63) >>> 6, 0L);
+        
+        for (int p : basePrimes) {
+            long square = (long) p * p;
+            if (square > high) {
+                break;
+            }
+            long start = Math.max(square, (low + p - 1) / p * p);
+            if ((start & 1) == 0) {
+                start += p;
+            }
+            // Odd multiples are 2p apart, which is p bits apart in the odd-only bitset
+            for (long index = (start - low) >>> 1; index < length; index += p) {
+                bits[(int) (index >>> 6)] |= 1L << index;
+            }
+        }
+        return length;
+    }
+    
+    private static long countSegment(long base, long segment, long to, int[] basePrimes) {
+        long[] bits = SEGMENT.get();
+        int length = sieveSegment(segmentStart(base, segment), to, basePrimes, bits);
+        int composites = 0;
+        for (int word = 0; word < (length + 63) >>> 6; word++) {
+            composites += Long.bitCount(bits[word]);
+        }
+        return length - composites;
+    }
+    
+    private static long[] listSegment(long base, long segment, long to, int[] basePrimes) {
+        long[] bits = SEGMENT.get();
+        long low = segmentStart(base, segment);
+        int length = sieveSegment(low, to, basePrimes, bits);
+        
+        int words = (length + 63) >>> 6;
+        int count = 0;
+        for (int word = 0; word < words; word++) {
+            count += Long.bitCount(primeMask(bits, word, length));
+        }
+        long[] primes = new long[count];
+        int index = 0;
+        for (int word = 0; word < words; word++) {
+            long mask = primeMask(bits, word, length);
+            while (mask != 0) {
+                int bit = Long.numberOfTrailingZeros(mask);
+                primes[index++] = low + 2L * ((word << 6) + bit);
+                mask &= mask - 1;
+            }
+        }
+        return primes;
+    }
+    
+    /**
+     * Gets the bits of a word that stand for primes, ignoring bits past the segment end
+     */
+    private static long primeMask(long[] bits, int word, int length) {
+        long mask = ~bits[word];
+        int remaining = length - (word << 6);
+        if (remaining < 64) {
+            mask &= (1L << remaining) - 1;
+        }
+        return mask;
+    }
+}
@@ -8,16 +8,21 @@ import java.util.Set;
  */
 public class ValidationResult {
     
+    /** Most decimal places a request may ask for */
+    public static final int MAX_PRECISION = 100000;
+    
     private final boolean valid;
     private final String errorMessage;
     private final int number;
     private final Set<String> operations;
+    private final int precision;
     
-    private ValidationResult(boolean valid, String errorMessage, int number, Set<String> operations) {
+    private ValidationResult(boolean valid, String errorMessage, int number, Set<String> operations, int precision) {
         this.valid = valid;
         this.errorMessage = errorMessage;
         this.number = number;
         this.operations = operations;
+        this.precision = precision;
     }
     
     /**
@@ -27,7 +32,18 @@ public class ValidationResult {
      * @return ValidationResult instance
      */
     public static ValidationResult success(int number, Set<String> operations) {
-        return new ValidationResult(true, null, number, operations);
+        return success(number, operations, 0);
+    }
+    
+    /**
+     * Creates a successful validation result with a precision
+     * @param number the validated number
+     * @param operations the validated operations
+     * @param precision decimal places, or 0 for each operation's default
+     * @return ValidationResult instance
+     */
+    public static ValidationResult success(int number, Set<String> operations, int precision) {
+        return new ValidationResult(true, null, number, operations, precision);
     }
     
     /**
@@ -36,7 +52,64 @@ public class ValidationResult {
      * @return ValidationResult instance
      */
     public static ValidationResult error(String errorMessage) {
-        return new ValidationResult(false, errorMessage, 0, null);
+        return new ValidationResult(false, errorMessage, 0, null, 0);
+    }
+    
+    /**
+     * Validates the request parameters shared by the HTML and API endpoints
+     * @param numberParam the number parameter
+     * @param operations the selected operation types
+     * @return ValidationResult instance
+     */
+    public static ValidationResult validate(String numberParam, String[] operations) {
+        return validate(numberParam, operations, null);
+    }
+    
+    /**
+     * Validates the request parameters, including the optional precision
+     * @param numberParam the number parameter
+     * @param operations the selected operation types
+     * @param precisionParam the precision parameter, or null or empty for the default
+     * @return ValidationResult instance
+     */
+    public static ValidationResult validate(String numberParam, String[] operations, String precisionParam) {
+        // Validate number
+        if (numberParam == null || numberParam.trim().isEmpty()) {
+            return error("Number is required");
+        }
+        
+        int number;
+        try {
+            number = Integer.parseInt(numberParam.trim());
+            if (number <= 0) {
+                return error("Number must be positive");
+            }
+        } catch (NumberFormatException e) {
+            return error("Invalid number format");
+        }
+        
+        // Validate operations
+        if (operations == null || operations.length == 0) {
+            return error("At least one operation must be selected");
+        }
+        
+        Set<String> operationSet = java.util.Arrays.stream(operations)
+                .collect(java.util.stream.Collectors.toSet());
+        
+        // Validate precision
+        int precision = 0;
+        if (precisionParam != null && !precisionParam.trim().isEmpty()) {
+            try {
+                precision = Integer.parseInt(precisionParam.trim());
+            } catch (NumberFormatException e) {
+                return error("Invalid precision format");
+            }
+            if (precision < 1 || precision > MAX_PRECISION) {
+                return error("Precision must be between 1 and " + MAX_PRECISION + " decimal places");
+            }
+        }
+        
+        return success(number, operationSet, precision);
     }
     
     public boolean isValid() {
@@ -54,4 +127,12 @@ public class ValidationResult {
     public Set<String> getOperations() {
         return operations;
     }
+    
+    /**
+     * Gets the requested decimal places
+     * @return precision, or 0 for each operation's default
+     */
+    public int getPrecision() {
+        return precision;
+    }
 }
@@ -0,0 +1,194 @@
+package com.mathservlets;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Startup warm-up of the calculation engine.
+ * Fills the factorial checkpoint cache, then runs every operation of the factory over a
+ * spread of inputs and renders each result the way the HTML and JSON endpoints do, so
+ * the JIT has compiled the hot paths before real traffic arrives. The node counts as
+ * ready once the rounds are done or the time limit has passed; a warm-up that fails
+ * still ends in ready, since a cold node is better than one that never takes traffic.
+ */
+public class WarmUp implements Runnable {
+    
+    /** Name of the servlet context attribute holding the warm-up of the application */
+    public static final String CONTEXT_ATTRIBUTE = WarmUp.class.getName();
+    
+    /** Default number of passes over the sample inputs, enough for the JIT to compile the hot loops */
+    public static final int DEFAULT_ROUNDS = 100;
+    
+    public static final long DEFAULT_MAX_MILLIS = 30000L;
+    
+    /** Default largest factorial precomputed into the checkpoint cache */
+    public static final int DEFAULT_FACTORIAL_LIMIT = 20000;
+    
+    /** Samples estimated above this cost are skipped, so one round takes milliseconds */
+    static final long MAX_SAMPLE_COST = 5_000L;
+    
+    /** Inputs covering the small-number tables, the sieve, Miller-Rabin and multi-digit paths */
+    private static final int[] SAMPLES = {0, 1, 2, 3, 7, 10, 27, 97, 121, 150, 1000, 1729, 4096, 12321,
+        65537, 999983, 1000000, 16777213, 123454321, Integer.MAX_VALUE};
+    
+    private final OperationFactory operationFactory;
+    private final int rounds;
+    private final long maxMillis;
+    private final int factorialLimit;
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private volatile boolean ready;
+    private volatile int completedRounds;
+    private volatile long durationMillis;
+    private volatile String failure;
+    
+    /**
+     * Creates a warm-up
+     * @param operationFactory factory whose operations are warmed up
+     * @param rounds number of passes over the sample inputs
+     * @param maxMillis time after which the warm-up stops and the node counts as ready
+     * @param factorialLimit largest factorial precomputed into the checkpoint cache (0 = none)
+     */
+    public WarmUp(OperationFactory operationFactory, int rounds, long maxMillis, int factorialLimit) {
+        if (rounds < 0 || maxMillis < 0 || factorialLimit < 0) {
+            throw new IllegalArgumentException("Warm-up rounds, time and factorial limit must not be negative");
+        }
+        this.operationFactory = operationFactory;
+        this.rounds = rounds;
+        this.maxMillis = maxMillis;
+        this.factorialLimit = factorialLimit;
+    }
+    
+    @Override
+    public void run() {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(maxMillis);
+        CancellationToken token = CancellationToken.withTimeout(maxMillis);
+        boolean interrupted = false;
+        try {
+            precomputeFactorials(token);
+            Writer sink = new DiscardingWriter();
+            HtmlResultWriter html = new HtmlResultWriter(sink);
+            JsonWriter json = new JsonWriter(sink);
+            for (int round = 0; round < rounds && System.nanoTime() - deadline < 0; round++) {
+                if (Thread.currentThread().isInterrupted()) {
+                    interrupted = true;
+                    break;
+                }
+                runRound(round, html, json);
+                completedRounds = round + 1;
+            }
+        } catch (java.util.concurrent.CancellationException e) {
+            // The time limit passed while precomputing; carry on cold
+        } catch (IOException | RuntimeException e) {
+            failure = e.toString();
+        } finally {
+            durationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            // A warm-up stopped for shutdown never reports ready
+            ready = !interrupted;
+            finished.countDown();
+        }
+    }
+    
+    /**
+     * Builds the factorial checkpoints up to the limit, each extending the previous one
+     */
+    private void precomputeFactorials(CancellationToken token) {
+        MathOperation operation = operationFactory.getAvailableOperations().contains("factorial")
+                ? operationFactory.getOperation("factorial") : null;
+        if (!(operation instanceof FactorialOperation) || factorialLimit == 0) {
+            return;
+        }
+        int interval = ((FactorialOperation) operation).getCache().getInterval();
+        for (int n = interval; n <= factorialLimit; n += interval) {
+            operation.evaluate(n, token);
+        }
+    }
+    
+    /**
+     * Evaluates and renders every operation for each sample input and one input that varies by round
+     */
+    private void runRound(int round, HtmlResultWriter html, JsonWriter json) throws IOException {
+        int varying = (int) ((round * 7919L) % 100000);
+        for (String operationType : operationFactory.getAvailableOperations()) {
+            MathOperation operation = operationFactory.getOperation(operationType);
+            warm(operation, varying, html, json);
+            for (int number : SAMPLES) {
+                warm(operation, number, html, json);
+            }
+        }
+    }
+    
+    private static void warm(MathOperation operation, int number, HtmlResultWriter html, JsonWriter json)
+            throws IOException {
+        if (operation.estimateCost(number) > MAX_SAMPLE_COST) {
+            return;
+        }
+        OperationResult result = operation.evaluate(number);
+        result.writeTo(html);
+        html.finish();
+        json.value(result);
+    }
+    
+    /**
+     * Waits for the warm-up to finish
+     * @param timeout longest time to wait
+     * @param unit unit of the timeout
+     * @return true if it finished in time
+     * @throws InterruptedException if the waiting thread is interrupted
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return finished.await(timeout, unit);
+    }
+    
+    /**
+     * Checks whether the node should receive traffic
+     * @return true once the warm-up has finished
+     */
+    public boolean isReady() {
+        return ready;
+    }
+    
+    public int getCompletedRounds() {
+        return completedRounds;
+    }
+    
+    public int getRounds() {
+        return rounds;
+    }
+    
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+    
+    /**
+     * Gets why the warm-up failed
+     * @return the error, or null if it did not fail
+     */
+    public String getFailure() {
+        return failure;
+    }
+    
+    /**
+     * Rendered output is only produced for the JIT's benefit and thrown away
+     */
+    private static class DiscardingWriter extends Writer {
+        
+        @Override
+        public void write(char[] buffer, int offset, int length) {
+        }
+        
+        @Override
+        public void write(String text, int offset, int length) {
+        }
+        
+        @Override
+        public void flush() {
+        }
+        
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.mathservlets;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * Builds the shared operation factory when the application starts and warms it up on
+ * a background thread, so the container can start serving /ready (and the load
+ * balancer can keep traffic away) while the warm-up runs.
+ * Configured through the context parameters warmUpRounds, warmUpMillis and
+ * warmUpFactorialLimit. When the application stops it also closes the factory's result store.
+ */
+public class WarmUpListener implements ServletContextListener {
+    
+    private static final long STOP_WAIT_MILLIS = 5000L;
+    
+    private Thread thread;
+    
+    @Override
+    public void contextInitialized(ServletContextEvent event) {
+        ServletContext context = event.getServletContext();
+        WarmUp warmUp = new WarmUp(OperationFactory.forContext(context),
+                InitParameters.intValue(context::getInitParameter, "warmUpRounds", WarmUp.DEFAULT_ROUNDS),
+                InitParameters.intValue(context::getInitParameter, "warmUpMillis", (int) WarmUp.DEFAULT_MAX_MILLIS),
+                InitParameters.intValue(context::getInitParameter, "warmUpFactorialLimit",
+                        WarmUp.DEFAULT_FACTORIAL_LIMIT));
+        context.setAttribute(WarmUp.CONTEXT_ATTRIBUTE, warmUp);
+        
+        thread = new Thread(() -> {
+            warmUp.run();
+            if (warmUp.getFailure() != null) {
+                context.log("Warm-up failed, serving cold: " + warmUp.getFailure());
+            } else if (warmUp.isReady()) {
+                context.log("Warm-up finished " + warmUp.getCompletedRounds() + " of " + warmUp.getRounds()
+                        + " rounds in " + warmUp.getDurationMillis() + " ms");
+            }
+        }, "warm-up");
+        thread.setDaemon(true);
+        // Leave the request threads ahead of the warm-up if traffic arrives early
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        thread.start();
+    }
+    
+    @Override
+    public void contextDestroyed(ServletContextEvent event) {
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                WarmUp warmUp = (WarmUp) event.getServletContext().getAttribute(WarmUp.CONTEXT_ATTRIBUTE);
+                if (warmUp != null) {
+                    warmUp.await(STOP_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        OperationFactory factory = (OperationFactory) event.getServletContext()
+                .getAttribute(OperationFactory.CONTEXT_ATTRIBUTE);
+        if (factory != null && factory.getResultStore() != null) {
+            try {
+                factory.getResultStore().close();
+            } catch (IOException e) {
+                event.getServletContext().log("Closing the result store failed: " + e.getMessage());
+            }
+        }
+    }
+}
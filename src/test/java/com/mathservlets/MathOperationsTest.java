@@ -22,6 +22,82 @@ public class MathOperationsTest {
         assertTrue(operation.execute(-1).contains("not defined"));
     }
     
+    @Test
+    public void testFactorialEngineMatchesNaiveProduct() {
+        FactorialEngine engine = new FactorialEngine();
+        int[] inputs = {0, 1, 2, 20, 21, 100, FactorialEngine.PRIME_FACTORIZATION_THRESHOLD - 1,
+                FactorialEngine.PRIME_FACTORIZATION_THRESHOLD, 5000, 12345};
+        
+        for (int n : inputs) {
+            java.math.BigInteger expected = java.math.BigInteger.ONE;
+            for (int i = 2; i <= n; i++) {
+                expected = expected.multiply(java.math.BigInteger.valueOf(i));
+            }
+            assertEquals("factorial of " + n, expected, engine.factorial(n));
+        }
+        
+        assertEquals(java.math.BigInteger.valueOf(30240), engine.product(6, 10));
+        assertEquals(java.math.BigInteger.ONE, engine.product(10, 9));
+    }
+    
+    @Test
+    public void testFactorialCacheCheckpoints() {
+        FactorialCache cache = new FactorialCache(100, FactorialCache.DEFAULT_MAX_BITS);
+        FactorialEngine cached = new FactorialEngine(cache);
+        FactorialEngine plain = new FactorialEngine();
+        
+        // First request computes and stores checkpoint 3000
+        assertEquals(plain.factorial(3050), cached.factorial(3050));
+        assertEquals(1, cache.size());
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        
+        // Nearby request starts from the stored checkpoint
+        assertEquals(plain.factorial(3099), cached.factorial(3099));
+        assertEquals(1, cache.getHits());
+        
+        // Next checkpoint is extended from the previous one
+        assertEquals(plain.factorial(3100), cached.factorial(3100));
+        assertEquals(2, cache.size());
+        assertEquals(2, cache.getHits());
+        
+        // A checkpoint too far below to be worth extending counts as a miss
+        assertEquals(plain.factorial(9000), cached.factorial(9000));
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        
+        // A tiny budget keeps the cache bounded
+        FactorialCache small = new FactorialCache(100, plain.factorial(3000).bitLength() + 1);
+        FactorialEngine bounded = new FactorialEngine(small);
+        bounded.factorial(3000);
+        bounded.factorial(2000);
+        assertEquals(1, small.size());
+        assertEquals(1, small.getEvictions());
+        assertTrue(small.getTotalBits() <= plain.factorial(3000).bitLength() + 1);
+    }
+    
+    @Test
+    public void testDecimalRendererMatchesToString() throws Exception {
+        java.util.Random random = new java.util.Random(42);
+        java.util.List<java.math.BigInteger> values = new java.util.ArrayList<>();
+        values.add(java.math.BigInteger.ZERO);
+        values.add(java.math.BigInteger.valueOf(-12345));
+        values.add(java.math.BigInteger.TEN.pow(5000));
+        values.add(java.math.BigInteger.TEN.pow(20000).subtract(java.math.BigInteger.ONE));
+        values.add(java.math.BigInteger.TEN.pow(30000).add(java.math.BigInteger.valueOf(7)));
+        values.add(new java.math.BigInteger(200000, random).negate());
+        values.add(new FactorialEngine().factorial(20000));
+        
+        for (java.math.BigInteger value : values) {
+            String expected = value.toString();
+            assertEquals(expected, DecimalRenderer.toDecimalString(value));
+            
+            StringBuilder streamed = new StringBuilder();
+            DecimalRenderer.writeTo(value, streamed);
+            assertEquals(expected, streamed.toString());
+        }
+    }
+    
     @Test
     public void testPalindromeOperation() {
         PalindromeOperation operation = new PalindromeOperation();
@@ -39,6 +115,66 @@ public class MathOperationsTest {
         assertTrue(operation.execute(-121).contains("not considered palindromes"));
     }
     
+    @Test
+    public void testPalindromeArithmetic() {
+        assertTrue(Palindromes.isPalindrome(0));
+        assertTrue(Palindromes.isPalindrome(1234554321L));
+        assertFalse(Palindromes.isPalindrome(10));
+        assertFalse(Palindromes.isPalindrome(-121));
+        assertFalse(Palindromes.isPalindrome(Integer.MAX_VALUE));
+        assertTrue(Palindromes.isPalindrome(9223372036302733229L));
+        assertTrue(Palindromes.isPalindrome(0b1011101, 2));
+        assertTrue(Palindromes.isPalindrome(0xABBA, 16));
+        
+        // Counting, ranking and the next palindrome agree with walking the numbers one by one
+        for (int base : new int[] {2, 3, 10, 16}) {
+            long count = 0;
+            long previous = 0;
+            for (long n = 1; n <= 5000; n++) {
+                String digits = Long.toString(n, base);
+                boolean palindrome = digits.equals(new StringBuilder(digits).reverse().toString());
+                assertEquals(palindrome, Palindromes.isPalindrome(n, base));
+                if (palindrome) {
+                    count++;
+                    assertEquals(n, Palindromes.nth(count, base));
+                    for (long m = previous + 1; m <= n; m++) {
+                        assertEquals(n, Palindromes.next(m, base));
+                    }
+                    previous = n;
+                }
+                assertEquals(count, Palindromes.countUpTo(n, base));
+            }
+        }
+        assertEquals(Palindromes.countUpTo(98765, 10) - Palindromes.countUpTo(1233, 10), Palindromes.count(1234, 98765, 10));
+        assertEquals(0, Palindromes.count(10, 5, 10));
+        
+        // The ends of the long range
+        assertEquals(1999999998L, Palindromes.countUpTo(999999999999999999L, 10));
+        long largest = 9223372036302733229L;
+        assertEquals(largest, Palindromes.next(9223372036000000000L, 10));
+        assertEquals(Palindromes.countUpTo(largest, 10), Palindromes.countUpTo(Long.MAX_VALUE, 10));
+        assertEquals(largest, Palindromes.nth(Palindromes.countUpTo(Long.MAX_VALUE, 10), 10));
+        try {
+            Palindromes.next(largest + 1, 10);
+            fail("The next palindrome does not fit in a long");
+        } catch (ArithmeticException expected) {
+            // expected
+        }
+        assertEquals(1147483648463847411L, Palindromes.nth(Integer.MAX_VALUE, 10));
+    }
+    
+    @Test
+    public void testPalindromeRangeOperations() {
+        OperationFactory factory = new OperationFactory();
+        assertEquals("There are 108 palindromes from 1 to 1000.", factory.getOperation("palindromeCount").execute(1000));
+        assertEquals("There is 1 palindrome from 1 to 1.", factory.getOperation("palindromeCount").execute(1));
+        assertEquals("Palindrome number 10 is 11.", factory.getOperation("nthPalindrome").execute(10));
+        assertEquals("The next palindrome after 1000 is 1001.", factory.getOperation("nextPalindrome").execute(1000));
+        assertEquals("The number 999 is itself a palindrome.", factory.getOperation("nextPalindrome").execute(999));
+        assertEquals("Palindrome number 2147483647 is 1147483648463847411.",
+                factory.getOperation("nthPalindrome").execute(Integer.MAX_VALUE));
+    }
+    
     @Test
     public void testFibonacciOperation() {
         FibonacciOperation operation = new FibonacciOperation();
@@ -48,6 +184,11 @@ public class MathOperationsTest {
         assertTrue(operation.execute(1).contains("[0]"));
         assertTrue(operation.execute(2).contains("[0, 1]"));
         
+        // Terms past F(92) switch to BigInteger instead of overflowing
+        assertTrue(operation.execute(93).endsWith(", 4660046610375530309, 7540113804746346429]"));
+        assertTrue(operation.execute(94).endsWith(", 7540113804746346429, 12200160415121876738]"));
+        assertTrue(operation.execute(200).endsWith(", 173402521172797813159685037284371942044301]"));
+        
         // Test edge case
         assertTrue(operation.execute(0).contains("0 terms"));
         assertTrue(operation.execute(-1).contains("not defined"));
@@ -71,6 +212,66 @@ public class MathOperationsTest {
         assertTrue(operation.execute(0).contains("not prime"));
     }
     
+    @Test
+    public void testPrimeSieveAndMillerRabin() {
+        PrimeSieve heap = new PrimeSieve(100000, false);
+        PrimeSieve direct = new PrimeSieve(100000, true);
+        assertTrue(direct.isOffHeap());
+        for (int n = 0; n <= 100000; n++) {
+            boolean expected = java.math.BigInteger.valueOf(n).isProbablePrime(50);
+            assertEquals("sieve " + n, expected, heap.isPrime(n));
+            assertEquals("off-heap sieve " + n, expected, direct.isPrime(n));
+            assertEquals("Miller-Rabin " + n, expected, MillerRabin.isPrime(n));
+        }
+        
+        // Numbers above the sieve, including strong pseudoprimes and values near the type limits
+        long[] samples = {2147483647L, 2147483646L, 3215031751L, 4759123141L, 1000000007L * 998244353L,
+                3825123056546413051L, 9223372036854775783L, 9223372036854775807L, 4611686014132420609L};
+        for (long n : samples) {
+            assertEquals("Miller-Rabin " + n, java.math.BigInteger.valueOf(n).isProbablePrime(50), MillerRabin.isPrime(n));
+        }
+        java.util.Random random = new java.util.Random(7);
+        for (int i = 0; i < 2000; i++) {
+            long n = random.nextLong() >>> 1;
+            assertEquals("Miller-Rabin " + n, java.math.BigInteger.valueOf(n).isProbablePrime(50), MillerRabin.isPrime(n));
+        }
+        
+        // Inputs beyond the sieve fall back to Miller-Rabin
+        PrimeOperation operation = new PrimeOperation(new PrimeSieve(1000, false));
+        assertTrue(operation.execute(2147483647).contains("is a prime number"));
+        assertTrue(operation.execute(2147483641).contains("is not a prime number"));
+    }
+    
+    @Test
+    public void testSegmentedSieveRanges() throws Exception {
+        PrimeSieve sieve = new PrimeSieve(3000000, false);
+        long[][] ranges = {{0, 1}, {0, 2}, {2, 3}, {1, 100}, {90, 97}, {1000, 3000000},
+                {SegmentedSieve.SEGMENT_BITS * 2L - 5, SegmentedSieve.SEGMENT_BITS * 2L + 5}};
+        for (long[] range : ranges) {
+            long expected = 0;
+            StringBuilder expectedList = new StringBuilder();
+            for (long n = range[0]; n <= range[1]; n++) {
+                if (sieve.isPrime((int) n)) {
+                    expected++;
+                    expectedList.append(expectedList.length() > 0 ? ", " : "").append(n);
+                }
+            }
+            assertEquals("count " + range[0] + ".." + range[1], expected, SegmentedSieve.countPrimes(range[0], range[1]));
+            
+            StringBuilder list = new StringBuilder();
+            SegmentedSieve.writePrimes(range[0], range[1], list);
+            assertEquals("list " + range[0] + ".." + range[1], expectedList.toString(), list.toString());
+        }
+        
+        // pi(10^9) = 50847534
+        assertEquals(50847534L, SegmentedSieve.countPrimes(1, 1000000000L));
+        
+        assertEquals("There are 4 prime numbers up to 10.", new PrimeRangeOperation(true).execute(10));
+        assertEquals("Prime numbers up to 10: [2, 3, 5, 7]", new PrimeRangeOperation(false).execute(10));
+        assertEquals("Prime numbers up to 30: [2, 3, 5, 7, 11, 13, 17, 19, 23, 29]",
+                render(new PrimeRangeOperation(false).evaluate(30)));
+    }
+    
     @Test
     public void testCubeRootOperation() {
         CubeRootOperation operation = new CubeRootOperation();
@@ -84,6 +285,45 @@ public class MathOperationsTest {
         
         // Test zero
         assertTrue(operation.execute(0).contains("0.000000"));
+        
+        assertEquals("Cube root of 2 = 1.259921", operation.execute(2));
+        assertEquals("Cube root of 1000 = 10.000000", operation.execute(1000));
+        assertEquals("Cube root of 2147483647 = 1290.159155", operation.execute(Integer.MAX_VALUE));
+    }
+    
+    @Test
+    public void testCubeRootPrecision() throws Exception {
+        CubeRootOperation operation = new CubeRootOperation();
+        assertEquals("Cube root of 2 = 1.25992104989487316476721060727822835057025146470151",
+                render(operation.evaluate(2, 50, CancellationToken.NONE)));
+        assertEquals("Cube root of -27 = -3.00000", render(operation.evaluate(-27, 5, CancellationToken.NONE)));
+        assertEquals("Cube root of 0 = 0.000", render(operation.evaluate(0, 3, CancellationToken.NONE)));
+        assertEquals(operation.execute(10), render(operation.evaluate(10, 0, CancellationToken.NONE)));
+        
+        // Rounding agrees with the exact integer cube root, checked as r^3 <= v < (r+1)^3
+        java.util.Random random = new java.util.Random(7);
+        for (int i = 0; i < 200; i++) {
+            java.math.BigInteger value = new java.math.BigInteger(1 + random.nextInt(2000), random);
+            java.math.BigInteger root = CubeRootOperation.integerCubeRoot(value, CancellationToken.NONE);
+            assertTrue(root.pow(3).compareTo(value) <= 0);
+            assertTrue(root.add(java.math.BigInteger.ONE).pow(3).compareTo(value) > 0);
+        }
+        String digits = CubeRootOperation.cubeRoot(3, 2000, CancellationToken.NONE).replace(".", "");
+        java.math.BigInteger truncated = CubeRootOperation.integerCubeRoot(
+                java.math.BigInteger.valueOf(3).multiply(java.math.BigInteger.TEN.pow(3 * 2000)), CancellationToken.NONE);
+        assertTrue(new java.math.BigInteger(digits).subtract(truncated).abs().compareTo(java.math.BigInteger.ONE) <= 0);
+        
+        // The precision takes part in validation, the canonical URL and the cost estimate
+        assertEquals(25, ValidationResult.validate("2", new String[] {"cubeRoot"}, "25").getPrecision());
+        assertEquals(0, ValidationResult.validate("2", new String[] {"cubeRoot"}, "").getPrecision());
+        assertFalse(ValidationResult.validate("2", new String[] {"cubeRoot"}, "0").isValid());
+        assertFalse(ValidationResult.validate("2", new String[] {"cubeRoot"}, "100001").isValid());
+        assertEquals("number=2&precision=25&operations=cubeRoot",
+                new CanonicalRequest(2, 25, java.util.Collections.singletonList("cubeRoot")).getQueryString());
+        assertTrue(operation.estimateCost(2, 100000) > operation.estimateCost(2, 1000));
+        OperationRunner runner = new OperationRunner(new OperationFactory());
+        assertEquals("Cube root of 8 = 2.0000000000", render(runner.run(8,
+                java.util.Collections.singleton("cubeRoot"), 10, CancellationToken.NONE).get("cubeRoot")));
     }
     
     @Test
@@ -129,4 +369,631 @@ public class MathOperationsTest {
         assertEquals(0, error.getNumber());
         assertNull(error.getOperations());
     }
+    
+    @Test
+    public void testComputeExecutorRejectsWhenSaturated() throws Exception {
+        ComputeExecutor executor = ComputeExecutor.create(1, 1, false);
+        java.util.concurrent.CountDownLatch release = new java.util.concurrent.CountDownLatch(1);
+        try {
+            // One running task and one queued task fill the pool
+            executor.execute(() -> awaitQuietly(release));
+            executor.execute(() -> awaitQuietly(release));
+            assertEquals(0, executor.getAvailableCapacity());
+            
+            try {
+                executor.execute(() -> { });
+                fail("Should throw RejectedExecutionException");
+            } catch (java.util.concurrent.RejectedExecutionException e) {
+                assertTrue(e.getMessage().contains("saturated"));
+            }
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+        assertEquals(2, executor.getAvailableCapacity());
+    }
+    
+    @Test
+    public void testOperationRunnerParallelOrderAndIsolation() throws Exception {
+        OperationRunner runner = new OperationRunner(new OperationFactory(), 4, null, Long.MAX_VALUE);
+        try {
+            java.util.Set<String> requested = new java.util.HashSet<>(java.util.Arrays.asList(
+                    "cubeRoot", "invalid", "prime", "factorial", "palindrome", "fibonacci"));
+            java.util.Map<String, OperationResult> results = runner.run(5, requested);
+            
+            // Results follow the factory order, unknown operations come last
+            assertEquals(java.util.Arrays.asList("factorial", "palindrome", "fibonacci", "prime", "cubeRoot", "invalid"),
+                    new java.util.ArrayList<>(results.keySet()));
+            assertEquals("Factorial of 5 = 120", render(results.get("factorial")));
+            assertTrue(render(results.get("prime")).contains("is a prime number"));
+            
+            // A failing operation does not affect the others
+            assertTrue(results.get("invalid").isError());
+            assertTrue(render(results.get("invalid")).startsWith("Error: Unsupported operation"));
+        } finally {
+            runner.shutdown();
+        }
+    }
+    
+    @Test
+    public void testStreamingResultsMatchExecute() throws Exception {
+        OperationFactory factory = new OperationFactory();
+        for (String operationType : factory.getAvailableOperations()) {
+            MathOperation operation = factory.getOperation(operationType);
+            for (int number : new int[] {1, 2, 7, 121, 150}) {
+                assertEquals(operationType + " of " + number,
+                        operation.execute(number), render(operation.evaluate(number)));
+            }
+        }
+    }
+    
+    @Test
+    public void testHtmlResultWriterFormatting() throws Exception {
+        assertEquals("Factorial of <span class='math-number'>5</span> <span class='math-number'>120</span>",
+                formatHtml("Factorial of 5 120"));
+        assertEquals("<span class='math-number'>2</span> × <span class='math-number'>3</span> = x2",
+                formatHtml("2*3=x2"));
+        assertEquals("&lt;b&gt; &amp; &quot;q&quot; &#39;", formatHtml("<b> & \"q\" '"));
+        
+        // Numbers up to the highlight limit are highlighted; longer runs are copied through as plain text
+        StringBuilder digits = new StringBuilder();
+        for (int i = 0; i < HtmlResultWriter.MAX_PENDING_DIGITS; i++) {
+            digits.append(i % 10);
+        }
+        assertEquals("[<span class='math-number'>" + digits + "</span>]", formatHtml("[" + digits + "]"));
+        for (int i = 0; i < HtmlResultWriter.BUFFER_SIZE * 3; i++) {
+            digits.append(i % 10);
+        }
+        assertEquals("[" + digits + "] &lt; <span class='math-number'>7</span>",
+                formatHtml("[" + digits + "] < 7"));
+        
+        // Output is the same however the text is split across writes, and the formatter is reusable
+        java.io.StringWriter html = new java.io.StringWriter();
+        HtmlResultWriter formatter = new HtmlResultWriter(html);
+        String text = "n=" + digits + "*2";
+        for (int i = 0; i < text.length(); i += 7) {
+            formatter.write(text.toCharArray(), i, Math.min(7, text.length() - i));
+        }
+        formatter.finish();
+        formatter.write("3");
+        formatter.finish();
+        assertEquals(formatHtml(text) + "<span class='math-number'>3</span>", html.toString());
+        assertEquals("n = " + digits + " × <span class='math-number'>2</span>", formatHtml(text));
+    }
+    
+    @Test
+    public void testPageWriterEncodesUtf8() throws Exception {
+        java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+        PageWriter page = new PageWriter(bytes);
+        String text = "Cube root ∛ of 8 = 2 ✨ 🚀 é";
+        
+        page.writeBytes(new PageShell(java.util.Set.of("factorial")).itemHead("factorial"));
+        page.write(text);
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < PageWriter.BUFFER_SIZE; i++) {
+            large.append(i % 2 == 0 ? "🌟" : "x");
+        }
+        page.write(large.toString());
+        page.flush();
+        
+        String expected = new String(new PageShell(java.util.Set.of()).itemHead("factorial"),
+                java.nio.charset.StandardCharsets.UTF_8) + text + large;
+        assertEquals(expected, new String(bytes.toByteArray(), java.nio.charset.StandardCharsets.UTF_8));
+        assertTrue(expected.contains("class='result-item factorial-result'"));
+    }
+    
+    @Test
+    public void testJsonWriterStreamsEscapedValues() throws Exception {
+        java.io.StringWriter text = new java.io.StringWriter();
+        JsonWriter json = new JsonWriter(text);
+        json.beginObject().name("number").value(5).name("results").beginArray();
+        json.beginObject().name("operation").value("factorial")
+                .name("result").value(new FactorialOperation().evaluate(5)).name("error").value(false).endObject();
+        json.beginObject().name("result").value("quote \" slash \\ line\n\u0001 ✨").endObject();
+        json.endArray().endObject().endLine();
+        
+        assertEquals("{\"number\":5,\"results\":[{\"operation\":\"factorial\","
+                + "\"result\":\"Factorial of 5 = 120\",\"error\":false},"
+                + "{\"result\":\"quote \\\" slash \\\\ line\\n\\u0001 ✨\"}]}\n", text.toString());
+        
+        // Large values stream digit by digit into the string
+        java.io.StringWriter large = new java.io.StringWriter();
+        new JsonWriter(large).value(new FactorialOperation().evaluate(3000));
+        assertEquals("\"" + new FactorialOperation().execute(3000) + "\"", large.toString());
+    }
+    
+    @Test
+    public void testApiContentNegotiation() {
+        assertEquals(ApiServlet.JSON, ApiServlet.negotiate(null));
+        assertEquals(ApiServlet.JSON, ApiServlet.negotiate("*/*"));
+        assertEquals(ApiServlet.JSON, ApiServlet.negotiate("text/html, application/json;q=0.9"));
+        assertEquals(ApiServlet.NDJSON, ApiServlet.negotiate("application/x-ndjson, application/json"));
+        assertEquals(ApiServlet.NDJSON, ApiServlet.negotiate("application/ndjson"));
+        assertEquals(ApiServlet.NDJSON, ApiServlet.negotiate("application/json;q=0, application/x-ndjson"));
+        assertNull(ApiServlet.negotiate("text/html"));
+        
+        assertEquals("Number must be positive", ValidationResult.validate("0", new String[] {"factorial"}).getErrorMessage());
+        assertEquals(12, ValidationResult.validate(" 12 ", new String[] {"prime"}).getNumber());
+    }
+    
+    @Test
+    public void testCanonicalRequestIdentity() {
+        OperationRunner runner = new OperationRunner(new OperationFactory());
+        java.util.List<String> ordered = runner.orderOperations(new java.util.HashSet<>(
+                java.util.Arrays.asList("prime", "<x>", "factorial")));
+        CanonicalRequest canonical = new CanonicalRequest(10, ordered);
+        
+        assertEquals("number=10&operations=factorial&operations=prime&operations=%3Cx%3E",
+                canonical.getQueryString());
+        assertTrue(canonical.getEntityTag().matches("\"r\\d+-[0-9a-f]+\""));
+        assertEquals(canonical.getEntityTag(), new CanonicalRequest(10, ordered).getEntityTag());
+        assertNotEquals(canonical.getEntityTag(), new CanonicalRequest(11, ordered).getEntityTag());
+        
+        assertTrue(canonical.matches(canonical.getEntityTag()));
+        assertTrue(canonical.matches("\"other\", W/" + canonical.getEntityTag()));
+        assertTrue(canonical.matches("*"));
+        assertFalse(canonical.matches("\"other\""));
+        assertFalse(canonical.matches(null));
+    }
+    
+    @Test
+    public void testOperationMetricsHistograms() throws Exception {
+        assertEquals(0, LatencyHistogram.bucketFor(0));
+        assertEquals(0, LatencyHistogram.bucketFor(1024));
+        assertEquals(1, LatencyHistogram.bucketFor(1025));
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucketFor(1L << LatencyHistogram.MAX_EXPONENT));
+        assertEquals(LatencyHistogram.BUCKETS, LatencyHistogram.bucketFor(Long.MAX_VALUE));
+        assertEquals(0, OperationMetrics.sizeBucket(9));
+        assertEquals(2, OperationMetrics.sizeBucket(100));
+        assertEquals(9, OperationMetrics.sizeBucket(Integer.MAX_VALUE));
+        
+        OperationMetrics metrics = new OperationMetrics(new OperationFactory().getAvailableOperations());
+        OperationRunner runner = new OperationRunner(new OperationFactory(), 0, metrics, Long.MAX_VALUE);
+        runner.run(120, new java.util.HashSet<>(java.util.Arrays.asList("factorial", "cubeRoot", "unknown")));
+        metrics.record("factorial", 120, OperationMetrics.Phase.RENDER, 5000);
+        metrics.recordRejection();
+        
+        assertEquals(1, metrics.getHistogram("factorial", OperationMetrics.Phase.COMPUTE, 2).getCount());
+        assertEquals(1, metrics.getHistogram("cubeRoot", OperationMetrics.Phase.COMPUTE, 2).getCount());
+        assertNull(metrics.getHistogram("unknown", OperationMetrics.Phase.COMPUTE, 2));
+        assertEquals(0, metrics.getErrors("factorial"));
+        
+        StringBuilder text = new StringBuilder();
+        metrics.writePrometheus(text);
+        String exposition = text.toString();
+        assertTrue(exposition.contains("# TYPE mathservlets_operation_seconds histogram"));
+        assertTrue(exposition.contains("mathservlets_operation_seconds_bucket{operation=\"factorial\",phase=\"render\","
+                + "digits=\"3\",le=\"8.192E-6\"} 1"));
+        assertTrue(exposition.contains("mathservlets_operation_seconds_count{operation=\"factorial\",phase=\"render\","
+                + "digits=\"3\"} 1"));
+        assertTrue(exposition.contains("mathservlets_requests_rejected_total 1"));
+        assertFalse(exposition.contains("unknown"));
+        assertFalse(exposition.contains("phase=\"write\""));
+    }
+    
+    @Test
+    public void testAdmissionControlByCost() throws Exception {
+        OperationFactory factory = new OperationFactory();
+        assertTrue(factory.getOperation("factorial").estimateCost(100000)
+                > factory.getOperation("factorial").estimateCost(10000));
+        assertTrue(factory.getOperation("fibonacci").estimateCost(20000)
+                > 3 * factory.getOperation("fibonacci").estimateCost(10000));
+        assertEquals(1, factory.getOperation("prime").estimateCost(Integer.MAX_VALUE));
+        assertTrue(factory.getOperation("factorial").estimateCost(Integer.MAX_VALUE) > 0);
+        
+        OperationRunner runner = new OperationRunner(factory, 0, null, 1_000_000);
+        java.util.Set<String> operations = new java.util.HashSet<>(java.util.Arrays.asList("factorial", "prime"));
+        assertFalse(runner.exceedsLimit(1000, operations, 0));
+        assertTrue(runner.exceedsLimit(1000000, operations, 0));
+        assertEquals(2, runner.estimateCost(1000000, operations, 0));
+        java.util.Map<String, OperationResult> results = runner.run(1000000, operations);
+        assertTrue(results.get("factorial").isError());
+        assertTrue(render(results.get("factorial")).contains("too large"));
+        assertFalse(results.get("prime").isError());
+        
+        AdmissionController controller = new AdmissionController(100, 1000, 1, 0);
+        AdmissionController.Permit first = controller.acquire(80);
+        assertEquals(80, controller.getInFlight());
+        try {
+            controller.acquire(50);
+            fail("Expected the wait to run out");
+        } catch (AdmissionException e) {
+            assertEquals(javax.servlet.http.HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getStatus());
+        }
+        AdmissionController.Permit second = controller.acquire(20);
+        first.release();
+        first.release();
+        assertEquals(20, controller.getInFlight());
+        second.release();
+        assertEquals(0, controller.getInFlight());
+        
+        // Nothing in flight, so even a request costlier than the budget gets through
+        AdmissionController.Permit large = controller.acquire(500);
+        AdmissionController full = new AdmissionController(100, 1000, 0, 0);
+        full.acquire(100);
+        try {
+            full.acquire(1);
+            fail("Expected the full queue to reject");
+        } catch (AdmissionException e) {
+            assertEquals(AdmissionController.SC_TOO_MANY_REQUESTS, e.getStatus());
+            assertTrue(e.getRetryAfterSeconds() > 0);
+        }
+        large.release();
+        assertTrue(controller.getBudget() > 100);
+        
+        // Async waiters hold no thread; a release admits them in order
+        AdmissionController queued = new AdmissionController(100, 1000, 2, 60000);
+        AdmissionController.Permit running = queued.acquire(90);
+        try {
+            queued.tryAcquire(20);
+            fail("Expected tryAcquire not to wait");
+        } catch (AdmissionException e) {
+            assertEquals(javax.servlet.http.HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getStatus());
+        }
+        java.util.concurrent.CompletableFuture<AdmissionController.Permit> withdrawn = queued.acquireAsync(20);
+        java.util.concurrent.CompletableFuture<AdmissionController.Permit> waiter = queued.acquireAsync(30);
+        assertFalse(waiter.isDone());
+        assertTrue(queued.acquireAsync(1).isCompletedExceptionally());
+        withdrawn.cancel(false);
+        assertEquals(1, queued.getQueued());
+        running.release();
+        assertEquals(30, waiter.get(10, java.util.concurrent.TimeUnit.SECONDS).getCost());
+        assertEquals(30, queued.getInFlight());
+        waiter.join().release();
+        
+        AdmissionController expiring = new AdmissionController(100, 1000, 1, 0);
+        AdmissionController.Permit held = expiring.acquire(100);
+        try {
+            expiring.acquireAsync(1).get(10, java.util.concurrent.TimeUnit.SECONDS);
+            fail("Expected the wait to run out");
+        } catch (java.util.concurrent.ExecutionException e) {
+            assertEquals(javax.servlet.http.HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                    ((AdmissionException) e.getCause()).getStatus());
+        }
+        held.release();
+        assertEquals(0, expiring.getInFlight());
+    }
+    
+    @Test
+    public void testCancellationStopsOperations() throws Exception {
+        CancellationToken token = CancellationToken.create();
+        assertFalse(token.isCancelled());
+        token.checkpoint();
+        token.cancel("client disconnected");
+        token.cancel("timed out");
+        assertEquals("client disconnected", token.getReason());
+        try {
+            token.checkpoint();
+            fail("Expected the token to stop the calculation");
+        } catch (java.util.concurrent.CancellationException e) {
+            assertTrue(e.getMessage().contains("client disconnected"));
+        }
+        CancellationToken.NONE.cancel("ignored");
+        assertFalse(CancellationToken.NONE.isCancelled());
+        assertTrue(CancellationToken.withTimeout(0).isCancelled());
+        assertEquals("deadline exceeded", CancellationToken.withTimeout(0).getReason());
+        
+        OperationRunner runner = new OperationRunner(new OperationFactory());
+        java.util.Map<String, OperationResult> results = runner.run(100000,
+                new java.util.HashSet<>(java.util.Arrays.asList("factorial", "primeCount", "palindrome")), 0, token);
+        for (OperationResult result : results.values()) {
+            assertTrue(result.isError());
+            assertTrue(render(result).contains("cancelled"));
+        }
+        
+        // Results that are generated while written stop part way through
+        CancellationToken writing = CancellationToken.create();
+        OperationResult series = new FibonacciOperation().evaluate(100000, writing);
+        StringBuilder written = new StringBuilder();
+        java.io.Writer partial = new java.io.Writer() {
+            @Override
+            public void write(char[] buffer, int offset, int length) {
+                if (written.length() > 100000) {
+                    writing.cancel("client disconnected");
+                }
+                written.append(buffer, offset, length);
+            }
+            
+            @Override
+            public void flush() {
+            }
+            
+            @Override
+            public void close() {
+            }
+        };
+        try {
+            series.writeTo(partial);
+            fail("Expected the series to stop");
+        } catch (java.util.concurrent.CancellationException e) {
+            assertTrue(written.length() < 1000000);
+        }
+    }
+    
+    @Test
+    public void testSubmitCompletesEachOperation() throws Exception {
+        java.util.Set<String> requested = new java.util.HashSet<>(java.util.Arrays.asList(
+                "cubeRoot", "invalid", "prime", "factorial"));
+        for (int parallelism : new int[] {0, 4}) {
+            OperationRunner runner = new OperationRunner(new OperationFactory(), parallelism, null, Long.MAX_VALUE);
+            try {
+                java.util.Map<String, java.util.concurrent.CompletableFuture<OperationResult>> futures =
+                        runner.submit(5, requested, 0, CancellationToken.NONE);
+                
+                // Futures are keyed in display order even though cheap operations start first
+                assertEquals(java.util.Arrays.asList("factorial", "prime", "cubeRoot", "invalid"),
+                        new java.util.ArrayList<>(futures.keySet()));
+                assertEquals("Factorial of 5 = 120", render(futures.get("factorial").get(10, java.util.concurrent.TimeUnit.SECONDS)));
+                assertTrue(futures.get("invalid").get(10, java.util.concurrent.TimeUnit.SECONDS).isError());
+            } finally {
+                runner.shutdown();
+            }
+        }
+    }
+    
+    @Test
+    public void testWarmUpPrecomputesAndBecomesReady() throws Exception {
+        OperationFactory factory = new OperationFactory();
+        WarmUp warmUp = new WarmUp(factory, 3, 60000, 5000);
+        assertFalse(warmUp.isReady());
+        warmUp.run();
+        assertTrue(warmUp.await(0, java.util.concurrent.TimeUnit.MILLISECONDS));
+        assertTrue(warmUp.isReady());
+        assertNull(warmUp.getFailure());
+        assertEquals(3, warmUp.getCompletedRounds());
+        assertEquals(5, ((FactorialOperation) factory.getOperation("factorial")).getCache().size());
+        
+        // A warm-up stopped for shutdown never reports ready
+        WarmUp stopped = new WarmUp(factory, 3, 60000, 0);
+        Thread.currentThread().interrupt();
+        try {
+            stopped.run();
+        } finally {
+            Thread.interrupted();
+        }
+        assertFalse(stopped.isReady());
+        assertEquals(0, stopped.getCompletedRounds());
+    }
+    
+    @Test
+    public void testCompressionNegotiationAndPrecompressedResources() throws java.io.IOException {
+        assertTrue(CompressionFilter.acceptsGzip("gzip, deflate, br"));
+        assertTrue(CompressionFilter.acceptsGzip("br;q=1.0, GZIP;q=0.5"));
+        assertTrue(CompressionFilter.acceptsGzip("*"));
+        assertFalse(CompressionFilter.acceptsGzip(null));
+        assertFalse(CompressionFilter.acceptsGzip("deflate, br"));
+        assertFalse(CompressionFilter.acceptsGzip("gzip;q=0, *"));
+        assertFalse(CompressionFilter.acceptsGzip("*;q=0"));
+        
+        assertTrue(CompressionFilter.isCompressible("text/html;charset=UTF-8"));
+        assertTrue(CompressionFilter.isCompressible("text/event-stream"));
+        assertTrue(CompressionFilter.isCompressible("application/json"));
+        assertTrue(CompressionFilter.isCompressible("application/x-ndjson"));
+        assertTrue(CompressionFilter.isCompressible("image/svg+xml"));
+        assertFalse(CompressionFilter.isCompressible("image/png"));
+        assertFalse(CompressionFilter.isCompressible(null));
+        
+        // Digit text shrinks severalfold and decompresses to the same bytes
+        byte[] content = render(new FactorialOperation().evaluate(2000)).getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        PrecompressedResources.Resource resource = PrecompressedResources.of("text/html;charset=UTF-8", content);
+        byte[] gzipped = resource.getGzipped();
+        assertNotNull(gzipped);
+        assertTrue(gzipped.length * 2 < content.length);
+        try (java.util.zip.GZIPInputStream in = new java.util.zip.GZIPInputStream(new java.io.ByteArrayInputStream(gzipped))) {
+            java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            for (int read; (read = in.read(buffer)) != -1; ) {
+                out.write(buffer, 0, read);
+            }
+            assertArrayEquals(content, out.toByteArray());
+        }
+        
+        // Compression that does not pay is not kept
+        assertNull(PrecompressedResources.of("text/plain", new byte[] {'x'}).getGzipped());
+    }
+    
+    @Test
+    public void testBatchReaderParsesCsvAndNdjson() throws java.io.IOException {
+        BatchReader csv = new BatchReader(new java.io.StringReader("number,operations\r\n12,prime, factorial\n\nabc\n7\n"),
+                BatchReader.Format.CSV, new String[] {"palindrome"}, null);
+        BatchReader.Item item = csv.next();
+        assertEquals(2, item.getLine());
+        assertEquals(12, item.getValidation().getNumber());
+        assertEquals(new java.util.HashSet<>(java.util.Arrays.asList("prime", "factorial")),
+                item.getValidation().getOperations());
+        item = csv.next();
+        assertEquals(4, item.getLine());
+        assertFalse(item.isValid());
+        assertEquals("abc", item.getNumberText());
+        assertEquals("Invalid number format", item.getValidation().getErrorMessage());
+        item = csv.next();
+        assertEquals(java.util.Collections.singleton("palindrome"), item.getValidation().getOperations());
+        assertNull(csv.next());
+        
+        StringBuilder lines = new StringBuilder();
+        lines.append("{\"number\": 27, \"operations\": [\"cubeRoot\"], \"precision\": 3}\n");
+        lines.append("{\"number\": \"9\", \"operations\": \"prime\"}\n");
+        lines.append("{\"number\": 5,\n");
+        for (int i = 0; i <= BatchReader.MAX_LINE_LENGTH; i++) {
+            lines.append(' ');
+        }
+        lines.append("\n{\"number\": 6}");
+        BatchReader ndjson = new BatchReader(new java.io.StringReader(lines.toString()), BatchReader.Format.NDJSON,
+                null, "2");
+        item = ndjson.next();
+        assertEquals(3, item.getValidation().getPrecision());
+        assertEquals(java.util.Collections.singleton("cubeRoot"), item.getValidation().getOperations());
+        item = ndjson.next();
+        assertEquals(9, item.getValidation().getNumber());
+        assertEquals(2, item.getValidation().getPrecision());
+        assertTrue(ndjson.next().getValidation().getErrorMessage().startsWith("Invalid JSON"));
+        assertTrue(ndjson.next().getValidation().getErrorMessage().startsWith("Line is longer"));
+        item = ndjson.next();
+        assertEquals(5, item.getLine());
+        assertEquals("At least one operation must be selected", item.getValidation().getErrorMessage());
+        assertNull(ndjson.next());
+    }
+    
+    @Test
+    public void testBatchPipelineKeepsInputOrderWithinItsWindow() throws Exception {
+        OperationFactory factory = new OperationFactory();
+        OperationRunner runner = new OperationRunner(factory);
+        ComputeExecutor executor = ComputeExecutor.create(4, 2, false);
+        StringBuilder batch = new StringBuilder();
+        for (int i = 1; i <= 500; i++) {
+            // Costly and cheap items alternate, so later items often finish first
+            batch.append(i % 7 == 0 ? 3000 + i : i).append(i % 7 == 0 ? ",factorial" : ",prime").append('\n');
+            if (i == 250) {
+                batch.append("bad,prime\n");
+            }
+        }
+        BatchReader reader = new BatchReader(new java.io.StringReader(batch.toString()), BatchReader.Format.CSV,
+                null, null);
+        AdmissionController admission = new AdmissionController(1000000, 10000000, 4, 1000);
+        BatchPipeline pipeline = new BatchPipeline(runner, executor, admission, 8, 30000);
+        java.util.List<Long> lines = new java.util.ArrayList<>();
+        try {
+            pipeline.run(reader, new BatchPipeline.ResultSink() {
+                @Override
+                public void write(BatchReader.Item item, java.util.Map<String, OperationResult> results) {
+                    // Reading never runs more than a window ahead of writing
+                    assertTrue(reader.getLineNumber() - item.getLine() <= pipeline.getWindow());
+                    if (item.isValid()) {
+                        // An item stays admitted until its results are written
+                        assertTrue(admission.getInFlight() >= runner.estimateCost(item.getValidation().getNumber(),
+                                item.getValidation().getOperations(), 0));
+                        assertEquals(runner.run(item.getValidation().getNumber(), item.getValidation().getOperations())
+                                .keySet(), results.keySet());
+                        assertFalse(results.values().iterator().next().isError());
+                    } else {
+                        assertNull(results);
+                    }
+                    lines.add(item.getLine());
+                }
+                
+                @Override
+                public void flush() {
+                }
+            });
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(501, lines.size());
+        for (int i = 0; i < lines.size(); i++) {
+            assertEquals(i + 1, lines.get(i).longValue());
+        }
+        assertEquals(501, pipeline.getWritten());
+        assertEquals(1, pipeline.getFailed());
+        assertEquals(0, admission.getInFlight());
+    }
+    
+    @Test
+    public void testResultStoreKeepsResultsAcrossRestartsAndInstances() throws Exception {
+        java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("result-store");
+        MathOperation factorial = new FactorialOperation();
+        MathOperation cubeRoot = new CubeRootOperation();
+        String expected = render(factorial.evaluate(700));
+        
+        ResultStore store = new ResultStore(dir, 64, 1 << 20, 0);
+        assertEquals(expected, render(store.evaluate("factorial", factorial, 700, 0, CancellationToken.NONE)));
+        assertEquals(1, store.getMisses());
+        assertEquals(1, store.getStored());
+        
+        // Another instance on the same files, as in a second JVM, sees the entry at once
+        ResultStore other = new ResultStore(dir, 64, 1 << 20, 0);
+        assertEquals(64, other.getSlots());
+        assertEquals(expected, render(other.evaluate("factorial", factorial, 700, 0, CancellationToken.NONE)));
+        assertEquals(1, other.getHits());
+        assertEquals(0, other.getStored());
+        
+        // The precision is part of the key; results through a Writer match too
+        String root = render(store.evaluate("cubeRoot", cubeRoot, 2, 40, CancellationToken.NONE));
+        assertEquals(render(cubeRoot.evaluate(2, 40, CancellationToken.NONE)), root);
+        assertNotEquals(root, render(store.evaluate("cubeRoot", cubeRoot, 2, 0, CancellationToken.NONE)));
+        java.io.StringWriter written = new java.io.StringWriter();
+        other.evaluate("cubeRoot", cubeRoot, 2, 40, CancellationToken.NONE).writeTo(written);
+        assertEquals(root, written.toString());
+        assertEquals(3, store.getEntries());
+        
+        // Results stored under another version of the result text are not served
+        byte[] stale = "Factorial of 701 = stale".getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        assertNotNull(store.put("r0/factorial", 701, stale, stale.length));
+        assertEquals(render(factorial.evaluate(701)),
+                render(store.evaluate("factorial", factorial, 701, 0, CancellationToken.NONE)));
+        assertEquals(5, store.getEntries());
+        store.close();
+        other.close();
+        
+        // After a restart the results are read back from the files
+        ResultStore reopened = new ResultStore(dir, 1024, 1 << 20, 0);
+        assertEquals(64, reopened.getSlots());
+        assertEquals(5, reopened.getEntries());
+        assertEquals(expected, render(reopened.evaluate("factorial", factorial, 700, 0, CancellationToken.NONE)));
+        assertEquals(1, reopened.getHits());
+        
+        // A full log still answers, from memory, without storing
+        long entries = reopened.getEntries();
+        String large = render(reopened.evaluate("fibonacci", new FibonacciOperation(), 5000, 0,
+                CancellationToken.NONE));
+        assertEquals(render(new FibonacciOperation().evaluate(5000)), large);
+        assertEquals(entries, reopened.getEntries());
+        assertTrue(reopened.getDataBytes() <= 1 << 20);
+        reopened.close();
+        
+        // The runner stores only results costing at least the store's minimum
+        ResultStore runnerStore = new ResultStore(java.nio.file.Files.createTempDirectory("result-store"), 64, 1 << 20,
+                10000);
+        OperationRunner runner = new OperationRunner(new OperationFactory(new PrimeSieve(1000, false), runnerStore));
+        runner.run(3000, new java.util.HashSet<>(java.util.Arrays.asList("factorial", "prime")));
+        java.util.Map<String, OperationResult> results = runner.run(3000,
+                new java.util.HashSet<>(java.util.Arrays.asList("factorial", "prime")));
+        assertEquals(render(factorial.evaluate(3000)), render(results.get("factorial")));
+        assertEquals(1, runnerStore.getStored());
+        assertEquals(1, runnerStore.getHits());
+        runnerStore.close();
+    }
+    
+    @Test
+    public void testInitParametersFallBackToDefaultsAndRejectNonIntegers() {
+        java.util.Map<String, String> parameters = new java.util.HashMap<>();
+        parameters.put("threads", " 12 ");
+        parameters.put("blank", "  ");
+        parameters.put("bytes", "4294967296");
+        parameters.put("word", "many");
+        
+        assertEquals(12, InitParameters.intValue(parameters::get, "threads", 4));
+        assertEquals(4, InitParameters.intValue(parameters::get, "blank", 4));
+        assertEquals(4, InitParameters.intValue(parameters::get, "missing", 4));
+        assertEquals(4294967296L, InitParameters.longValue(parameters::get, "bytes", 0));
+        for (String name : new String[] {"bytes", "word"}) {
+            try {
+                InitParameters.intValue(parameters::get, name, 4);
+                fail("Expected " + name + " to be rejected");
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage().contains(name));
+            }
+        }
+    }
+    
+    private static String formatHtml(String text) throws java.io.IOException {
+        java.io.StringWriter html = new java.io.StringWriter();
+        HtmlResultWriter formatter = new HtmlResultWriter(html);
+        formatter.write(text);
+        formatter.finish();
+        return html.toString();
+    }
+    
+    private static String render(OperationResult result) throws java.io.IOException {
+        StringBuilder text = new StringBuilder();
+        result.writeTo(text);
+        return text.toString();
+    }
+    
+    private static void awaitQuietly(java.util.concurrent.CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 }